@@ -0,0 +1,86 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The outcome of a checkout, with the outcome of each item of the cart.
+ *
+ * A checkout is all or nothing: when an item can't be reserved, nothing is.
+ */
+public class CheckoutResult {
+
+	public enum Status {
+		RESERVED, NOT_FOUND, NOT_ENOUGH_QUANTITY
+	}
+
+	/**
+	 * The outcome of one item of the cart.
+	 */
+	public static class Item {
+
+		private final String websafeOfferKey;
+
+		private final int quantity;
+
+		private final Status status;
+
+		private final Integer availableQuantity;
+
+		public Item(final String websafeOfferKey, final int quantity,
+				final Status status, final Integer availableQuantity) {
+			this.websafeOfferKey = websafeOfferKey;
+			this.quantity = quantity;
+			this.status = status;
+			this.availableQuantity = availableQuantity;
+		}
+
+		public String getWebsafeOfferKey() {
+			return this.websafeOfferKey;
+		}
+
+		public int getQuantity() {
+			return this.quantity;
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * Returns the quantity available when checking out, null if the Offer
+		 * was not found.
+		 *
+		 * @return the quantity available when checking out.
+		 */
+		public Integer getAvailableQuantity() {
+			return this.availableQuantity;
+		}
+	}
+
+	private final List<Item> items;
+
+	public CheckoutResult(final List<Item> items) {
+		this.items = new ArrayList<>(items);
+	}
+
+	/**
+	 * Returns whether all the items were reserved.
+	 *
+	 * @return true if all the items were reserved.
+	 */
+	public boolean isReserved() {
+		for (final Item item : this.items) {
+			if (item.getStatus() != Status.RESERVED) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public List<Item> getItems() {
+		return ImmutableList.copyOf(this.items);
+	}
+}
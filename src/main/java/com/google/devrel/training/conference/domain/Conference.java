@@ -10,6 +10,7 @@ import com.google.devrel.training.conference.form.ConferenceForm;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
@@ -21,7 +22,7 @@ import java.util.List;
  * Conference class stores conference information.
  */
 @Entity
-public class Conference {
+public class Conference implements Versioned {
 
     private static final String DEFAULT_CITY = "Default City";
 
@@ -59,6 +60,12 @@ public class Conference {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private String organizerUserId;
 
+    /**
+     * The display name of the organizer, when hydrated with the other Conferences of a response.
+     */
+    @Ignore
+    private String organizerDisplayName;
+
     /**
      * Topics related to this conference.
      */
@@ -101,6 +108,11 @@ public class Conference {
     @Index
     private int seatsAvailable;
 
+    /**
+     * The version of the conference, increased on every save.
+     */
+    private long version;
+
     /**
      * Just making the default constructor private.
      */
@@ -142,11 +154,14 @@ public class Conference {
     }
 
     /**
-     * Returns organizer's display name.
+     * Returns organizer's display name, loading the organizer's Profile unless it was hydrated.
      *
      * @return organizer's display name. If there is no Profile, return his/her gplusId.
      */
     public String getOrganizerDisplayName() {
+        if (organizerDisplayName != null) {
+            return organizerDisplayName;
+        }
         Profile organizer = ofy().load().key(Key.create(Profile.class, organizerUserId)).now();
         if (organizer == null) {
             return organizerUserId;
@@ -155,6 +170,15 @@ public class Conference {
         }
     }
 
+    /**
+     * Sets the organizer's display name read in a batch, see OwnerHydrator.
+     *
+     * @param organizerDisplayName the display name, or the gplusId when there is no Profile.
+     */
+    public void setOrganizerDisplayName(final String organizerDisplayName) {
+        this.organizerDisplayName = organizerDisplayName;
+    }
+
     /**
      * Returns a defensive copy of topics if not null.
      * @return a defensive copy of topics if not null.
@@ -249,6 +273,20 @@ public class Conference {
         seatsAvailable = seatsAvailable + number;
     }
 
+    /**
+     * Returns the version of the conference, which increases on every save.
+     *
+     * @return the version, 0 if the conference was never saved.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void updateVersion(long version) {
+        this.version = version;
+    }
+
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder("Id: " + id + "\n")
@@ -0,0 +1,50 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.Date;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A geocoded location, keyed by normalized address.
+ *
+ * This is the long-lived tier of the geocode cache, see CachingGeocoder.
+ */
+@Entity
+public class GeocodeCacheEntry {
+
+	/**
+	 * The normalized address.
+	 */
+	@Id
+	private String address;
+
+	private GeoPt location;
+
+	private Date created;
+
+	/**
+	 * Just making the default constructor private.
+	 */
+	private GeocodeCacheEntry() {
+	}
+
+	public GeocodeCacheEntry(final String address, final GeoPt location) {
+		this.address = address;
+		this.location = location;
+		this.created = new Date();
+	}
+
+	public String getAddress() {
+		return this.address;
+	}
+
+	public GeoPt getLocation() {
+		return this.location;
+	}
+
+	public Date getCreated() {
+		return this.created == null ? null : new Date(this.created.getTime());
+	}
+}
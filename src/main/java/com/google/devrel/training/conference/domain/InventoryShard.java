@@ -0,0 +1,73 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.common.base.Preconditions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * A part of the available quantity of an Offer.
+ *
+ * Shards are root entities, so purchases on different shards of the same
+ * Offer don't contend for the entity group of the Provider, see
+ * InventoryCounter.
+ */
+@Entity
+public class InventoryShard {
+
+	/**
+	 * The websafe key of the Offer and the index of the shard.
+	 */
+	@Id
+	private String id;
+
+	private int availableQuantity;
+
+	/**
+	 * Just making the default constructor private.
+	 */
+	private InventoryShard() {
+	}
+
+	public InventoryShard(final Key<Offer> offerKey, final int index,
+			final int availableQuantity) {
+		this.id = id(offerKey, index);
+		this.availableQuantity = availableQuantity;
+	}
+
+	/**
+	 * Returns the key of the given shard of the given Offer.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @param index
+	 *            the index of the shard.
+	 * @return the key of the shard.
+	 */
+	public static Key<InventoryShard> key(final Key<Offer> offerKey,
+			final int index) {
+		return Key.create(InventoryShard.class, id(offerKey, index));
+	}
+
+	private static String id(final Key<Offer> offerKey, final int index) {
+		return offerKey.getString() + ":" + index;
+	}
+
+	public String getId() {
+		return this.id;
+	}
+
+	public int getAvailableQuantity() {
+		return this.availableQuantity;
+	}
+
+	public void take(final int number) {
+		Preconditions.checkArgument(this.availableQuantity >= number,
+				"There are not enough quantity available.");
+		this.availableQuantity = this.availableQuantity - number;
+	}
+
+	public void giveback(final int number) {
+		this.availableQuantity = this.availableQuantity + number;
+	}
+}
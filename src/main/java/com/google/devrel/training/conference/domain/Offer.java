@@ -1,24 +1,27 @@
 package com.google.devrel.training.conference.domain;
 
-import static com.google.devrel.training.conference.service.OfyService.ofy;
-
 import java.text.Format;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.GregorianCalendar;
+import java.util.List;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
 import com.google.appengine.api.datastore.GeoPt;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.OfferForm;
 import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.service.GeoHash;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.OnLoad;
 import com.googlecode.objectify.annotation.Parent;
 import com.googlecode.objectify.condition.IfTrue;
 
@@ -26,7 +29,8 @@ import com.googlecode.objectify.condition.IfTrue;
  * Offer class stores offer information.
  */
 @Entity(name = "Offer")
-public class Offer {
+@Cache
+public class Offer implements Versioned {
 
 	/**
 	 * The id for the datastore key.
@@ -76,6 +80,33 @@ public class Offer {
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	private GeoPt location;
 
+	/**
+	 * The latitude of the location in radians, precomputed for ranking.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private double latitudeRadians;
+
+	/**
+	 * The longitude of the location in radians, precomputed for ranking.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private double longitudeRadians;
+
+	/**
+	 * The cosine of the latitude, precomputed for ranking.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private double cosLatitude;
+
+	/**
+	 * The geohash cells containing the location, one per precision.
+	 *
+	 * We need this for querying offers near a location with equality filters.
+	 */
+	@Index
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private List<String> geoCells;
+
 	// @Index
 	// private float latitude;
 
@@ -104,10 +135,29 @@ public class Offer {
 
 	/**
 	 * Number currently available.
+	 *
+	 * Once the inventory is sharded, this only counts the quantity which is
+	 * not in the InventoryShards, see InventoryCounter.
 	 */
 	@Index
 	private int availableQuantity;
 
+	/**
+	 * Whether the available quantity has been moved to InventoryShards.
+	 * Indexed for the projection queries of queryOfferSummaries.
+	 */
+	@Index
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private boolean inventorySharded;
+
+	/**
+	 * The quantity available in total, counted by InventoryCounter for an
+	 * Offer whose inventory is sharded.
+	 */
+	@Ignore
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private Integer countedQuantity;
+
 	@Index
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	private int priceInUnit; // $10.50 represented as 1050 , Rs 200.30
@@ -122,8 +172,20 @@ public class Offer {
 	@Ignore
 	private static final Format sdf = new SimpleDateFormat("YYYY-MM-dd");
 
+	@Index
 	private String providerName;
 
+	/**
+	 * The city of the provider, for the exports by city.
+	 */
+	@Index
+	private String providerCity;
+
+	/**
+	 * The version of the offer, increased on every save.
+	 */
+	private long version;
+
 	@Ignore
 	private Provider provider;
 
@@ -136,8 +198,46 @@ public class Offer {
 	private Offer() {
 	}
 
+	/**
+	 * Public constructor for Offer.
+	 *
+	 * @param id
+	 *            The datastore key.
+	 * @param creatorId
+	 *            The user id of the creator.
+	 * @param offerForm
+	 *            contains form data sent from the client.
+	 * @param provider
+	 *            the Provider of the offer, already loaded by the caller.
+	 */
 	public Offer(final long id, final String creatorId,
-			final OfferForm offerForm) {
+			final OfferForm offerForm, final Provider provider) {
+		checkOfferForm(offerForm);
+
+		this.id = id;
+
+		// this.providerKey = Key.create(Provider.class, providerId);
+		// this.providerId = providerId;
+
+		this.providerKey = Key.create(offerForm.getWebsafeProviderKey());
+		this.providerId = this.providerKey.getId();
+
+		this.creatorId = creatorId;
+		updateWithOfferForm(offerForm, provider, 0);
+	}
+
+	/**
+	 * Checks that an OfferForm is complete enough to create an Offer, without
+	 * its Provider.
+	 *
+	 * @param offerForm
+	 *            contains form data sent from the client.
+	 * @throws NullPointerException
+	 *             when a required field is missing.
+	 * @throws IllegalArgumentException
+	 *             when a field has an invalid value.
+	 */
+	public static void checkOfferForm(final OfferForm offerForm) {
 		Preconditions.checkNotNull(offerForm.getTitle(),
 				"The title is required");
 		Preconditions.checkNotNull(offerForm.getDescription(),
@@ -154,17 +254,6 @@ public class Offer {
 				"The offer date is required");
 		Preconditions.checkNotNull(offerForm.getWebsafeProviderKey(),
 				"The WebSafe Provider Key is required");
-
-		this.id = id;
-
-		// this.providerKey = Key.create(Provider.class, providerId);
-		// this.providerId = providerId;
-
-		this.providerKey = Key.create(offerForm.getWebsafeProviderKey());
-		this.providerId = this.providerKey.getId();
-
-		this.creatorId = creatorId;
-		updateWithOfferForm(offerForm);
 	}
 
 	public long getId() {
@@ -203,6 +292,20 @@ public class Offer {
 		return this.providerName;
 	}
 
+	public String getProviderCity() {
+		return this.providerCity;
+	}
+
+	/**
+	 * Sets the city of the provider, for the Offers saved before it was kept.
+	 *
+	 * @param providerCity
+	 *            the city of the Provider of the offer.
+	 */
+	public void setProviderCity(final String providerCity) {
+		this.providerCity = providerCity;
+	}
+
 	/**
 	 * Returns a defensive copy of offerDate if not null.
 	 *
@@ -217,18 +320,57 @@ public class Offer {
 		return this.maximumQuantity;
 	}
 
-	public int getAvailableQuantity() {
+	/**
+	 * Returns the quantity currently available.
+	 *
+	 * @return the quantity, or null if the inventory is sharded and its
+	 *         quantity was not counted by InventoryCounter.
+	 */
+	public Integer getAvailableQuantity() {
+		if (this.countedQuantity != null) {
+			return this.countedQuantity;
+		}
+		return this.inventorySharded ? null : this.availableQuantity;
+	}
+
+	/**
+	 * Returns the quantity available which is not in InventoryShards.
+	 *
+	 * @return the whole available quantity if the inventory is not sharded.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public int getUnshardedQuantity() {
 		return this.availableQuantity;
 	}
 
+	/**
+	 * Sets the quantity available in total, counted by InventoryCounter.
+	 *
+	 * @param countedQuantity
+	 *            the quantity in the InventoryShards and not sharded.
+	 */
+	public void setCountedQuantity(final Integer countedQuantity) {
+		this.countedQuantity = countedQuantity;
+	}
+
 	/**
 	 * Updates the Offer with OfferForm. This method is used upon object
 	 * creation as well as updating existing Offers.
 	 *
+	 * When the maximum quantity is lowered below the quantity held by the
+	 * InventoryShards, the caller takes the returned quantity from them.
+	 *
 	 * @param offerForm
 	 *            contains form data sent from the client.
+	 * @param provider
+	 *            the Provider of the offer, already loaded by the caller.
+	 * @param shardedQuantity
+	 *            the quantity in the InventoryShards of the offer, 0 if its
+	 *            inventory is not sharded.
+	 * @return the quantity to take from the InventoryShards.
 	 */
-	public void updateWithOfferForm(final OfferForm offerForm) {
+	public int updateWithOfferForm(final OfferForm offerForm,
+			final Provider provider, final int shardedQuantity) {
 
 		Preconditions.checkNotNull(offerForm.getTitle(),
 				"The title is required");
@@ -261,7 +403,7 @@ public class Offer {
 		// Check maximumQuantity value against the number of already allocated
 		// quantity.
 		final int allocatedQuantity = this.maximumQuantity
-				- this.availableQuantity;
+				- this.availableQuantity - shardedQuantity;
 
 		if (offerForm.getMaximumQuantity() < allocatedQuantity) {
 			throw new IllegalArgumentException(allocatedQuantity
@@ -274,16 +416,23 @@ public class Offer {
 		// However, if there are already some quantity allocated, we should
 		// subtract that numbers.
 		this.maximumQuantity = offerForm.getMaximumQuantity();
-		this.availableQuantity = this.maximumQuantity - allocatedQuantity;
+		final int availableQuantity = this.maximumQuantity - allocatedQuantity;
+		// The quantity not in the shards changes first.
+		this.availableQuantity = Math.max(0, availableQuantity
+				- shardedQuantity);
+		this.countedQuantity = this.inventorySharded ? availableQuantity
+				: null;
 
-		final Provider provider = getPrivateProvider();
+		Preconditions.checkArgument((provider != null)
+				&& this.providerKey.equals(Key.create(provider)),
+				"The provider of the offer is required");
 
 		this.providerName = provider.getName();
+		this.providerCity = provider.getCity();
 		// this.location = getProvider().getLocation();
 		// this.latitude = provider.getLatitude();
 		// this.longitude = provider.getLongitude();
-		this.location = new GeoPt(provider.getLatitude(),
-				provider.getLongitude());
+		setLocation(provider.getLatitude(), provider.getLongitude());
 
 		this.offerDateText = formattedDateText(this.offerDate);
 
@@ -297,6 +446,54 @@ public class Offer {
 		this.offerDateNumber = calendar.get(Calendar.DAY_OF_MONTH)
 				+ (100 * (calendar.get(Calendar.MONTH) + 1))
 				+ (10000 * calendar.get(Calendar.YEAR));
+
+		return Math.max(0, shardedQuantity - availableQuantity);
+	}
+
+	/**
+	 * Fills the precomputed values of the location for Offers saved before
+	 * they existed.
+	 */
+	@OnLoad
+	private void onLoad() {
+		if ((this.location != null) && (this.cosLatitude == 0)) {
+			precomputeLocation();
+		}
+	}
+
+	/**
+	 * Returns the version of the offer, which increases on every save.
+	 *
+	 * @return the version, 0 if the offer was never saved.
+	 */
+	public long getVersion() {
+		return this.version;
+	}
+
+	@Override
+	public void updateVersion(final long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Moves the offer to the given location, for instance when the location
+	 * of its provider is back-filled.
+	 *
+	 * @param latitude
+	 *            the latitude in degrees.
+	 * @param longitude
+	 *            the longitude in degrees.
+	 */
+	public void setLocation(final float latitude, final float longitude) {
+		this.location = new GeoPt(latitude, longitude);
+		this.geoCells = GeoHash.cells(latitude, longitude);
+		precomputeLocation();
+	}
+
+	private void precomputeLocation() {
+		this.latitudeRadians = Math.toRadians(this.location.getLatitude());
+		this.longitudeRadians = Math.toRadians(this.location.getLongitude());
+		this.cosLatitude = Math.cos(this.latitudeRadians);
 	}
 
 	private String formattedDateText(final Date date) {
@@ -320,6 +517,35 @@ public class Offer {
 		this.availableQuantity = this.availableQuantity + number;
 	}
 
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public boolean isInventorySharded() {
+		return this.inventorySharded;
+	}
+
+	/**
+	 * Moves the available quantity to the given number of shards, spreading
+	 * it as evenly as possible.
+	 *
+	 * Afterwards availableQuantity only counts the quantity which is not in
+	 * the shards.
+	 *
+	 * @param shardCount
+	 *            the number of shards.
+	 * @return the quantity of each shard.
+	 */
+	public int[] shardInventory(final int shardCount) {
+		Preconditions.checkState(!this.inventorySharded,
+				"The inventory is already sharded");
+		final int[] quantities = new int[shardCount];
+		for (int i = 0; i < shardCount; i++) {
+			quantities[i] = (this.availableQuantity / shardCount)
+					+ (i < (this.availableQuantity % shardCount) ? 1 : 0);
+		}
+		this.availableQuantity = 0;
+		this.inventorySharded = true;
+		return quantities;
+	}
+
 	public String getPrice() {
 
 		final int tens = this.priceInUnit / 100;
@@ -374,6 +600,32 @@ public class Offer {
 		return this.location;
 	}
 
+	/**
+	 * Returns a defensive copy of geoCells if not null.
+	 *
+	 * @return a defensive copy of geoCells if not null.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public List<String> getGeoCells() {
+		return this.geoCells == null ? null : ImmutableList
+				.copyOf(this.geoCells);
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public double getLatitudeRadians() {
+		return this.latitudeRadians;
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public double getLongitudeRadians() {
+		return this.longitudeRadians;
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public double getCosLatitude() {
+		return this.cosLatitude;
+	}
+
 	public Double getDistance() {
 		return this.distance;
 	}
@@ -390,21 +642,4 @@ public class Offer {
 		return this.provider;
 	}
 
-	/**
-	 * Returns Provider's details.
-	 *
-	 * @return provider.
-	 */
-	private Provider getPrivateProvider() {
-
-		final Key<Profile> profileKey = Key.create(Profile.class,
-				this.creatorId);
-
-		final Provider provider = ofy().load()
-				.key(Key.create(profileKey, Provider.class, this.providerId))
-				.now();
-
-		return provider;
-	}
-
 }
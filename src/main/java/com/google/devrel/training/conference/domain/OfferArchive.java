@@ -0,0 +1,173 @@
+package com.google.devrel.training.conference.domain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Serialize;
+import com.googlecode.objectify.annotation.Unindex;
+
+/**
+ * The Offers of a Provider on a past day, once archived.
+ *
+ * Past Offers are packed into one record per Provider and day, keyed by the
+ * offer date number, with no indexed property. The archived offers are stored
+ * as a single compressed property.
+ */
+@Entity
+@Unindex
+public class OfferArchive {
+
+	/**
+	 * What remains of an archived Offer.
+	 */
+	public static class ArchivedOffer implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long id;
+
+		private final String title;
+
+		private final Cuisine cuisine;
+
+		private final int priceInUnit;
+
+		private final String currencySymbol;
+
+		private final int maximumQuantity;
+
+		private final int soldQuantity;
+
+		/**
+		 * Creates the archive of an Offer.
+		 *
+		 * @param offer
+		 *            the Offer to archive.
+		 * @param availableQuantity
+		 *            the quantity left, including its inventory shards.
+		 */
+		public ArchivedOffer(final Offer offer, final int availableQuantity) {
+			this.id = offer.getId();
+			this.title = offer.getTitle();
+			this.cuisine = offer.getCuisine();
+			this.priceInUnit = offer.getPriceInUnit();
+			this.currencySymbol = offer.getCurrencySymbol();
+			this.maximumQuantity = offer.getMaximumQuantity();
+			this.soldQuantity = offer.getMaximumQuantity() - availableQuantity;
+		}
+
+		public long getId() {
+			return this.id;
+		}
+
+		public String getTitle() {
+			return this.title;
+		}
+
+		public Cuisine getCuisine() {
+			return this.cuisine;
+		}
+
+		public int getPriceInUnit() {
+			return this.priceInUnit;
+		}
+
+		public String getCurrencySymbol() {
+			return this.currencySymbol;
+		}
+
+		public int getMaximumQuantity() {
+			return this.maximumQuantity;
+		}
+
+		public int getSoldQuantity() {
+			return this.soldQuantity;
+		}
+	}
+
+	/**
+	 * The offer date number of the archived Offers.
+	 */
+	@Id
+	private Long id;
+
+	@Parent
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private Key<Provider> providerKey;
+
+	@Serialize(zip = true)
+	private List<ArchivedOffer> offers = new ArrayList<>(0);
+
+	/**
+	 * Just making the default constructor private.
+	 */
+	private OfferArchive() {
+	}
+
+	/**
+	 * Creates the empty archive of a Provider for a day.
+	 *
+	 * @param providerKey
+	 *            the key of the Provider.
+	 * @param offerDateNumber
+	 *            the day, as the offer date number of its Offers.
+	 */
+	public OfferArchive(final Key<Provider> providerKey,
+			final long offerDateNumber) {
+		this.providerKey = providerKey;
+		this.id = offerDateNumber;
+	}
+
+	/**
+	 * Returns the key of the archive of a Provider for a day.
+	 *
+	 * @param providerKey
+	 *            the key of the Provider.
+	 * @param offerDateNumber
+	 *            the day, as the offer date number of its Offers.
+	 * @return the key of the archive.
+	 */
+	public static Key<OfferArchive> key(final Key<Provider> providerKey,
+			final long offerDateNumber) {
+		return Key.create(providerKey, OfferArchive.class, offerDateNumber);
+	}
+
+	public long getOfferDateNumber() {
+		return this.id;
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public Key<Provider> getProviderKey() {
+		return this.providerKey;
+	}
+
+	public List<ArchivedOffer> getOffers() {
+		return ImmutableList.copyOf(this.offers);
+	}
+
+	/**
+	 * Adds an Offer to the archive, unless it is already there.
+	 *
+	 * @param archivedOffer
+	 *            the archived Offer.
+	 * @return true if the Offer was added.
+	 */
+	public boolean add(final ArchivedOffer archivedOffer) {
+		for (final ArchivedOffer offer : this.offers) {
+			if (offer.getId() == archivedOffer.getId()) {
+				return false;
+			}
+		}
+		this.offers.add(archivedOffer);
+		return true;
+	}
+}
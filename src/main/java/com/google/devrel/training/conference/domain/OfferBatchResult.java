@@ -0,0 +1,84 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The outcome of a batch of offers, with the outcome of each offer in the
+ * order of the batch.
+ *
+ * The valid offers of a batch are created even when some others are invalid.
+ */
+public class OfferBatchResult {
+
+	public enum Status {
+		CREATED, INVALID
+	}
+
+	/**
+	 * The outcome of one offer of the batch.
+	 */
+	public static class Item {
+
+		private final Status status;
+
+		private final Offer offer;
+
+		private final String message;
+
+		public Item(final Status status, final Offer offer, final String message) {
+			this.status = status;
+			this.offer = offer;
+			this.message = message;
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		/**
+		 * Returns the created Offer, null if the offer is invalid.
+		 *
+		 * @return the created Offer.
+		 */
+		public Offer getOffer() {
+			return this.offer;
+		}
+
+		/**
+		 * Returns why the offer is invalid, null if it was created.
+		 *
+		 * @return why the offer is invalid.
+		 */
+		public String getMessage() {
+			return this.message;
+		}
+	}
+
+	private final List<Item> items;
+
+	public OfferBatchResult(final List<Item> items) {
+		this.items = new ArrayList<>(items);
+	}
+
+	/**
+	 * Returns the number of offers created.
+	 *
+	 * @return the number of offers created.
+	 */
+	public int getCreatedCount() {
+		int created = 0;
+		for (final Item item : this.items) {
+			if (item.getStatus() == Status.CREATED) {
+				created++;
+			}
+		}
+		return created;
+	}
+
+	public List<Item> getItems() {
+		return ImmutableList.copyOf(this.items);
+	}
+}
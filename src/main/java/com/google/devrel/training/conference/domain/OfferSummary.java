@@ -0,0 +1,100 @@
+package com.google.devrel.training.conference.domain;
+
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+
+/**
+ * A lightweight representation of an Offer for list responses.
+ *
+ * It only holds indexed fields, so it can be built from a projection query,
+ * use getOffer for the details. The available quantity of an Offer whose
+ * inventory is sharded must be counted by InventoryCounter first.
+ */
+public class OfferSummary {
+
+	private final String websafeKey;
+
+	private final String title;
+
+	private final Cuisine cuisine;
+
+	private final int priceInUnit;
+
+	private final float latitude;
+
+	private final float longitude;
+
+	private final Integer availableQuantity;
+
+	private final String providerName;
+
+	private final Double distance;
+
+	public OfferSummary(final Offer offer) {
+		this.websafeKey = offer.getWebsafeKey();
+		this.title = offer.getTitle();
+		this.cuisine = offer.getCuisine();
+		this.priceInUnit = offer.getPriceInUnit();
+		this.latitude = offer.getLocation().getLatitude();
+		this.longitude = offer.getLocation().getLongitude();
+		this.availableQuantity = offer.getAvailableQuantity();
+		this.providerName = offer.getProviderName();
+		this.distance = offer.getDistance();
+	}
+
+	public OfferSummary(final String websafeKey, final String title,
+			final Cuisine cuisine, final int priceInUnit, final float latitude,
+			final float longitude, final Integer availableQuantity,
+			final String providerName, final Double distance) {
+		this.websafeKey = websafeKey;
+		this.title = title;
+		this.cuisine = cuisine;
+		this.priceInUnit = priceInUnit;
+		this.latitude = latitude;
+		this.longitude = longitude;
+		this.availableQuantity = availableQuantity;
+		this.providerName = providerName;
+		this.distance = distance;
+	}
+
+	public String getWebsafeKey() {
+		return this.websafeKey;
+	}
+
+	public String getTitle() {
+		return this.title;
+	}
+
+	public Cuisine getCuisine() {
+		return this.cuisine;
+	}
+
+	public int getPriceInUnit() {
+		return this.priceInUnit;
+	}
+
+	public float getLatitude() {
+		return this.latitude;
+	}
+
+	public float getLongitude() {
+		return this.longitude;
+	}
+
+	/**
+	 * Returns the quantity available.
+	 *
+	 * @return the quantity, null when it is not known.
+	 */
+	public Integer getAvailableQuantity() {
+		return this.availableQuantity;
+	}
+
+	public String getProviderName() {
+		return this.providerName;
+	}
+
+	public Double getDistance() {
+		return this.distance;
+	}
+
+}
@@ -0,0 +1,242 @@
+package com.google.devrel.training.conference.domain;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+import com.google.api.server.spi.config.AnnotationBoolean;
+import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.base.Preconditions;
+import com.google.devrel.training.conference.form.OfferForm;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.form.OfferTemplateForm;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.condition.IfNotNull;
+
+/**
+ * An Offer a Provider repeats on several days.
+ *
+ * The OfferMaterializer creates the Offers of the upcoming days ahead of time.
+ * The template remembers the next day without an Offer, so that the days are
+ * created exactly once.
+ */
+@Entity
+public class OfferTemplate {
+
+	@Id
+	private Long id;
+
+	/**
+	 * Holds Provider key as the parent, so that the template and its offers
+	 * are in the same entity group.
+	 */
+	@Parent
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private Key<Provider> providerKey;
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	private String creatorId;
+
+	private String title;
+
+	private String description;
+
+	private int maximumQuantity;
+
+	private Cuisine cuisine;
+
+	private int priceInUnits;
+
+	private String currencySymbol;
+
+	/**
+	 * The days of the week as Calendar.SUNDAY to Calendar.SATURDAY, every day
+	 * when empty.
+	 */
+	private List<Integer> daysOfWeek = new ArrayList<>(0);
+
+	private Date endDate;
+
+	/**
+	 * The next day without an Offer, null once the end date is past. Only
+	 * indexed while there are days left.
+	 */
+	@Index({ IfNotNull.class })
+	private Date nextOfferDate;
+
+	/**
+	 * Just making the default constructor private.
+	 */
+	private OfferTemplate() {
+	}
+
+	/**
+	 * Public constructor for OfferTemplate.
+	 *
+	 * @param id
+	 *            The datastore key.
+	 * @param creatorId
+	 *            The user id of the creator.
+	 * @param offerTemplateForm
+	 *            contains form data sent from the client.
+	 */
+	public OfferTemplate(final long id, final String creatorId,
+			final OfferTemplateForm offerTemplateForm) {
+		final OfferForm offerForm = offerTemplateForm.getOfferForm();
+		Preconditions.checkNotNull(offerForm, "The offer is required");
+		Offer.checkOfferForm(offerForm);
+		for (final Integer dayOfWeek : offerTemplateForm.getDaysOfWeek()) {
+			Preconditions.checkArgument((dayOfWeek != null)
+					&& (dayOfWeek >= Calendar.SUNDAY)
+					&& (dayOfWeek <= Calendar.SATURDAY),
+					"The days of week must be between 1 (Sunday) and 7 (Saturday)");
+		}
+		final Date startDate = startOfDay(offerForm.getOfferDate());
+		final Date endDate = offerTemplateForm.getEndDate() == null ? null
+				: startOfDay(offerTemplateForm.getEndDate());
+		Preconditions.checkArgument((endDate == null)
+				|| !endDate.before(startDate),
+				"The end date must not be before the offer date");
+
+		this.id = id;
+		this.providerKey = Key.create(offerForm.getWebsafeProviderKey());
+		this.creatorId = creatorId;
+		this.title = offerForm.getTitle();
+		this.description = offerForm.getDescription();
+		this.maximumQuantity = offerForm.getMaximumQuantity();
+		this.cuisine = offerForm.getCuisine();
+		this.priceInUnits = offerForm.getPriceInUnits();
+		this.currencySymbol = offerForm.getCurrencySymbol();
+		this.daysOfWeek = new ArrayList<>(offerTemplateForm.getDaysOfWeek());
+		this.endDate = endDate;
+		this.nextOfferDate = startDate;
+	}
+
+	public long getId() {
+		return this.id;
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public Key<Provider> getProviderKey() {
+		return this.providerKey;
+	}
+
+	public String getWebsafeKey() {
+		return Key.create(this.providerKey, OfferTemplate.class, this.id)
+				.getString();
+	}
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public String getCreatorId() {
+		return this.creatorId;
+	}
+
+	public String getTitle() {
+		return this.title;
+	}
+
+	public List<Integer> getDaysOfWeek() {
+		return new ArrayList<>(this.daysOfWeek);
+	}
+
+	/**
+	 * Returns a defensive copy of endDate if not null.
+	 *
+	 * @return a defensive copy of endDate if not null.
+	 */
+	public Date getEndDate() {
+		return this.endDate == null ? null : new Date(this.endDate.getTime());
+	}
+
+	/**
+	 * Returns a defensive copy of nextOfferDate if not null.
+	 *
+	 * @return the next day without an Offer, null once the end date is past.
+	 */
+	public Date getNextOfferDate() {
+		return this.nextOfferDate == null ? null : new Date(
+				this.nextOfferDate.getTime());
+	}
+
+	/**
+	 * Returns the days needing an Offer, from the next day without an Offer up
+	 * to the given day included.
+	 *
+	 * @param horizon
+	 *            the last day to create an Offer for.
+	 * @return the days, in order.
+	 */
+	public List<Date> getOfferDatesUntil(final Date horizon) {
+		final List<Date> offerDates = new ArrayList<>();
+		if (this.nextOfferDate == null) {
+			return offerDates;
+		}
+		final Calendar calendar = new GregorianCalendar();
+		calendar.setTime(this.nextOfferDate);
+		while (!calendar.getTime().after(horizon)
+				&& ((this.endDate == null) || !calendar.getTime().after(
+						this.endDate))) {
+			if (this.daysOfWeek.isEmpty()
+					|| this.daysOfWeek.contains(calendar
+							.get(Calendar.DAY_OF_WEEK))) {
+				offerDates.add(calendar.getTime());
+			}
+			calendar.add(Calendar.DAY_OF_MONTH, 1);
+		}
+		return offerDates;
+	}
+
+	/**
+	 * Records that the Offers up to the given day included are created.
+	 *
+	 * @param horizon
+	 *            the last day an Offer was created for.
+	 */
+	public void materializedUntil(final Date horizon) {
+		final Calendar calendar = new GregorianCalendar();
+		calendar.setTime(startOfDay(horizon));
+		calendar.add(Calendar.DAY_OF_MONTH, 1);
+		if ((this.endDate != null) && calendar.getTime().after(this.endDate)) {
+			this.nextOfferDate = null;
+		} else if ((this.nextOfferDate != null)
+				&& calendar.getTime().after(this.nextOfferDate)) {
+			this.nextOfferDate = calendar.getTime();
+		}
+	}
+
+	/**
+	 * Returns the OfferForm of the Offer of the given day.
+	 *
+	 * @param offerDate
+	 *            the day of the Offer.
+	 * @return the OfferForm.
+	 */
+	public OfferForm toOfferForm(final Date offerDate) {
+		return new OfferForm(this.title, this.description, offerDate,
+				this.maximumQuantity, this.cuisine, this.priceInUnits,
+				this.currencySymbol, this.providerKey.getString());
+	}
+
+	/**
+	 * Returns the beginning of the given day.
+	 *
+	 * @param date
+	 *            any time of the day.
+	 * @return midnight of the day.
+	 */
+	public static Date startOfDay(final Date date) {
+		final Calendar calendar = new GregorianCalendar();
+		calendar.setTime(date);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+}
@@ -2,6 +2,8 @@ package com.google.devrel.training.conference.domain;
 
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
@@ -12,7 +14,8 @@ import java.util.List;
  * Profile class stores user's profile data.
  */
 @Entity
-public class Profile {
+@Cache
+public class Profile implements Versioned {
     /**
      *  Use userId as the datastore key.
      */
@@ -40,6 +43,11 @@ public class Profile {
      */
     private List<String> conferenceKeysToAttend = new ArrayList<>(0);
 
+    /**
+     * The version of the profile, increased on every save.
+     */
+    private long version;
+
     /**
      * Just making the default constructor private.
      */
@@ -137,4 +145,27 @@ public class Profile {
             throw new IllegalArgumentException("Invalid conferenceKey: " + conferenceKey);
         }
     }
+
+    /**
+     * Returns the websafe key of the profile, for reading its entity tag.
+     *
+     * @return the websafe key.
+     */
+    public String getWebsafeKey() {
+        return Key.create(Profile.class, userId).getString();
+    }
+
+    /**
+     * Returns the version of the profile, which increases on every save.
+     *
+     * @return the version, 0 if the profile was never saved.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    @Override
+    public void updateVersion(long version) {
+        this.version = version;
+    }
 }
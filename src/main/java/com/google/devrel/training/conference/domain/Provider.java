@@ -1,20 +1,16 @@
 package com.google.devrel.training.conference.domain;
 
-import java.io.IOException;
-
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
-import com.google.code.geocoder.Geocoder;
-import com.google.code.geocoder.GeocoderRequestBuilder;
-import com.google.code.geocoder.model.GeocodeResponse;
-import com.google.code.geocoder.model.GeocoderRequest;
-import com.google.code.geocoder.model.GeocoderResult;
-import com.google.code.geocoder.model.LatLng;
+import com.google.appengine.api.datastore.GeoPt;
 import com.google.common.base.Preconditions;
 import com.google.devrel.training.conference.form.ProviderForm;
+import com.google.devrel.training.conference.service.AddressNormalizer;
 import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Cache;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 
@@ -22,7 +18,8 @@ import com.googlecode.objectify.annotation.Parent;
  * Provider class stores user's provider data.
  */
 @Entity
-public class Provider {
+@Cache
+public class Provider implements Versioned {
 
 	/**
 	 * The id for the datastore key.
@@ -51,6 +48,18 @@ public class Provider {
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	private String creatorId;
 
+	/**
+	 * The display name of the creator, when hydrated with the other Providers
+	 * of a response.
+	 */
+	@Ignore
+	private String creatorDisplayName;
+
+	/**
+	 * The version of the provider, increased on every save.
+	 */
+	private long version;
+
 	/**
 	 * User's main e-mail address.
 	 */
@@ -62,6 +71,7 @@ public class Provider {
 
 	private String streetAddress2;
 
+	@Index
 	private String city;
 
 	private String stateCode;
@@ -80,6 +90,13 @@ public class Provider {
 
 	// private GeoPt location;
 
+	/**
+	 * Whether the address changed since latitude and longitude were set.
+	 *
+	 * The location is geocoded by a task, see ProviderLocator.
+	 */
+	private boolean locationPending;
+
 	private Boolean inactive;
 
 	/**
@@ -133,6 +150,9 @@ public class Provider {
 		Preconditions.checkNotNull(providerForm.getCountry(),
 				"The country is required");
 
+		final String previousAddress = this.streetAddress1 == null ? null
+				: getAddress();
+
 		this.name = providerForm.getName();
 		this.shortBio = providerForm.getShortBio();
 
@@ -147,7 +167,12 @@ public class Provider {
 		this.alternatePhone = providerForm.getAlternatePhone();
 		this.inactive = providerForm.getInactive();
 
-		setLocation(providerForm);
+		// Changes of case, spacing or punctuation don't move the provider.
+		if ((previousAddress == null)
+				|| !AddressNormalizer.normalize(getAddress()).equals(
+						AddressNormalizer.normalize(previousAddress))) {
+			this.locationPending = true;
+		}
 
 	}
 
@@ -165,6 +190,21 @@ public class Provider {
 		return this.creatorId;
 	}
 
+	/**
+	 * Returns the display name of the creator, only set on the Providers of
+	 * the list responses, see OwnerHydrator.
+	 *
+	 * @return the display name, the gplus_id if the creator has no Profile,
+	 *         null when not hydrated.
+	 */
+	public String getCreatorDisplayName() {
+		return this.creatorDisplayName;
+	}
+
+	public void setCreatorDisplayName(final String creatorDisplayName) {
+		this.creatorDisplayName = creatorDisplayName;
+	}
+
 	public Long getId() {
 		return this.id;
 	}
@@ -229,43 +269,56 @@ public class Provider {
 		return this.inactive;
 	}
 
-	private void setLocation(final ProviderForm providerForm) {
-
-		final Geocoder geocoder = new Geocoder();
+	public boolean isLocationPending() {
+		return this.locationPending;
+	}
 
-		String address = providerForm.getStreetAddress1() + ", ";
+	/**
+	 * Returns the postal address of the provider, in a single line.
+	 *
+	 * @return the address to geocode.
+	 */
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public String getAddress() {
+		String address = this.streetAddress1 + ", ";
 
-		if ((providerForm.getStreetAddress2() != null)
-				&& (providerForm.getStreetAddress2().trim() != "")) {
-			address += providerForm.getStreetAddress2() + ", ";
+		if ((this.streetAddress2 != null)
+				&& !this.streetAddress2.trim().isEmpty()) {
+			address += this.streetAddress2 + ", ";
 		}
 
-		address += providerForm.getCity() + ", ";
-		address += providerForm.getStateCode() + ", ";
-		address += providerForm.getCountry();
-
-		final GeocoderRequest geocoderRequest = new GeocoderRequestBuilder()
-				.setAddress(address).setLanguage("en").getGeocoderRequest();
-		try {
-			final GeocodeResponse geocoderResponse = geocoder
-					.geocode(geocoderRequest);
-
-			if (geocoderResponse.getResults().size() > 0) {
-
-				final GeocoderResult geocoderResult = geocoderResponse
-						.getResults().get(0);
-				final LatLng latLng = geocoderResult.getGeometry()
-						.getLocation();
-				this.latitude = latLng.getLat().floatValue();
-				this.longitude = latLng.getLng().floatValue();
-				// this.location = new GeoPt(this.latitude, this.longitude);
-			}
-
-		} catch (final IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		address += this.city + ", ";
+		address += this.stateCode + ", ";
+		address += this.country;
+		return address;
+	}
+
+	/**
+	 * Sets the location geocoded from the current address.
+	 *
+	 * @param location
+	 *            the location, or null when the address was not found, in
+	 *            which case the previous location is kept.
+	 */
+	public void setLocation(final GeoPt location) {
+		if (location != null) {
+			this.latitude = location.getLatitude();
+			this.longitude = location.getLongitude();
 		}
+		this.locationPending = false;
+	}
 
+	/**
+	 * Returns the version of the provider, which increases on every save.
+	 *
+	 * @return the version, 0 if the provider was never saved.
+	 */
+	public long getVersion() {
+		return this.version;
 	}
 
+	@Override
+	public void updateVersion(final long version) {
+		this.version = version;
+	}
 }
@@ -0,0 +1,23 @@
+package com.google.devrel.training.conference.domain;
+
+/**
+ * An entity whose version increases on every save through OfyService.save,
+ * see EntityVersions.
+ */
+public interface Versioned {
+
+	/**
+	 * Returns the version of the entity.
+	 *
+	 * @return the version, 0 if the entity was never saved.
+	 */
+	long getVersion();
+
+	/**
+	 * Sets the version of the entity, right before it is saved.
+	 *
+	 * @param version
+	 *            the next version.
+	 */
+	void updateVersion(long version);
+}
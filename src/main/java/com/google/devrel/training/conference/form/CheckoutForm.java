@@ -0,0 +1,56 @@
+package com.google.devrel.training.conference.form;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing a cart sent from the client for
+ * checkout.
+ */
+public class CheckoutForm {
+
+	/**
+	 * A quantity of one Offer in the cart.
+	 */
+	public static class Item {
+
+		private String websafeOfferKey;
+
+		private int quantity;
+
+		private Item() {
+		}
+
+		public Item(final String websafeOfferKey, final int quantity) {
+			this.websafeOfferKey = websafeOfferKey;
+			this.quantity = quantity;
+		}
+
+		public String getWebsafeOfferKey() {
+			return this.websafeOfferKey;
+		}
+
+		public int getQuantity() {
+			return this.quantity;
+		}
+	}
+
+	private List<Item> items = new ArrayList<>(0);
+
+	private CheckoutForm() {
+	}
+
+	/**
+	 * Public constructor is solely for Unit Test.
+	 *
+	 * @param items
+	 */
+	public CheckoutForm(final Item... items) {
+		this.items = new ArrayList<>(Arrays.asList(items));
+	}
+
+	public List<Item> getItems() {
+		return this.items;
+	}
+}
@@ -4,6 +4,7 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
 
@@ -117,6 +118,22 @@ public class ConferenceQueryForm {
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     private Filter inequalityFilter;
 
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public static final int DEFAULT_LIMIT = 50;
+
+    @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+    public static final int MAX_LIMIT = 500;
+
+    /**
+     * The web safe cursor returned with the previous page, null for the first page.
+     */
+    private String cursor;
+
+    /**
+     * The maximum number of conferences returned.
+     */
+    private int limit = DEFAULT_LIMIT;
+
     public ConferenceQueryForm() {}
 
     /**
@@ -163,10 +180,51 @@ public class ConferenceQueryForm {
         return this;
     }
 
+    public String getCursor() {
+        return cursor;
+    }
+
     /**
-     * Returns an Objectify Query object for the specified filters.
+     * Returns the maximum number of conferences returned.
+     *
+     * @return the limit sent by the client, DEFAULT_LIMIT if it is not positive,
+     *         and at most MAX_LIMIT.
+     */
+    public int getLimit() {
+        if (limit <= 0) {
+            return DEFAULT_LIMIT;
+        }
+        return Math.min(limit, MAX_LIMIT);
+    }
+
+    /**
+     * Sets the cursor of the page to return.
+     *
+     * @param cursor The web safe cursor returned with the previous page.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm cursor(String cursor) {
+        this.cursor = cursor;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of conferences returned.
+     *
+     * @param limit The page size.
+     * @return this for method chaining.
+     */
+    public ConferenceQueryForm limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Returns an Objectify Query object for the specified filters, limited to a single page
+     * starting at the cursor.
      *
      * @return an Objectify Query.
+     * @throws IllegalArgumentException when the cursor is invalid.
      */
     @ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
     public Query<Conference> getQuery() {
@@ -191,6 +249,10 @@ public class ConferenceQueryForm {
                         filter.operator.getQueryOperator()), Integer.parseInt(filter.value));
             }
         }
+        if (cursor != null) {
+            query = query.startAt(Cursor.fromWebSafeString(cursor));
+        }
+        query = query.limit(getLimit());
         LOG.info(query.toString());
         return query;
     }
@@ -0,0 +1,30 @@
+package com.google.devrel.training.conference.form;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing several offers of one provider sent
+ * from the client at once, for instance the menu of a week.
+ */
+public class OfferBatchForm {
+
+	private List<OfferForm> offers = new ArrayList<>(0);
+
+	private OfferBatchForm() {
+	}
+
+	/**
+	 * Public constructor is solely for Unit Test.
+	 *
+	 * @param offers
+	 */
+	public OfferBatchForm(final OfferForm... offers) {
+		this.offers = new ArrayList<>(Arrays.asList(offers));
+	}
+
+	public List<OfferForm> getOffers() {
+		return this.offers;
+	}
+}
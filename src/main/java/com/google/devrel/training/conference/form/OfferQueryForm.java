@@ -2,13 +2,19 @@ package com.google.devrel.training.conference.form;
 
 import java.text.Format;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.form.OfferForm.Cuisine;
 
 /**
@@ -25,11 +31,29 @@ public class OfferQueryForm {
 
 	private Cuisine cuisine;
 
+	/**
+	 * More cuisines to match, in addition to cuisine.
+	 */
+	private List<Cuisine> cuisines = new ArrayList<>(0);
+
 	private int distanceInKm = 10; // default to 10 km
 	// private final SortField sortField;
 
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-	private static final float ONE_KM_TO_DEGREE = 0.009f;
+	public static final int DEFAULT_LIMIT = 50;
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public static final int MAX_LIMIT = 500;
+
+	/**
+	 * The maximum number of offers returned.
+	 */
+	private int limit = DEFAULT_LIMIT;
+
+	/**
+	 * The cursor returned with the previous page, null for the first page.
+	 */
+	private String cursor;
 
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	private static final Format sdf = new SimpleDateFormat("YYYY-MM-dd");
@@ -43,6 +67,21 @@ public class OfferQueryForm {
 	public OfferQueryForm(final float latitude, final float longitude,
 			final int distanceInKm, final Date offerDate,
 			final Cuisine cuisine, final SortField sortField) {
+		this(latitude, longitude, distanceInKm, offerDate, cuisine,
+				sortField, DEFAULT_LIMIT);
+	}
+
+	public OfferQueryForm(final float latitude, final float longitude,
+			final int distanceInKm, final Date offerDate,
+			final Cuisine cuisine, final SortField sortField, final int limit) {
+		this(latitude, longitude, distanceInKm, offerDate, cuisine,
+				sortField, limit, null);
+	}
+
+	public OfferQueryForm(final float latitude, final float longitude,
+			final int distanceInKm, final Date offerDate,
+			final Cuisine cuisine, final SortField sortField, final int limit,
+			final String cursor) {
 
 		// default sort by distance - ascending order
 
@@ -62,6 +101,12 @@ public class OfferQueryForm {
 		if (sortField != null) {
 			this.sortField = sortField;
 		}
+
+		if (limit > 0) {
+			this.limit = limit;
+		}
+
+		this.cursor = cursor;
 	}
 
 	public float getLatitude() {
@@ -80,32 +125,66 @@ public class OfferQueryForm {
 		return this.cuisine;
 	}
 
-	public int getDistanceInKm() {
-		return this.distanceInKm;
+	public List<Cuisine> getCuisines() {
+		return ImmutableList.copyOf(this.cuisines);
 	}
 
-	public SortField getSortField() {
-		return this.sortField;
+	/**
+	 * Sets more cuisines to match, in addition to cuisine.
+	 *
+	 * @param cuisines
+	 *            the cuisines.
+	 * @return this for method chaining.
+	 */
+	public OfferQueryForm cuisines(final Cuisine... cuisines) {
+		this.cuisines = new ArrayList<>(Arrays.asList(cuisines));
+		return this;
 	}
 
+	/**
+	 * Returns every cuisine to match, from both cuisine and cuisines.
+	 *
+	 * @return the cuisines, empty when offers of any cuisine match.
+	 */
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-	public float getMinLatitude() {
-		return this.latitude - (ONE_KM_TO_DEGREE * this.distanceInKm);
+	public Set<Cuisine> getCuisineFilter() {
+		final Set<Cuisine> filter = EnumSet.noneOf(Cuisine.class);
+		if (this.cuisine != null) {
+			filter.add(this.cuisine);
+		}
+		if (this.cuisines != null) {
+			for (final Cuisine other : this.cuisines) {
+				if (other != null) {
+					filter.add(other);
+				}
+			}
+		}
+		return filter;
 	}
 
-	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-	public float getMaxLatitude() {
-		return this.latitude + (ONE_KM_TO_DEGREE * this.distanceInKm);
+	public int getDistanceInKm() {
+		return this.distanceInKm;
 	}
 
-	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-	public float getMinLongitude() {
-		return this.longitude - (ONE_KM_TO_DEGREE * this.distanceInKm);
+	public SortField getSortField() {
+		return this.sortField;
 	}
 
-	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
-	public float getMaxLongitude() {
-		return this.longitude - (ONE_KM_TO_DEGREE * this.distanceInKm);
+	/**
+	 * Returns the maximum number of offers returned.
+	 *
+	 * @return the limit sent by the client, DEFAULT_LIMIT if it is not
+	 *         positive, and at most MAX_LIMIT.
+	 */
+	public int getLimit() {
+		if (this.limit <= 0) {
+			return DEFAULT_LIMIT;
+		}
+		return Math.min(this.limit, MAX_LIMIT);
+	}
+
+	public String getCursor() {
+		return this.cursor;
 	}
 
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
@@ -0,0 +1,59 @@
+package com.google.devrel.training.conference.form;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A simple Java object (POJO) representing an offer repeated on several days,
+ * sent from the client.
+ */
+public class OfferTemplateForm {
+
+	/**
+	 * The offer to repeat, its offer date is the first day.
+	 */
+	private OfferForm offerForm;
+
+	/**
+	 * The days of the week the offer is repeated on, as Calendar.SUNDAY to
+	 * Calendar.SATURDAY. Every day when empty.
+	 */
+	private List<Integer> daysOfWeek = new ArrayList<>(0);
+
+	/**
+	 * The last day of the offer, null to repeat it until the template is
+	 * removed.
+	 */
+	private Date endDate;
+
+	private OfferTemplateForm() {
+	}
+
+	/**
+	 * Public constructor is solely for Unit Test.
+	 *
+	 * @param offerForm
+	 * @param endDate
+	 * @param daysOfWeek
+	 */
+	public OfferTemplateForm(final OfferForm offerForm, final Date endDate,
+			final Integer... daysOfWeek) {
+		this.offerForm = offerForm;
+		this.endDate = endDate == null ? null : new Date(endDate.getTime());
+		this.daysOfWeek = new ArrayList<>(Arrays.asList(daysOfWeek));
+	}
+
+	public OfferForm getOfferForm() {
+		return this.offerForm;
+	}
+
+	public List<Integer> getDaysOfWeek() {
+		return this.daysOfWeek;
+	}
+
+	public Date getEndDate() {
+		return this.endDate;
+	}
+}
@@ -8,6 +8,7 @@ import java.util.logging.Logger;
 
 import com.google.api.server.spi.config.AnnotationBoolean;
 import com.google.api.server.spi.config.ApiResourceProperty;
+import com.google.appengine.api.datastore.Cursor;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Provider;
 import com.googlecode.objectify.cmd.Query;
@@ -115,6 +116,23 @@ public class ProviderQueryForm {
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	private Filter inequalityFilter;
 
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public static final int DEFAULT_LIMIT = 50;
+
+	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
+	public static final int MAX_LIMIT = 500;
+
+	/**
+	 * The web safe cursor returned with the previous page, null for the first
+	 * page.
+	 */
+	private String cursor;
+
+	/**
+	 * The maximum number of providers returned.
+	 */
+	private int limit = DEFAULT_LIMIT;
+
 	public ProviderQueryForm() {
 	}
 
@@ -165,10 +183,54 @@ public class ProviderQueryForm {
 		return this;
 	}
 
+	public String getCursor() {
+		return this.cursor;
+	}
+
 	/**
-	 * Returns an Objectify Query object for the specified filters.
+	 * Returns the maximum number of providers returned.
+	 *
+	 * @return the limit sent by the client, DEFAULT_LIMIT if it is not
+	 *         positive, and at most MAX_LIMIT.
+	 */
+	public int getLimit() {
+		if (this.limit <= 0) {
+			return DEFAULT_LIMIT;
+		}
+		return Math.min(this.limit, MAX_LIMIT);
+	}
+
+	/**
+	 * Sets the cursor of the page to return.
+	 *
+	 * @param cursor
+	 *            the web safe cursor returned with the previous page.
+	 * @return this for method chaining.
+	 */
+	public ProviderQueryForm cursor(final String cursor) {
+		this.cursor = cursor;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of providers returned.
+	 *
+	 * @param limit
+	 *            the page size.
+	 * @return this for method chaining.
+	 */
+	public ProviderQueryForm limit(final int limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	/**
+	 * Returns an Objectify Query object for the specified filters, limited to
+	 * a single page starting at the cursor.
 	 *
 	 * @return an Objectify Query.
+	 * @throws IllegalArgumentException
+	 *             when the cursor is invalid.
 	 */
 	@ApiResourceProperty(ignored = AnnotationBoolean.TRUE)
 	public Query<Provider> getQuery() {
@@ -196,6 +258,10 @@ public class ProviderQueryForm {
 						.parseInt(filter.value));
 			}
 		}
+		if (this.cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(this.cursor));
+		}
+		query = query.limit(getLimit());
 		LOG.info(query.toString());
 		return query;
 	}
@@ -0,0 +1,74 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import com.google.common.base.Joiner;
+
+/**
+ * Normalizes postal addresses, so that addresses which only differ in case,
+ * spacing, punctuation or common abbreviations are geocoded once.
+ */
+public class AddressNormalizer {
+
+	/**
+	 * Common words of street addresses and their standard abbreviations, from
+	 * the street suffixes, secondary unit designators and directionals of USPS
+	 * Publication 28. Words without a standard abbreviation, such as the
+	 * "main" and "cross" of Bangalore addresses, are kept whole, so that
+	 * different addresses never share a normalized form.
+	 */
+	private static final Map<String, String> ABBREVIATIONS = new HashMap<>();
+
+	static {
+		ABBREVIATIONS.put("street", "st");
+		ABBREVIATIONS.put("road", "rd");
+		ABBREVIATIONS.put("avenue", "ave");
+		ABBREVIATIONS.put("boulevard", "blvd");
+		ABBREVIATIONS.put("lane", "ln");
+		ABBREVIATIONS.put("drive", "dr");
+		ABBREVIATIONS.put("apartment", "apt");
+		ABBREVIATIONS.put("floor", "fl");
+		ABBREVIATIONS.put("north", "n");
+		ABBREVIATIONS.put("south", "s");
+		ABBREVIATIONS.put("east", "e");
+		ABBREVIATIONS.put("west", "w");
+	}
+
+	private AddressNormalizer() {
+	}
+
+	/**
+	 * Returns the normalized form of the given address.
+	 *
+	 * The address is lower-cased, punctuation other than commas is dropped,
+	 * whitespace is collapsed, common words are abbreviated and empty
+	 * components are removed.
+	 *
+	 * @param address
+	 *            the address, with components separated by commas.
+	 * @return the normalized address.
+	 */
+	public static String normalize(final String address) {
+		final List<String> components = new ArrayList<>();
+		for (final String component : address.toLowerCase(Locale.ENGLISH)
+				.split(",")) {
+			final List<String> words = new ArrayList<>();
+			for (final String word : component.replaceAll("[^\\p{L}\\p{N}]+",
+					" ").trim().split(" ")) {
+				if (word.isEmpty()) {
+					continue;
+				}
+				final String abbreviation = ABBREVIATIONS.get(word);
+				words.add(abbreviation == null ? word : abbreviation);
+			}
+			if (!words.isEmpty()) {
+				components.add(Joiner.on(' ').join(words));
+			}
+		}
+		return Joiner.on(", ").join(components);
+	}
+}
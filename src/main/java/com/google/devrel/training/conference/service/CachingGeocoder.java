@@ -0,0 +1,110 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.GeocodeCacheEntry;
+import com.googlecode.objectify.Key;
+
+/**
+ * A Geocoder caching the locations found by another one, keyed by normalized
+ * address.
+ *
+ * Lookups go through an instance-local LRU, then memcache, then the
+ * GeocodeCacheEntry entities in the datastore, and only then to the wrapped
+ * Geocoder. Each tier is filled from the ones below it. Addresses which are
+ * not found are not cached.
+ */
+public class CachingGeocoder implements Geocoder {
+
+	private static final Logger LOG = Logger.getLogger(CachingGeocoder.class
+			.getName());
+
+	private static final int LOCAL_CACHE_SIZE = 1000;
+
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 7 * 24 * 60 * 60;
+
+	private static final String MEMCACHE_KEY_PREFIX = "geocode:";
+
+	public static final String LOCAL_HIT = "geocode.local.hit";
+
+	public static final String MEMCACHE_HIT = "geocode.memcache.hit";
+
+	public static final String DATASTORE_HIT = "geocode.datastore.hit";
+
+	public static final String MISS = "geocode.miss";
+
+	private final Geocoder geocoder;
+
+	private final Cache<String, GeoPt> localCache = CacheBuilder.newBuilder()
+			.maximumSize(LOCAL_CACHE_SIZE).build();
+
+	public CachingGeocoder(final Geocoder geocoder) {
+		this.geocoder = geocoder;
+	}
+
+	@Override
+	public GeoPt geocode(final String address) throws IOException {
+		final String normalizedAddress = AddressNormalizer.normalize(address);
+
+		GeoPt location = this.localCache.getIfPresent(normalizedAddress);
+		if (location != null) {
+			Metrics.increment(LOCAL_HIT);
+			return location;
+		}
+
+		final MemcacheService memcache = MemcacheServiceFactory
+				.getMemcacheService();
+		final String memcacheKey = MEMCACHE_KEY_PREFIX + normalizedAddress;
+		try {
+			location = (GeoPt) memcache.get(memcacheKey);
+		} catch (final RuntimeException e) {
+			// Memcache is only a cache, fall back to the datastore.
+			LOG.log(Level.WARNING, "Failed to read " + memcacheKey, e);
+		}
+		if (location != null) {
+			Metrics.increment(MEMCACHE_HIT);
+			this.localCache.put(normalizedAddress, location);
+			return location;
+		}
+
+		final GeocodeCacheEntry entry = ofy().load()
+				.key(Key.create(GeocodeCacheEntry.class, normalizedAddress))
+				.now();
+		if (entry != null) {
+			Metrics.increment(DATASTORE_HIT);
+			location = entry.getLocation();
+		} else {
+			Metrics.increment(MISS);
+			location = this.geocoder.geocode(address);
+			if (location == null) {
+				return null;
+			}
+			ofy().save()
+					.entity(new GeocodeCacheEntry(normalizedAddress, location))
+					.now();
+		}
+		putInMemcache(memcache, memcacheKey, location);
+		this.localCache.put(normalizedAddress, location);
+		return location;
+	}
+
+	private static void putInMemcache(final MemcacheService memcache,
+			final String memcacheKey, final GeoPt location) {
+		try {
+			memcache.put(memcacheKey, location,
+					Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS));
+		} catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to write " + memcacheKey, e);
+		}
+	}
+}
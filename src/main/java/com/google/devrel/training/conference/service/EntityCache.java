@@ -0,0 +1,181 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.googlecode.objectify.Key;
+
+/**
+ * A read-through cache of the entities read on every request: Offers,
+ * Providers and Profiles.
+ *
+ * The first tier is an LRU local to the instance. It holds the datastore form
+ * of the entities, so that every reader gets its own copy. The second tier is
+ * the Objectify global cache in memcache, enabled with @Cache on the entities,
+ * which Objectify invalidates on every save and delete.
+ *
+ * OfyService.save evicts the entities it saves from the local tier of this
+ * instance, after the commit when they are saved in a transaction. Saves on
+ * other instances are only seen once the local entry expires, after
+ * LOCAL_TTL_SECONDS, so a small sample of the local hits is compared with the
+ * second tier to count the stale ones.
+ */
+public class EntityCache {
+
+	public static final String LOCAL_HIT = "entityCache.local.hit";
+
+	public static final String LOCAL_MISS = "entityCache.local.miss";
+
+	/**
+	 * The total age of the local hits, divided by LOCAL_HIT it is the average
+	 * age of the entities served.
+	 */
+	public static final String LOCAL_HIT_AGE_MS = "entityCache.local.hit_age_ms";
+
+	public static final String STALENESS_CHECK = "entityCache.stalenessCheck";
+
+	public static final String STALE = "entityCache.stale";
+
+	private static final int MAX_LOCAL_ENTRIES = 10000;
+
+	public static final int LOCAL_TTL_SECONDS = 30;
+
+	/**
+	 * One local hit in STALENESS_SAMPLE is checked against the second tier.
+	 */
+	private static final int STALENESS_SAMPLE = 100;
+
+	private static final Cache<com.google.appengine.api.datastore.Key, CachedEntity> LOCAL = CacheBuilder
+			.newBuilder().maximumSize(MAX_LOCAL_ENTRIES)
+			.expireAfterWrite(LOCAL_TTL_SECONDS, TimeUnit.SECONDS).build();
+
+	private static final Random RANDOM = new Random();
+
+	private EntityCache() {
+	}
+
+	/**
+	 * Returns an entity from the cache, loading it if needed. Inside a
+	 * transaction, the entity is always loaded.
+	 *
+	 * @param key
+	 *            the key of the entity.
+	 * @return a copy of the entity, null if it does not exist.
+	 */
+	public static <T> T get(final Key<T> key) {
+		return get(Collections.singletonList(key)).get(key);
+	}
+
+	/**
+	 * Returns entities from the cache, loading the missing ones in one batch.
+	 * Inside a transaction, the entities are always loaded.
+	 *
+	 * @param keys
+	 *            the keys of the entities.
+	 * @return a copy of the entities which exist, in the order of the keys.
+	 */
+	public static <T> Map<Key<T>, T> get(final Iterable<Key<T>> keys) {
+		if (ofy().getTransaction() != null) {
+			return ofy().load().keys(keys);
+		}
+		final long now = System.currentTimeMillis();
+		final Map<Key<T>, T> hits = new HashMap<>();
+		// The keys to load, with the entry of the hits checked for staleness.
+		final Map<Key<T>, CachedEntity> misses = new LinkedHashMap<>();
+		for (final Key<T> key : keys) {
+			final CachedEntity cached = LOCAL.getIfPresent(key.getRaw());
+			if (cached == null) {
+				Metrics.increment(LOCAL_MISS);
+				misses.put(key, null);
+				continue;
+			}
+			Metrics.increment(LOCAL_HIT);
+			Metrics.add(LOCAL_HIT_AGE_MS, now - cached.cachedAt);
+			if (RANDOM.nextInt(STALENESS_SAMPLE) == 0) {
+				Metrics.increment(STALENESS_CHECK);
+				misses.put(key, cached);
+			} else {
+				final T entity = ofy().load().fromEntity(cached.entity);
+				hits.put(key, entity);
+			}
+		}
+		final Map<Key<T>, T> loaded = misses.isEmpty() ? hits : load(misses);
+
+		final Map<Key<T>, T> entities = new LinkedHashMap<>();
+		for (final Key<T> key : keys) {
+			final T entity = hits.containsKey(key) ? hits.get(key) : loaded
+					.get(key);
+			if (entity != null) {
+				entities.put(key, entity);
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * Evicts entities from the local tier, call this when they are saved or
+	 * deleted.
+	 *
+	 * @param keys
+	 *            the keys of the entities.
+	 */
+	public static void invalidate(final Key<?>... keys) {
+		for (final Key<?> key : keys) {
+			LOCAL.invalidate(key.getRaw());
+		}
+	}
+
+	/**
+	 * Evicts every entity from the local tier.
+	 */
+	public static void clear() {
+		LOCAL.invalidateAll();
+	}
+
+	private static <T> Map<Key<T>, T> load(
+			final Map<Key<T>, CachedEntity> misses) {
+		final Map<Key<T>, T> loaded = ofy().load().keys(misses.keySet());
+		for (final Map.Entry<Key<T>, CachedEntity> miss : misses.entrySet()) {
+			final com.google.appengine.api.datastore.Key key = miss.getKey()
+					.getRaw();
+			final T entity = loaded.get(miss.getKey());
+			final Entity fresh = entity == null ? null : ofy().save().toEntity(
+					entity);
+			if (fresh == null) {
+				LOCAL.invalidate(key);
+			} else {
+				LOCAL.put(key, new CachedEntity(fresh));
+			}
+			final CachedEntity cached = miss.getValue();
+			if ((cached != null)
+					&& ((fresh == null) || !fresh.getProperties().equals(
+							cached.entity.getProperties()))) {
+				Metrics.increment(STALE);
+			}
+		}
+		return loaded;
+	}
+
+	/**
+	 * An entity in its datastore form, and when it was cached.
+	 */
+	private static class CachedEntity {
+
+		private final Entity entity;
+
+		private final long cachedAt = System.currentTimeMillis();
+
+		private CachedEntity(final Entity entity) {
+			this.entity = entity;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+
+/**
+ * The versions of the Offers, Providers, Profiles and Conferences, and the
+ * entity tags of their read endpoints.
+ *
+ * The version of an entity is the time of its last save in milliseconds, and
+ * at least one more than its previous version, so it increases on every save
+ * even when the clocks of the instances differ. The entity tag of a read
+ * endpoint is a hash of the key and of every version in its response, so it
+ * doesn't tell when the entity was saved: getOffer also returns the Provider
+ * of the Offer, and getConference the display name of its organizer, which
+ * goes in the tag of the Conference instead of the version of the whole
+ * Profile.
+ */
+public class EntityVersions {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private EntityVersions() {
+	}
+
+	/**
+	 * Returns the version of an entity being saved by OfyService.save.
+	 *
+	 * @param version
+	 *            the current version of the entity, 0 if it was never saved.
+	 * @return the next version.
+	 */
+	public static long next(final long version) {
+		return Math.max(version + 1, System.currentTimeMillis());
+	}
+
+	/**
+	 * Returns the entity tag of the response of the read endpoint of an
+	 * entity.
+	 *
+	 * @param websafeKey
+	 *            the key of an Offer, a Provider, a Profile or a Conference.
+	 * @return the strong entity tag, with its quotes, or null if there is no
+	 *         such entity.
+	 * @throws IllegalArgumentException
+	 *             if the key is not a valid key.
+	 */
+	public static String etag(final String websafeKey) {
+		final Key<Object> key = Key.create(websafeKey);
+		switch (key.getKind()) {
+		case "Offer":
+			final Key<Object> providerKey = key.getParent();
+			if (providerKey == null) {
+				return null;
+			}
+			final Map<Key<Object>, Object> entities = EntityCache.get(Arrays
+					.asList(key, providerKey));
+			final Offer offer = (Offer) entities.get(key);
+			final Provider offerProvider = (Provider) entities.get(providerKey);
+			if (offer == null) {
+				return null;
+			}
+			return etag(websafeKey, offer.getVersion(), offerProvider == null ? 0
+					: offerProvider.getVersion());
+		case "Provider":
+			final Provider provider = EntityCache.get(Key
+					.<Provider> create(websafeKey));
+			return provider == null ? null : etag(websafeKey,
+					provider.getVersion());
+		case "Profile":
+			final Profile profile = EntityCache.get(Key
+					.<Profile> create(websafeKey));
+			return profile == null ? null : etag(websafeKey,
+					profile.getVersion());
+		case "Conference":
+			final Conference conference = ofy().load()
+					.key(Key.<Conference> create(websafeKey)).now();
+			if (conference == null) {
+				return null;
+			}
+			OwnerHydrator.hydrateConferences(Collections
+					.singletonList(conference));
+			return etag(newHasher(websafeKey).putLong(conference.getVersion())
+					.putString(conference.getOrganizerDisplayName(), UTF_8));
+		default:
+			return null;
+		}
+	}
+
+	/**
+	 * Returns whether the value of an If-None-Match header matches an entity
+	 * tag, so that the client already has the response.
+	 *
+	 * @param ifNoneMatch
+	 *            the value of the header, null if there is none.
+	 * @param etag
+	 *            the current entity tag.
+	 * @return true if the client copy is not modified.
+	 */
+	public static boolean matches(final String ifNoneMatch, final String etag) {
+		if (ifNoneMatch == null) {
+			return false;
+		}
+		for (String tag : ifNoneMatch.split(",")) {
+			tag = tag.trim();
+			// If-None-Match uses the weak comparison.
+			if (tag.startsWith("W/")) {
+				tag = tag.substring(2);
+			}
+			if (tag.equals("*") || tag.equals(etag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String etag(final String websafeKey, final long... versions) {
+		final Hasher hasher = newHasher(websafeKey);
+		for (final long version : versions) {
+			hasher.putLong(version);
+		}
+		return etag(hasher);
+	}
+
+	private static Hasher newHasher(final String websafeKey) {
+		return Hashing.sha1().newHasher().putString(websafeKey, UTF_8);
+	}
+
+	private static String etag(final Hasher hasher) {
+		return "\"" + hasher.hash() + "\"";
+	}
+}
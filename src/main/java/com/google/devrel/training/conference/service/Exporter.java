@@ -0,0 +1,260 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.gson.stream.JsonWriter;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Writes all the Offers or Providers, optionally of one city, as newline
+ * delimited JSON or as CSV.
+ *
+ * The entities are read a page at a time with query cursors, and each page is
+ * written out and dropped from the session cache before the next one is read,
+ * so the memory used does not grow with the size of the export. An export
+ * writes at most MAX_ROWS rows, so that it ends within the request deadline.
+ * Its end is found beforehand with a keys-only query, so that the cursor of
+ * the rest can be sent before the rows.
+ *
+ * The exports by city only find the entities saved since the city was
+ * indexed, the older ones are saved again by IndexBackfill.
+ */
+public class Exporter {
+
+	/**
+	 * The entities which can be exported.
+	 */
+	public static enum Kind {
+		OFFERS(Offer.class, "providerCity", new String[] { "websafeKey",
+				"websafeProviderKey", "providerName", "providerCity", "title",
+				"description", "cuisine", "offerDateNumber", "priceInUnit",
+				"currencySymbol", "maximumQuantity", "latitude", "longitude" }),
+		PROVIDERS(Provider.class, "city", new String[] { "websafeKey", "name",
+				"mainEmail", "streetAddress1", "streetAddress2", "city",
+				"stateCode", "zipCode", "country", "mainPhone", "latitude",
+				"longitude" });
+
+		private final Class<?> type;
+
+		private final String cityProperty;
+
+		private final String[] columns;
+
+		private Kind(final Class<?> type, final String cityProperty,
+				final String[] columns) {
+			this.type = type;
+			this.cityProperty = cityProperty;
+			this.columns = columns;
+		}
+	}
+
+	/**
+	 * The formats of the exports.
+	 */
+	public static enum Format {
+		JSON("application/x-ndjson"), CSV("text/csv");
+
+		private final String contentType;
+
+		private Format(final String contentType) {
+			this.contentType = contentType;
+		}
+
+		public String getContentType() {
+			return this.contentType;
+		}
+	}
+
+	public static final String EXPORTED = "export.rows";
+
+	/**
+	 * The number of entities read at a time.
+	 */
+	public static final int PAGE_SIZE = 500;
+
+	/**
+	 * The most rows written by one export.
+	 */
+	public static final int MAX_ROWS = 20000;
+
+	private Exporter() {
+	}
+
+	/**
+	 * Returns where an export ends, reading only keys.
+	 *
+	 * @param kind
+	 *            the entities to export.
+	 * @param city
+	 *            the city of the entities, null for all of them.
+	 * @param cursor
+	 *            the cursor where the export starts, null for the first one.
+	 * @param maxRows
+	 *            the most rows of the export.
+	 * @return the cursor where the next export starts, null if this export
+	 *         writes the last entities.
+	 */
+	public static String endCursor(final Kind kind, final String city,
+			final String cursor, final int maxRows) {
+		final QueryResultIterator<? extends Key<?>> keys = query(kind, city,
+				cursor).limit(maxRows).keys().iterator();
+		int count = 0;
+		while (keys.hasNext()) {
+			keys.next();
+			count++;
+		}
+		return count < maxRows ? null : keys.getCursor().toWebSafeString();
+	}
+
+	/**
+	 * Writes the entities between two cursors.
+	 *
+	 * @param kind
+	 *            the entities to export.
+	 * @param city
+	 *            the city of the entities, null for all of them.
+	 * @param cursor
+	 *            the cursor where the export starts, null for the first one.
+	 * @param endCursor
+	 *            the cursor where the export ends, null for the last one.
+	 * @param format
+	 *            the format of the rows.
+	 * @param pageSize
+	 *            the number of entities read at a time.
+	 * @param writer
+	 *            where the rows are written.
+	 * @return the number of rows written.
+	 * @throws IOException
+	 *             when the rows cannot be written.
+	 */
+	public static int export(final Kind kind, final String city,
+			final String cursor, final String endCursor, final Format format,
+			final int pageSize, final Writer writer) throws IOException {
+		if (format == Format.CSV) {
+			writeCsv(kind.columns, writer);
+		}
+		int count = 0;
+		String pageCursor = cursor;
+		while (true) {
+			Query<?> query = query(kind, city, pageCursor).limit(pageSize)
+					.chunk(pageSize);
+			if (endCursor != null) {
+				query = query.endAt(Cursor.fromWebSafeString(endCursor));
+			}
+			final QueryResultIterator<?> iterator = query.iterator();
+			int pageCount = 0;
+			while (iterator.hasNext()) {
+				final Object[] row = row(iterator.next());
+				if (format == Format.CSV) {
+					writeCsv(row, writer);
+				} else {
+					writeJson(kind.columns, row, writer);
+				}
+				pageCount++;
+			}
+			count += pageCount;
+			// The page is written, its entities are not needed anymore.
+			writer.flush();
+			ofy().clear();
+			if (pageCount < pageSize) {
+				break;
+			}
+			pageCursor = iterator.getCursor().toWebSafeString();
+		}
+		Metrics.add(EXPORTED, count);
+		return count;
+	}
+
+	private static Query<?> query(final Kind kind, final String city,
+			final String cursor) {
+		Query<?> query = ofy().load().type(kind.type);
+		if (city != null) {
+			query = query.filter(kind.cityProperty, city);
+		}
+		if (cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		}
+		return query;
+	}
+
+	/**
+	 * Returns the values of the columns of an entity.
+	 */
+	private static Object[] row(final Object entity) {
+		if (entity instanceof Offer) {
+			final Offer offer = (Offer) entity;
+			final GeoPt location = offer.getLocation();
+			return new Object[] { offer.getWebsafeKey(),
+					offer.getProviderKey().getString(),
+					offer.getProviderName(), offer.getProviderCity(),
+					offer.getTitle(), offer.getDescription(),
+					offer.getCuisine(), offer.getOfferDateNumber(),
+					offer.getPriceInUnit(), offer.getCurrencySymbol(),
+					offer.getMaximumQuantity(),
+					location == null ? null : location.getLatitude(),
+					location == null ? null : location.getLongitude() };
+		}
+		final Provider provider = (Provider) entity;
+		return new Object[] { provider.getWebsafeKey(), provider.getName(),
+				provider.getMainEmail(), provider.getStreetAddress1(),
+				provider.getStreetAddress2(), provider.getCity(),
+				provider.getStateCode(), provider.getZipCode(),
+				provider.getCountry(), provider.getMainPhone(),
+				provider.getLatitude(), provider.getLongitude() };
+	}
+
+	/**
+	 * Writes a row as a JSON object on its own line, without the null values.
+	 */
+	private static void writeJson(final String[] columns, final Object[] row,
+			final Writer writer) throws IOException {
+		// Not closed, that would close the writer.
+		final JsonWriter json = new JsonWriter(writer);
+		json.beginObject();
+		for (int i = 0; i < columns.length; i++) {
+			final Object value = row[i];
+			if (value instanceof Number) {
+				json.name(columns[i]).value((Number) value);
+			} else if (value != null) {
+				json.name(columns[i]).value(value.toString());
+			}
+		}
+		json.endObject();
+		json.flush();
+		writer.write('\n');
+	}
+
+	/**
+	 * Writes a row as a line of CSV, quoting the values when needed.
+	 */
+	private static void writeCsv(final Object[] row, final Writer writer)
+			throws IOException {
+		for (int i = 0; i < row.length; i++) {
+			if (i > 0) {
+				writer.write(',');
+			}
+			if (row[i] == null) {
+				continue;
+			}
+			final String value = row[i].toString();
+			if ((value.indexOf(',') >= 0) || (value.indexOf('"') >= 0)
+					|| (value.indexOf('\n') >= 0) || (value.indexOf('\r') >= 0)) {
+				writer.write('"');
+				writer.write(value.replace("\"", "\"\""));
+				writer.write('"');
+			} else {
+				writer.write(value);
+			}
+		}
+		writer.write("\r\n");
+	}
+}
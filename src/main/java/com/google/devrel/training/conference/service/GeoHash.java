@@ -0,0 +1,216 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Geohash helpers used for indexing and querying locations.
+ *
+ * Entities store the geohash of their location at every precision between
+ * MIN_PRECISION and MAX_PRECISION, so a search can use equality (or IN)
+ * filters on the handful of cells that cover the search radius instead of a
+ * range filter on a GeoPt.
+ */
+public final class GeoHash {
+
+	/**
+	 * The coarsest precision stored (a cell is roughly 5000km x 5000km).
+	 */
+	public static final int MIN_PRECISION = 1;
+
+	/**
+	 * The finest precision stored (a cell is roughly 1.2km x 0.6km).
+	 */
+	public static final int MAX_PRECISION = 6;
+
+	private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz"
+			.toCharArray();
+
+	private static final double KM_PER_DEGREE = 111.32;
+
+	/**
+	 * The highest latitude used when converting a radius into degrees of
+	 * longitude, so that the cosine never reaches zero.
+	 */
+	private static final double MAX_LATITUDE = 89.0;
+
+	private GeoHash() {
+	}
+
+	/**
+	 * Returns the geohash of the given location.
+	 *
+	 * @param latitude
+	 *            the latitude in degrees.
+	 * @param longitude
+	 *            the longitude in degrees.
+	 * @param precision
+	 *            the number of characters of the geohash.
+	 * @return the geohash of the location.
+	 */
+	public static String encode(final double latitude, final double longitude,
+			final int precision) {
+		return toHash(row(latitude, precision), column(longitude, precision),
+				precision);
+	}
+
+	/**
+	 * Returns the geohash cells containing the given location, from
+	 * MIN_PRECISION to MAX_PRECISION.
+	 *
+	 * @param latitude
+	 *            the latitude in degrees.
+	 * @param longitude
+	 *            the longitude in degrees.
+	 * @return a list of geohash cells, coarsest first.
+	 */
+	public static List<String> cells(final double latitude,
+			final double longitude) {
+		final String hash = encode(latitude, longitude, MAX_PRECISION);
+		final List<String> cells = new ArrayList<>(MAX_PRECISION
+				- MIN_PRECISION + 1);
+		for (int precision = MIN_PRECISION; precision <= MAX_PRECISION; precision++) {
+			cells.add(hash.substring(0, precision));
+		}
+		return cells;
+	}
+
+	/**
+	 * Returns the geohash cells that cover the circle of the given radius
+	 * around the given location.
+	 *
+	 * The finest precision whose cells are at least as large as the radius is
+	 * used, so the result never has more than 9 cells.
+	 *
+	 * @param latitude
+	 *            the latitude of the center in degrees.
+	 * @param longitude
+	 *            the longitude of the center in degrees.
+	 * @param radiusInKm
+	 *            the radius of the circle in km.
+	 * @return the covering cells, or an empty list when the radius is too
+	 *         large to be covered by cells.
+	 */
+	public static List<String> cover(final double latitude,
+			final double longitude, final double radiusInKm) {
+		final double deltaLatitude = radiusInKm / KM_PER_DEGREE;
+		final double farthestLatitude = Math.min(MAX_LATITUDE,
+				Math.abs(latitude) + deltaLatitude);
+		final double deltaLongitude = radiusInKm
+				/ (KM_PER_DEGREE * Math.cos(Math.toRadians(farthestLatitude)));
+
+		int precision = MAX_PRECISION;
+		while ((precision >= MIN_PRECISION)
+				&& ((cellHeight(precision) < deltaLatitude) || (cellWidth(precision) < deltaLongitude))) {
+			precision--;
+		}
+		if (precision < MIN_PRECISION) {
+			return new ArrayList<>(0);
+		}
+
+		final long rowMin = row(latitude - deltaLatitude, precision);
+		final long rowMax = row(latitude + deltaLatitude, precision);
+		final long columns = 1L << longitudeBits(precision);
+		final long columnMin = (long) Math
+				.floor(((longitude - deltaLongitude) + 180) / cellWidth(precision));
+		final long columnMax = (long) Math
+				.floor(((longitude + deltaLongitude) + 180) / cellWidth(precision));
+
+		final Set<String> cells = new LinkedHashSet<>();
+		for (long row = rowMin; row <= rowMax; row++) {
+			for (long column = columnMin; column <= columnMax; column++) {
+				cells.add(toHash(row, ((column % columns) + columns) % columns,
+						precision));
+			}
+		}
+		return new ArrayList<>(cells);
+	}
+
+	/**
+	 * Returns the center of the geohash cell containing the given location.
+	 *
+	 * @param latitude
+	 *            the latitude in degrees.
+	 * @param longitude
+	 *            the longitude in degrees.
+	 * @param precision
+	 *            the number of characters of the geohash of the cell.
+	 * @return the latitude and the longitude of the center in degrees.
+	 */
+	public static double[] center(final double latitude,
+			final double longitude, final int precision) {
+		return new double[] {
+				((row(latitude, precision) + 0.5) * cellHeight(precision)) - 90,
+				((column(longitude, precision) + 0.5) * cellWidth(precision)) - 180 };
+	}
+
+	/**
+	 * Returns an upper bound of the distance from the center of a cell to
+	 * any location in the cell.
+	 *
+	 * @param precision
+	 *            the number of characters of the geohash of the cell.
+	 * @return the distance in km.
+	 */
+	public static double halfDiagonalInKm(final int precision) {
+		return (KM_PER_DEGREE / 2)
+				* Math.hypot(cellHeight(precision), cellWidth(precision));
+	}
+
+	private static int latitudeBits(final int precision) {
+		return (5 * precision) / 2;
+	}
+
+	private static int longitudeBits(final int precision) {
+		return (5 * precision) - latitudeBits(precision);
+	}
+
+	private static double cellHeight(final int precision) {
+		return 180.0 / (1L << latitudeBits(precision));
+	}
+
+	private static double cellWidth(final int precision) {
+		return 360.0 / (1L << longitudeBits(precision));
+	}
+
+	private static long row(final double latitude, final int precision) {
+		final long rows = 1L << latitudeBits(precision);
+		final long row = (long) Math.floor(((latitude + 90) / 180) * rows);
+		return Math.max(0, Math.min(rows - 1, row));
+	}
+
+	private static long column(final double longitude, final int precision) {
+		final long columns = 1L << longitudeBits(precision);
+		final long column = (long) Math.floor(((longitude + 180) / 360)
+				* columns);
+		return ((column % columns) + columns) % columns;
+	}
+
+	/**
+	 * Interleaves the bits of the column (longitude) and row (latitude),
+	 * starting with the longitude, and encodes them in base 32.
+	 */
+	private static String toHash(final long row, final long column,
+			final int precision) {
+		final int latitudeBits = latitudeBits(precision);
+		final int longitudeBits = longitudeBits(precision);
+		final StringBuilder hash = new StringBuilder(precision);
+		int value = 0;
+		for (int bit = 0; bit < (5 * precision); bit++) {
+			final long source;
+			if ((bit % 2) == 0) {
+				source = column >> (longitudeBits - 1 - (bit / 2));
+			} else {
+				source = row >> (latitudeBits - 1 - (bit / 2));
+			}
+			value = (value << 1) | (int) (source & 1);
+			if ((bit % 5) == 4) {
+				hash.append(BASE32[value]);
+				value = 0;
+			}
+		}
+		return hash.toString();
+	}
+}
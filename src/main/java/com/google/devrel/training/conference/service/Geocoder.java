@@ -0,0 +1,25 @@
+package com.google.devrel.training.conference.service;
+
+import java.io.IOException;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+/**
+ * Turns a postal address into a location.
+ *
+ * Implementations may call remote services, so they must not be used inside
+ * datastore transactions.
+ */
+public interface Geocoder {
+
+	/**
+	 * Returns the location of the given address.
+	 *
+	 * @param address
+	 *            the postal address, in a single line.
+	 * @return the location, or null when the address is not found.
+	 * @throws IOException
+	 *             when the geocoder can't be reached, the caller may retry.
+	 */
+	GeoPt geocode(String address) throws IOException;
+}
@@ -0,0 +1,32 @@
+package com.google.devrel.training.conference.service;
+
+/**
+ * Holds the Geocoder this application should use.
+ */
+public class GeocoderService {
+
+	private static volatile Geocoder geocoder = new CachingGeocoder(
+			new GoogleGeocoder());
+
+	private GeocoderService() {
+	}
+
+	/**
+	 * Returns the current Geocoder.
+	 *
+	 * @return the Geocoder, a cached GoogleGeocoder unless it was replaced.
+	 */
+	public static Geocoder geocoder() {
+		return geocoder;
+	}
+
+	/**
+	 * Replaces the Geocoder, for instance with a stub in tests.
+	 *
+	 * @param geocoder
+	 *            the new Geocoder.
+	 */
+	public static void setGeocoder(final Geocoder geocoder) {
+		GeocoderService.geocoder = geocoder;
+	}
+}
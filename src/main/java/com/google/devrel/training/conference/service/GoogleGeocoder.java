@@ -0,0 +1,35 @@
+package com.google.devrel.training.conference.service;
+
+import java.io.IOException;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.code.geocoder.GeocoderRequestBuilder;
+import com.google.code.geocoder.model.GeocodeResponse;
+import com.google.code.geocoder.model.GeocoderRequest;
+import com.google.code.geocoder.model.GeocoderResult;
+import com.google.code.geocoder.model.LatLng;
+
+/**
+ * A Geocoder backed by the Google Geocoding API.
+ */
+public class GoogleGeocoder implements Geocoder {
+
+	private final com.google.code.geocoder.Geocoder geocoder = new com.google.code.geocoder.Geocoder();
+
+	@Override
+	public GeoPt geocode(final String address) throws IOException {
+		final GeocoderRequest geocoderRequest = new GeocoderRequestBuilder()
+				.setAddress(address).setLanguage("en").getGeocoderRequest();
+		final GeocodeResponse geocoderResponse = this.geocoder
+				.geocode(geocoderRequest);
+		if ((geocoderResponse.getResults() == null)
+				|| geocoderResponse.getResults().isEmpty()) {
+			return null;
+		}
+		final GeocoderResult geocoderResult = geocoderResponse.getResults()
+				.get(0);
+		final LatLng latLng = geocoderResult.getGeometry().getLocation();
+		return new GeoPt(latLng.getLat().floatValue(), latLng.getLng()
+				.floatValue());
+	}
+}
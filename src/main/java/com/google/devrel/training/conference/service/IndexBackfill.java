@@ -0,0 +1,199 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Saves the Offers and the Providers again, so that the properties indexed
+ * after they were saved get their index entries.
+ *
+ * The datastore only writes the index entries of an entity when it is put,
+ * so the Offers saved before providerName and inventorySharded were indexed
+ * are missing from the projection queries of queryOfferSummaries, and the Offers and Providers
+ * saved before providerCity and city were indexed are missing from the
+ * exports by city, until they are saved again. An admin starts a chain of
+ * tasks per kind once after deploying such a change. Each task reads the
+ * keys of a batch of entities, saves them again in one transaction per
+ * entity group, and enqueues the next batch with the query cursor. The
+ * Offers saved before they kept the city of their Provider get it on the
+ * way. Saving an entity again changes nothing else, so a task may run twice.
+ */
+public class IndexBackfill {
+
+	/**
+	 * The kinds of entities saved again.
+	 */
+	public static enum Kind {
+		OFFERS(Offer.class), PROVIDERS(Provider.class);
+
+		private final Class<?> type;
+
+		private Kind(final Class<?> type) {
+			this.type = type;
+		}
+	}
+
+	private static final Logger LOG = Logger.getLogger(IndexBackfill.class
+			.getName());
+
+	public static final String TASK_URL = "/tasks/backfill_indexes";
+
+	public static final String RUN_PARAM = "run";
+
+	public static final String KIND_PARAM = "kind";
+
+	public static final String CURSOR_PARAM = "cursor";
+
+	public static final String BATCH_PARAM = "batch";
+
+	/**
+	 * The number of entities saved by one task.
+	 */
+	public static final int BATCH_SIZE = 100;
+
+	public static final String RESAVED = "backfill.resaved";
+
+	private static final TransactionRunner RESAVE_TX = new TransactionRunner(
+			"resaveEntities");
+
+	private IndexBackfill() {
+	}
+
+	/**
+	 * Starts a chain of tasks per kind, saving all the entities again.
+	 */
+	public static void start() {
+		final String run = String.valueOf(System.currentTimeMillis());
+		for (final Kind kind : Kind.values()) {
+			enqueue(run, kind, null, 0);
+		}
+	}
+
+	/**
+	 * Enqueues the task saving a batch of entities again. The tasks are named
+	 * after the run, the kind and the batch, so that a batch is enqueued once
+	 * even if a task runs again.
+	 *
+	 * @param run
+	 *            the id of the chains of tasks.
+	 * @param kind
+	 *            the kind of the entities.
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @param batch
+	 *            the number of the batch, from 0.
+	 */
+	public static void enqueue(final String run, final Kind kind,
+			final String cursor, final int batch) {
+		final TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+				.taskName("backfill-" + run + "-" + kind.name().toLowerCase()
+						+ "-" + batch).param(RUN_PARAM, run)
+				.param(KIND_PARAM, kind.name())
+				.param(BATCH_PARAM, String.valueOf(batch));
+		if (cursor != null) {
+			task.param(CURSOR_PARAM, cursor);
+		}
+		final Queue queue = QueueFactory.getDefaultQueue();
+		try {
+			queue.add(task);
+		} catch (final TaskAlreadyExistsException e) {
+			LOG.info("Batch " + batch + " of " + kind + " is already enqueued");
+		}
+	}
+
+	/**
+	 * Saves a batch of entities again.
+	 *
+	 * @param kind
+	 *            the kind of the entities.
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @return the cursor after this batch, null if it is the last one.
+	 */
+	public static String resaveBatch(final Kind kind, final String cursor) {
+		Query<?> query = ofy().load().type(kind.type).limit(BATCH_SIZE);
+		if (cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		}
+		final QueryResultIterator<? extends Key<?>> iterator = query.keys()
+				.iterator();
+		final Map<Key<?>, List<Key<?>>> groups = new LinkedHashMap<>();
+		int count = 0;
+		while (iterator.hasNext()) {
+			final Key<?> key = iterator.next();
+			if (!groups.containsKey(key.getRoot())) {
+				groups.put(key.getRoot(), new ArrayList<Key<?>>());
+			}
+			groups.get(key.getRoot()).add(key);
+			count++;
+		}
+		final String nextCursor = count < BATCH_SIZE ? null : iterator
+				.getCursor().toWebSafeString();
+
+		// Concurrent purchases and updates change the entities, so each
+		// group is loaded and saved in a transaction.
+		for (final List<Key<?>> keys : groups.values()) {
+			RESAVE_TX.run(new Work<Void>() {
+				@Override
+				public Void run() {
+					resave(keys);
+					return null;
+				}
+			}, keys.get(0));
+		}
+		Metrics.add(RESAVED, count);
+		return nextCursor;
+	}
+
+	/**
+	 * Loads and saves the given entities of one entity group, in the current
+	 * transaction.
+	 */
+	private static void resave(final List<Key<?>> keys) {
+		// The Provider of an Offer is its parent, in the same group.
+		final Set<Key<Object>> loadKeys = new LinkedHashSet<>();
+		for (final Key<?> key : keys) {
+			loadKeys.add(Key.<Object> create(key.getString()));
+			if (key.getKind().equals("Offer")) {
+				loadKeys.add(Key.<Object> create(key.getParent().getString()));
+			}
+		}
+		final Map<Key<Object>, Object> loaded = ofy().load().keys(loadKeys);
+		final List<Object> entities = new ArrayList<>(keys.size());
+		for (final Key<?> key : keys) {
+			final Object entity = loaded.get(key);
+			if (entity == null) {
+				continue;
+			}
+			if (entity instanceof Offer) {
+				final Offer offer = (Offer) entity;
+				final Provider provider = (Provider) loaded.get(key
+						.getParent());
+				if ((offer.getProviderCity() == null) && (provider != null)) {
+					offer.setProviderCity(provider.getCity());
+				}
+			}
+			entities.add(entity);
+		}
+		OfyService.save(entities);
+	}
+}
@@ -0,0 +1,909 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Preconditions;
+import com.google.devrel.training.conference.domain.CheckoutResult;
+import com.google.devrel.training.conference.domain.InventoryShard;
+import com.google.devrel.training.conference.domain.Offer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+/**
+ * Keeps the available quantity of Offers in InventoryShards.
+ *
+ * An Offer is in the entity group of its Provider, so buying it directly
+ * allows about one purchase per second for all the offers of a Provider. On
+ * the first purchase which conflicts on the Offer, its available quantity
+ * is moved to SHARD_COUNT root InventoryShards, so only the Offers in demand
+ * pay for the shards. A purchase then only needs a transaction on one shard
+ * picked at random among the shards having enough quantity, and falls back to
+ * a cross-group transaction on the Offer and all of its shards when no single
+ * shard has enough.
+ *
+ * The aggregate available quantity is cached in memcache, and kept up to date
+ * with atomic increments on purchases and returns. The Offers saved here are
+ * put in the OfferIndex once committed, the searches count the quantity of
+ * the sharded ones from the cache.
+ */
+public class InventoryCounter {
+
+	private static final Logger LOG = Logger.getLogger(InventoryCounter.class
+			.getName());
+
+	/**
+	 * The number of shards per Offer. A cross-group transaction on the Offer
+	 * and all of its shards must stay within the limit of 5 entity groups.
+	 */
+	public static final int SHARD_COUNT = 4;
+
+	private static final int MEMCACHE_EXPIRATION_SECONDS = 60;
+
+	private static final String MEMCACHE_KEY_PREFIX = "inventory:";
+
+	public static final String DIRECT_PURCHASE = "inventory.direct.purchase";
+
+	public static final String SHARD_PURCHASE = "inventory.shard.purchase";
+
+	public static final String FALLBACK_PURCHASE = "inventory.fallback.purchase";
+
+	public static final String CACHE_HIT = "inventory.cache.hit";
+
+	public static final String CACHE_MISS = "inventory.cache.miss";
+
+	public static final String CHECKOUT = "inventory.checkout";
+
+	/**
+	 * The most entity groups a cross-group transaction may operate on.
+	 */
+	public static final int MAX_ENTITY_GROUPS = 5;
+
+	private static final int CHECKOUT_ATTEMPTS = 3;
+
+	/**
+	 * A conflicting purchase on an Offer which is not sharded shards it
+	 * instead of retrying.
+	 */
+	private static final TransactionRunner DIRECT_PURCHASE_TX = new TransactionRunner(
+			"purchaseUnshardedOffer", 1, 0, 0);
+
+	/**
+	 * A conflicting purchase on a shard moves on to another shard instead of
+	 * retrying.
+	 */
+	private static final TransactionRunner SHARD_PURCHASE_TX = new TransactionRunner(
+			"purchaseShard", 1, 0, 0);
+
+	private static final TransactionRunner PURCHASE_TX = new TransactionRunner(
+			"purchaseOffer", 10, 20, 1000);
+
+	private static final TransactionRunner GIVEBACK_TX = new TransactionRunner(
+			"returnOffer");
+
+	private static final TransactionRunner CHECKOUT_TX = new TransactionRunner(
+			"checkout");
+
+	private static final TransactionRunner SHARD_TX = new TransactionRunner(
+			"shardInventory");
+
+	private static final Random RANDOM = new Random();
+
+	private InventoryCounter() {
+	}
+
+	/**
+	 * Returns the available quantity of the given Offer, in its shards and
+	 * not yet sharded.
+	 *
+	 * The result may be a few seconds stale, the purchase methods check the
+	 * quantities transactionally.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @return the available quantity, null if there is no such Offer.
+	 */
+	public static Integer getAvailableQuantity(final Key<Offer> offerKey) {
+		return getAvailableQuantities(Collections.singletonList(offerKey)).get(
+				offerKey);
+	}
+
+	/**
+	 * Returns the available quantities of the given Offers, in their shards
+	 * and not yet sharded, with one batch read from memcache and one from the
+	 * datastore for the quantities which are not cached.
+	 *
+	 * The results may be a few seconds stale, the purchase methods check the
+	 * quantities transactionally.
+	 *
+	 * @param offerKeys
+	 *            the keys of the Offers.
+	 * @return the available quantity of each Offer, without the Offers which
+	 *         don't exist.
+	 */
+	public static Map<Key<Offer>, Integer> getAvailableQuantities(
+			final Collection<Key<Offer>> offerKeys) {
+		final Map<Key<Offer>, Integer> quantities = new HashMap<>();
+		if (offerKeys.isEmpty()) {
+			return quantities;
+		}
+		final MemcacheService memcache = MemcacheServiceFactory
+				.getMemcacheService();
+		final Map<String, Key<Offer>> memcacheKeys = new HashMap<>();
+		for (final Key<Offer> offerKey : offerKeys) {
+			memcacheKeys.put(memcacheKey(offerKey), offerKey);
+		}
+		try {
+			for (final Map.Entry<String, Object> cached : memcache.getAll(
+					memcacheKeys.keySet()).entrySet()) {
+				quantities.put(memcacheKeys.get(cached.getKey()),
+						((Long) cached.getValue()).intValue());
+			}
+		} catch (final RuntimeException e) {
+			// Memcache is only a cache, fall back to the datastore.
+			LOG.log(Level.WARNING, "Failed to read the cached quantities", e);
+		}
+		Metrics.add(CACHE_HIT, quantities.size());
+
+		final List<Key<Offer>> misses = new ArrayList<>();
+		final List<Key<Object>> keys = new ArrayList<>();
+		for (final Key<Offer> offerKey : memcacheKeys.values()) {
+			if (!quantities.containsKey(offerKey)) {
+				misses.add(offerKey);
+				keys.add(Key.<Object> create(offerKey.getString()));
+				for (final Key<InventoryShard> shardKey : shardKeys(offerKey)) {
+					keys.add(Key.<Object> create(shardKey.getString()));
+				}
+			}
+		}
+		if (misses.isEmpty()) {
+			return quantities;
+		}
+		Metrics.add(CACHE_MISS, misses.size());
+		// A new session, the purchases of other requests don't go through
+		// the session cache of this one.
+		final Map<Key<Object>, Object> entities = ofy().factory().begin()
+				.load().keys(keys);
+		final Map<String, Long> loaded = new HashMap<>();
+		for (final Key<Offer> offerKey : misses) {
+			final Offer offer = (Offer) entities.get(offerKey);
+			if (offer == null) {
+				continue;
+			}
+			int availableQuantity = offer.getUnshardedQuantity();
+			for (final Key<InventoryShard> shardKey : shardKeys(offerKey)) {
+				final InventoryShard shard = (InventoryShard) entities
+						.get(shardKey);
+				if (shard != null) {
+					availableQuantity += shard.getAvailableQuantity();
+				}
+			}
+			quantities.put(offerKey, availableQuantity);
+			loaded.put(memcacheKey(offerKey), (long) availableQuantity);
+		}
+		try {
+			// Doesn't overwrite the values set by concurrent purchases.
+			memcache.putAll(loaded,
+					Expiration.byDeltaSeconds(MEMCACHE_EXPIRATION_SECONDS),
+					SetPolicy.ADD_ONLY_IF_NOT_PRESENT);
+		} catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to write the cached quantities", e);
+		}
+		return quantities;
+	}
+
+	/**
+	 * Counts the available quantities of the given Offers whose inventory is
+	 * sharded, which they don't hold themselves.
+	 *
+	 * @param offers
+	 *            the Offers, as returned by the read endpoints.
+	 */
+	public static void countAvailableQuantities(
+			final Collection<Offer> offers) {
+		final List<Key<Offer>> offerKeys = new ArrayList<>();
+		for (final Offer offer : offers) {
+			if (offer.isInventorySharded()) {
+				offerKeys.add(Key.create(offer));
+			}
+		}
+		final Map<Key<Offer>, Integer> quantities = getAvailableQuantities(offerKeys);
+		for (final Offer offer : offers) {
+			if (offer.isInventorySharded()) {
+				offer.setCountedQuantity(quantities.get(Key.create(offer)));
+			}
+		}
+	}
+
+	/**
+	 * Loads the shards of the given Offer, in the current transaction.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @return the shards, empty if the inventory is not sharded.
+	 */
+	public static List<InventoryShard> loadShards(final Key<Offer> offerKey) {
+		return new ArrayList<>(ofy().load().keys(shardKeys(offerKey)).values());
+	}
+
+	/**
+	 * Returns the quantity held by the given shards.
+	 *
+	 * @param shards
+	 *            the shards of an Offer.
+	 * @return the sum of their available quantities.
+	 */
+	public static int getQuantity(final List<InventoryShard> shards) {
+		int quantity = 0;
+		for (final InventoryShard shard : shards) {
+			quantity += shard.getAvailableQuantity();
+		}
+		return quantity;
+	}
+
+	/**
+	 * Takes the given quantity from the given shards, when the maximum
+	 * quantity of their Offer is lowered. The caller saves the shards.
+	 *
+	 * @param shards
+	 *            the shards of an Offer.
+	 * @param quantity
+	 *            the quantity to take, at most the quantity they hold.
+	 */
+	public static void takeFromShards(final List<InventoryShard> shards,
+			final int quantity) {
+		int remaining = quantity;
+		for (final InventoryShard shard : shards) {
+			final int fromShard = Math.min(remaining,
+					shard.getAvailableQuantity());
+			if (fromShard > 0) {
+				shard.take(fromShard);
+				remaining -= fromShard;
+			}
+		}
+		Preconditions.checkArgument(remaining == 0,
+				"The shards don't hold the quantity to take");
+	}
+
+	/**
+	 * Buys the given quantity of the given Offer.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @param quantity
+	 *            the quantity to buy.
+	 * @return true when bought, false if there is no such Offer.
+	 * @throws IllegalArgumentException
+	 *             when there is not enough quantity available.
+	 */
+	public static boolean purchase(final Key<Offer> offerKey,
+			final int quantity) {
+		Preconditions.checkArgument(quantity > 0,
+				"The quantity must be greater than zero");
+		final List<Key<InventoryShard>> shardKeys = shardKeys(offerKey);
+		Map<Key<InventoryShard>, InventoryShard> shards = ofy().factory()
+				.begin().load().keys(shardKeys);
+		if (shards.isEmpty()) {
+			Offer offer;
+			try {
+				offer = purchaseUnsharded(offerKey, quantity);
+			} catch (final ConcurrentModificationException e) {
+				// The Offer is in demand, buys from its shards from now on.
+				offer = shardInventory(offerKey);
+			}
+			if (offer == null) {
+				return false;
+			}
+			if (!offer.isInventorySharded()) {
+				Metrics.increment(DIRECT_PURCHASE);
+				reindex(offer);
+				adjustCachedQuantity(offerKey, -quantity);
+				return true;
+			}
+			shards = ofy().factory().begin().load().keys(shardKeys);
+		}
+
+		// Tries the shards having enough quantity, from a random one.
+		final int start = RANDOM.nextInt(SHARD_COUNT);
+		for (int i = 0; i < SHARD_COUNT; i++) {
+			final Key<InventoryShard> shardKey = shardKeys.get((start + i)
+					% SHARD_COUNT);
+			final InventoryShard shard = shards.get(shardKey);
+			if ((shard == null) || (shard.getAvailableQuantity() < quantity)) {
+				continue;
+			}
+			try {
+				if (takeFromShard(shardKey, quantity)) {
+					Metrics.increment(SHARD_PURCHASE);
+					adjustCachedQuantity(offerKey, -quantity);
+					return true;
+				}
+			} catch (final ConcurrentModificationException e) {
+				// Another buyer got the shard, tries the next one.
+			}
+		}
+
+		// No single shard has enough, takes from all of them at once.
+		final boolean found = PURCHASE_TX.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				final Offer offer = ofy().load().key(offerKey).now();
+				if (offer == null) {
+					return false;
+				}
+				final Map<Key<InventoryShard>, InventoryShard> shards = ofy()
+						.load().keys(shardKeys);
+				int availableQuantity = offer.getUnshardedQuantity();
+				for (final InventoryShard shard : shards.values()) {
+					availableQuantity += shard.getAvailableQuantity();
+				}
+				if (availableQuantity < quantity) {
+					throw new IllegalArgumentException(
+							"There are not enough quantity available.");
+				}
+				int remaining = quantity;
+				final List<Object> changed = new ArrayList<>();
+				final int fromOffer = Math.min(remaining,
+						offer.getUnshardedQuantity());
+				if (fromOffer > 0) {
+					offer.buyOffer(fromOffer);
+					remaining -= fromOffer;
+					changed.add(offer);
+				}
+				for (final InventoryShard shard : shards.values()) {
+					if (remaining == 0) {
+						break;
+					}
+					final int fromShard = Math.min(remaining,
+							shard.getAvailableQuantity());
+					if (fromShard > 0) {
+						shard.take(fromShard);
+						remaining -= fromShard;
+						changed.add(shard);
+					}
+				}
+				OfyService.save(changed);
+				return true;
+			}
+		}, entityGroupKeys(offerKey, shardKeys));
+		if (found) {
+			Metrics.increment(FALLBACK_PURCHASE);
+			adjustCachedQuantity(offerKey, -quantity);
+		}
+		return found;
+	}
+
+	/**
+	 * Gives back the given quantity of the given Offer.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @param quantity
+	 *            the quantity to give back.
+	 * @return true when given back, false if there is no such Offer.
+	 * @throws IllegalArgumentException
+	 *             when the available quantity would exceed the maximum
+	 *             quantity.
+	 */
+	public static boolean giveback(final Key<Offer> offerKey,
+			final int quantity) {
+		Preconditions.checkArgument(quantity > 0,
+				"The quantity must be greater than zero");
+		final List<Key<InventoryShard>> shardKeys = shardKeys(offerKey);
+		// Returns are rare, so they always check the total quantity.
+		final Offer givenBack = GIVEBACK_TX.run(new Work<Offer>() {
+			@Override
+			public Offer run() {
+				final Offer offer = ofy().load().key(offerKey).now();
+				if (offer == null) {
+					return null;
+				}
+				if (!offer.isInventorySharded()) {
+					offer.givebackOffer(quantity);
+					OfyService.save(offer);
+					return offer;
+				}
+				final Map<Key<InventoryShard>, InventoryShard> shards = ofy()
+						.load().keys(shardKeys);
+				int availableQuantity = offer.getUnshardedQuantity();
+				for (final InventoryShard shard : shards.values()) {
+					availableQuantity += shard.getAvailableQuantity();
+				}
+				if ((availableQuantity + quantity) > offer
+						.getMaximumQuantity()) {
+					throw new IllegalArgumentException(
+							"The quantity of offer will exceed the maximum quantity.");
+				}
+				final InventoryShard shard = shards.get(shardKeys.get(RANDOM
+						.nextInt(SHARD_COUNT)));
+				shard.giveback(quantity);
+				ofy().save().entity(shard).now();
+				return offer;
+			}
+		}, entityGroupKeys(offerKey, shardKeys));
+		if (givenBack == null) {
+			return false;
+		}
+		if (!givenBack.isInventorySharded()) {
+			reindex(givenBack);
+		}
+		adjustCachedQuantity(offerKey, quantity);
+		return true;
+	}
+
+	/**
+	 * Reserves the given quantities of the given Offers in a single
+	 * cross-group transaction, all or nothing.
+	 *
+	 * The Offers and their shards are read first in one batch, to pick the
+	 * entities to take from: an Offer which is not sharded needs the entity
+	 * group of its Provider, a sharded one the non empty shards with the most
+	 * quantity until its quantity is covered, and its Provider group only for
+	 * the rest not sharded yet. An item which can't be covered fails the
+	 * checkout without a transaction. The transaction then loads and saves
+	 * the picked entities in one batch each. When the inventory changed in
+	 * the meantime, the entities are picked again.
+	 *
+	 * @param quantities
+	 *            the quantity of each Offer, in the order of the cart.
+	 * @return the outcome of each item.
+	 * @throws IllegalArgumentException
+	 *             when the Offers need more than MAX_ENTITY_GROUPS entity
+	 *             groups.
+	 * @throws ConcurrentModificationException
+	 *             when the inventory keeps changing during the checkout.
+	 */
+	public static CheckoutResult reserve(final Map<Key<Offer>, Integer> quantities) {
+		for (final int quantity : quantities.values()) {
+			Preconditions.checkArgument(quantity > 0,
+					"The quantity must be greater than zero");
+		}
+		for (int attempt = 1;; attempt++) {
+			final CheckoutPlan plan = new CheckoutPlan(quantities);
+			final CheckoutResult failed = plan.getFailedResult();
+			if (failed != null) {
+				return failed;
+			}
+			final CheckoutResult result = CHECKOUT_TX.run(
+					new Work<CheckoutResult>() {
+						@Override
+						public CheckoutResult run() {
+							return plan.reserve();
+						}
+					}, plan.getKeys());
+			if (result != null) {
+				if (result.isReserved()) {
+					Metrics.increment(CHECKOUT);
+					for (final Offer offer : plan.changedOffers) {
+						reindex(offer);
+					}
+					for (final Map.Entry<Key<Offer>, Integer> entry : quantities
+							.entrySet()) {
+						adjustCachedQuantity(entry.getKey(), -entry.getValue());
+					}
+				}
+				return result;
+			}
+			if (attempt == CHECKOUT_ATTEMPTS) {
+				throw new ConcurrentModificationException(
+						"The inventory keeps changing during the checkout");
+			}
+		}
+	}
+
+	/**
+	 * Drops the cached available quantity of the given Offer, after it was
+	 * changed by other means than purchases and returns.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 */
+	public static void invalidate(final Key<Offer> offerKey) {
+		final String memcacheKey = memcacheKey(offerKey);
+		try {
+			MemcacheServiceFactory.getMemcacheService().delete(memcacheKey);
+		} catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to delete " + memcacheKey, e);
+		}
+	}
+
+	/**
+	 * Moves the available quantity of the given Offer to its shards, unless
+	 * it already is. The purchases do it once they conflict on the Offer.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 * @return the sharded Offer, null if there is no such Offer.
+	 */
+	public static Offer shardInventory(final Key<Offer> offerKey) {
+		final Offer sharded = SHARD_TX.run(new Work<Offer>() {
+			@Override
+			public Offer run() {
+				final Offer offer = ofy().load().key(offerKey).now();
+				if ((offer == null) || offer.isInventorySharded()) {
+					return offer;
+				}
+				final int[] quantities = offer.shardInventory(SHARD_COUNT);
+				final List<Object> entities = new ArrayList<>();
+				entities.add(offer);
+				for (int i = 0; i < SHARD_COUNT; i++) {
+					entities.add(new InventoryShard(offerKey, i, quantities[i]));
+				}
+				OfyService.save(entities);
+				return offer;
+			}
+		}, entityGroupKeys(offerKey, shardKeys(offerKey)));
+		if (sharded != null) {
+			// The index must count the quantity from the shards from now on.
+			reindex(sharded);
+		}
+		return sharded;
+	}
+
+	/**
+	 * Buys the given quantity of the given Offer itself, unless its inventory
+	 * is sharded.
+	 *
+	 * @return the Offer, bought from unless it is sharded, null if there is
+	 *         no such Offer.
+	 */
+	private static Offer purchaseUnsharded(final Key<Offer> offerKey,
+			final int quantity) {
+		return DIRECT_PURCHASE_TX.run(new Work<Offer>() {
+			@Override
+			public Offer run() {
+				final Offer offer = ofy().load().key(offerKey).now();
+				if ((offer != null) && !offer.isInventorySharded()) {
+					offer.buyOffer(quantity);
+					OfyService.save(offer);
+				}
+				return offer;
+			}
+		}, offerKey);
+	}
+
+	/**
+	 * Takes the given quantity from the given shard.
+	 *
+	 * @return false if the shard no longer has enough quantity.
+	 */
+	private static boolean takeFromShard(final Key<InventoryShard> shardKey,
+			final int quantity) {
+		return SHARD_PURCHASE_TX.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				final InventoryShard shard = ofy().load().key(shardKey).now();
+				if ((shard == null) || (shard.getAvailableQuantity() < quantity)) {
+					return false;
+				}
+				shard.take(quantity);
+				ofy().save().entity(shard).now();
+				return true;
+			}
+		}, shardKey);
+	}
+
+	/**
+	 * The entities a checkout takes its quantities from.
+	 */
+	private static class CheckoutPlan {
+
+		private final Map<Key<Offer>, Integer> quantities;
+
+		/**
+		 * The Offers to take quantity from, the ones not sharded and the
+		 * sharded ones whose picked shards don't have enough.
+		 */
+		private final Set<Key<Offer>> offerKeys = new HashSet<>();
+
+		/**
+		 * The shards to take quantity from, per sharded Offer.
+		 */
+		private final Map<Key<Offer>, List<Key<InventoryShard>>> shardKeys = new HashMap<>();
+
+		/**
+		 * The quantity in the shards which were not picked, per sharded
+		 * Offer.
+		 */
+		private final Map<Key<Offer>, Integer> otherQuantities = new HashMap<>();
+
+		/**
+		 * The outcome of the items which can't be reserved, as seen before
+		 * the transaction.
+		 */
+		private final Map<Key<Offer>, CheckoutResult.Item> failedItems = new HashMap<>();
+
+		/**
+		 * The quantity available of each Offer, as seen before the
+		 * transaction.
+		 */
+		private final Map<Key<Offer>, Integer> availableQuantities = new HashMap<>();
+
+		/**
+		 * The Offers the last reserve took quantity from, to put in the
+		 * OfferIndex once committed.
+		 */
+		private final List<Offer> changedOffers = new ArrayList<>();
+
+		private CheckoutPlan(final Map<Key<Offer>, Integer> quantities) {
+			this.quantities = quantities;
+			final List<Key<Object>> keys = new ArrayList<>();
+			for (final Key<Offer> offerKey : quantities.keySet()) {
+				keys.add(Key.<Object> create(offerKey.getString()));
+				for (final Key<InventoryShard> shardKey : shardKeys(offerKey)) {
+					keys.add(Key.<Object> create(shardKey.getString()));
+				}
+			}
+			final Map<Key<Object>, Object> entities = ofy().factory().begin()
+					.load().keys(keys);
+
+			final Set<Key<?>> entityGroups = new HashSet<>();
+			for (final Map.Entry<Key<Offer>, Integer> entry : quantities
+					.entrySet()) {
+				final Key<Offer> offerKey = entry.getKey();
+				final int quantity = entry.getValue();
+				final Offer offer = (Offer) entities.get(offerKey);
+				if (offer == null) {
+					this.failedItems.put(offerKey, new CheckoutResult.Item(
+							offerKey.getString(), quantity,
+							CheckoutResult.Status.NOT_FOUND, null));
+					continue;
+				}
+				// The empty shards have nothing to take from.
+				final List<InventoryShard> offerShards = new ArrayList<>();
+				int availableQuantity = offer.getUnshardedQuantity();
+				for (final Key<InventoryShard> shardKey : shardKeys(offerKey)) {
+					final InventoryShard shard = (InventoryShard) entities
+							.get(shardKey);
+					if ((shard != null) && (shard.getAvailableQuantity() > 0)) {
+						offerShards.add(shard);
+						availableQuantity += shard.getAvailableQuantity();
+					}
+				}
+				this.availableQuantities.put(offerKey, availableQuantity);
+				if (availableQuantity < quantity) {
+					this.failedItems.put(offerKey, new CheckoutResult.Item(
+							offerKey.getString(), quantity,
+							CheckoutResult.Status.NOT_ENOUGH_QUANTITY,
+							availableQuantity));
+					continue;
+				}
+				if (!offer.isInventorySharded()) {
+					this.offerKeys.add(offerKey);
+					entityGroups.add(offerKey.getRoot());
+					continue;
+				}
+				Collections.sort(offerShards, new Comparator<InventoryShard>() {
+					@Override
+					public int compare(final InventoryShard shard1,
+							final InventoryShard shard2) {
+						return shard2.getAvailableQuantity()
+								- shard1.getAvailableQuantity();
+					}
+				});
+				final List<Key<InventoryShard>> picked = new ArrayList<>();
+				int pickedQuantity = 0;
+				int otherQuantity = 0;
+				for (final InventoryShard shard : offerShards) {
+					if (pickedQuantity < quantity) {
+						picked.add(Key.create(shard));
+						pickedQuantity += shard.getAvailableQuantity();
+					} else {
+						otherQuantity += shard.getAvailableQuantity();
+					}
+				}
+				this.shardKeys.put(offerKey, picked);
+				this.otherQuantities.put(offerKey, otherQuantity);
+				entityGroups.addAll(picked);
+				if (pickedQuantity < quantity) {
+					// The rest is not sharded yet.
+					this.offerKeys.add(offerKey);
+					entityGroups.add(offerKey.getRoot());
+				}
+			}
+			if (this.failedItems.isEmpty()
+					&& (entityGroups.size() > MAX_ENTITY_GROUPS)) {
+				throw new IllegalArgumentException("The cart needs "
+						+ entityGroups.size() + " entity groups, at most "
+						+ MAX_ENTITY_GROUPS + " can be checked out at once");
+			}
+		}
+
+		/**
+		 * Returns the outcome of the checkout when some items can't be
+		 * reserved, without a transaction.
+		 *
+		 * @return the outcome of each item, null if all the items may be
+		 *         reserved.
+		 */
+		private CheckoutResult getFailedResult() {
+			if (this.failedItems.isEmpty()) {
+				return null;
+			}
+			final List<CheckoutResult.Item> items = new ArrayList<>();
+			for (final Map.Entry<Key<Offer>, Integer> entry : this.quantities
+					.entrySet()) {
+				final Key<Offer> offerKey = entry.getKey();
+				if (this.failedItems.containsKey(offerKey)) {
+					items.add(this.failedItems.get(offerKey));
+				} else {
+					items.add(new CheckoutResult.Item(offerKey.getString(),
+							entry.getValue(), CheckoutResult.Status.RESERVED,
+							this.availableQuantities.get(offerKey)));
+				}
+			}
+			return new CheckoutResult(items);
+		}
+
+		/**
+		 * Returns the keys of the picked entities.
+		 */
+		private Key<?>[] getKeys() {
+			final List<Key<?>> keys = new ArrayList<>();
+			keys.addAll(this.offerKeys);
+			for (final List<Key<InventoryShard>> picked : this.shardKeys
+					.values()) {
+				keys.addAll(picked);
+			}
+			return keys.toArray(new Key<?>[keys.size()]);
+		}
+
+		/**
+		 * Takes the quantities from the picked entities, in the current
+		 * transaction.
+		 *
+		 * @return the outcome of each item, null if the picked entities are
+		 *         no longer the right ones.
+		 */
+		private CheckoutResult reserve() {
+			final Map<Key<Object>, Object> loaded = ofy().load().<Object> keys(
+					getKeys());
+
+			final List<CheckoutResult.Item> items = new ArrayList<>();
+			boolean reserved = true;
+			for (final Map.Entry<Key<Offer>, Integer> entry : this.quantities
+					.entrySet()) {
+				final Key<Offer> offerKey = entry.getKey();
+				final int quantity = entry.getValue();
+				Offer offer = null;
+				if (this.offerKeys.contains(offerKey)) {
+					offer = (Offer) loaded.get(offerKey);
+					if (offer == null) {
+						items.add(new CheckoutResult.Item(offerKey.getString(),
+								quantity, CheckoutResult.Status.NOT_FOUND, null));
+						reserved = false;
+						continue;
+					}
+					if (offer.isInventorySharded()
+							&& !this.shardKeys.containsKey(offerKey)) {
+						return null;
+					}
+				}
+				int usableQuantity = offer == null ? 0 : offer
+						.getUnshardedQuantity();
+				if (this.shardKeys.containsKey(offerKey)) {
+					for (final Key<InventoryShard> shardKey : this.shardKeys
+							.get(offerKey)) {
+						final InventoryShard shard = (InventoryShard) loaded
+								.get(shardKey);
+						if (shard == null) {
+							return null;
+						}
+						usableQuantity += shard.getAvailableQuantity();
+					}
+				}
+				final int availableQuantity = usableQuantity
+						+ (this.otherQuantities.containsKey(offerKey) ? this.otherQuantities
+								.get(offerKey) : 0);
+				if (usableQuantity < quantity) {
+					if (availableQuantity >= quantity) {
+						// Other shards got enough in the meantime.
+						return null;
+					}
+					items.add(new CheckoutResult.Item(offerKey.getString(),
+							quantity, CheckoutResult.Status.NOT_ENOUGH_QUANTITY,
+							availableQuantity));
+					reserved = false;
+				} else {
+					items.add(new CheckoutResult.Item(offerKey.getString(),
+							quantity, CheckoutResult.Status.RESERVED,
+							availableQuantity));
+				}
+			}
+			if (!reserved) {
+				return new CheckoutResult(items);
+			}
+
+			this.changedOffers.clear();
+			final List<Object> changed = new ArrayList<>();
+			for (final Map.Entry<Key<Offer>, Integer> entry : this.quantities
+					.entrySet()) {
+				int remaining = entry.getValue();
+				if (this.shardKeys.containsKey(entry.getKey())) {
+					for (final Key<InventoryShard> shardKey : this.shardKeys
+							.get(entry.getKey())) {
+						final InventoryShard shard = (InventoryShard) loaded
+								.get(shardKey);
+						final int fromShard = Math.min(remaining,
+								shard.getAvailableQuantity());
+						if (fromShard > 0) {
+							shard.take(fromShard);
+							remaining -= fromShard;
+							changed.add(shard);
+						}
+					}
+				}
+				if (remaining > 0) {
+					final Offer offer = (Offer) loaded.get(entry.getKey());
+					offer.buyOffer(remaining);
+					changed.add(offer);
+					this.changedOffers.add(offer);
+				}
+			}
+			OfyService.save(changed);
+			return new CheckoutResult(items);
+		}
+	}
+
+	/**
+	 * Puts the given Offer in the OfferIndex and drops the cached searches
+	 * covering it, after it was committed.
+	 */
+	private static void reindex(final Offer offer) {
+		OfferIndex.put(offer);
+		OfferQueryCache.invalidate(offer);
+	}
+
+	private static void adjustCachedQuantity(final Key<Offer> offerKey,
+			final long delta) {
+		// The cached searches hold the available quantity of their Offers.
+		OfferQueryCache.invalidate(offerKey);
+		final String memcacheKey = memcacheKey(offerKey);
+		try {
+			// Does nothing when the quantity is not cached.
+			MemcacheServiceFactory.getMemcacheService().increment(memcacheKey,
+					delta);
+		} catch (final RuntimeException e) {
+			LOG.log(Level.WARNING, "Failed to increment " + memcacheKey, e);
+			invalidate(offerKey);
+		}
+	}
+
+	private static List<Key<InventoryShard>> shardKeys(final Key<Offer> offerKey) {
+		final List<Key<InventoryShard>> shardKeys = new ArrayList<>(
+				SHARD_COUNT);
+		for (int i = 0; i < SHARD_COUNT; i++) {
+			shardKeys.add(InventoryShard.key(offerKey, i));
+		}
+		return shardKeys;
+	}
+
+	private static Key<?>[] entityGroupKeys(final Key<Offer> offerKey,
+			final List<Key<InventoryShard>> shardKeys) {
+		final List<Key<?>> keys = new ArrayList<>();
+		keys.add(offerKey);
+		keys.addAll(shardKeys);
+		return keys.toArray(new Key<?>[keys.size()]);
+	}
+
+	private static String memcacheKey(final Key<Offer> offerKey) {
+		return MEMCACHE_KEY_PREFIX + offerKey.getString();
+	}
+}
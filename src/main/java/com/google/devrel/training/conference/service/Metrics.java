@@ -0,0 +1,77 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instance-local counters, exposed by the StatsServlet.
+ *
+ * Counters are named with dotted names, for instance "geocode.miss". They
+ * start at 0 on every instance and are never reset.
+ */
+public class Metrics {
+
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Adds 1 to the given counter.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 */
+	public static void increment(final String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Adds the given value to the given counter.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 * @param delta
+	 *            the value to add.
+	 */
+	public static void add(final String name, final long delta) {
+		AtomicLong counter = COUNTERS.get(name);
+		if (counter == null) {
+			final AtomicLong newCounter = new AtomicLong();
+			counter = COUNTERS.putIfAbsent(name, newCounter);
+			if (counter == null) {
+				counter = newCounter;
+			}
+		}
+		counter.addAndGet(delta);
+	}
+
+	/**
+	 * Returns the value of the given counter.
+	 *
+	 * @param name
+	 *            the name of the counter.
+	 * @return the value, 0 if the counter was never incremented.
+	 */
+	public static long get(final String name) {
+		final AtomicLong counter = COUNTERS.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * Returns the values of all counters.
+	 *
+	 * @return a new map of the values, sorted by name.
+	 */
+	public static SortedMap<String, Long> snapshot() {
+		final SortedMap<String, Long> snapshot = new TreeMap<>();
+		for (final Map.Entry<String, AtomicLong> entry : COUNTERS.entrySet()) {
+			snapshot.put(entry.getKey(), entry.getValue().get());
+		}
+		return snapshot;
+	}
+}
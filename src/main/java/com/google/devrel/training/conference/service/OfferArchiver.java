@@ -0,0 +1,237 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.InventoryShard;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferArchive;
+import com.google.devrel.training.conference.domain.OfferArchive.ArchivedOffer;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Moves the Offers of past days to OfferArchives.
+ *
+ * A cron job starts a chain of tasks off-peak. Each task reads the keys of a
+ * batch of expired Offers, loads them in one batch, and packs them into the
+ * archive of their Provider and day. The Offers of one archive are deleted in
+ * the same transaction as the archive is saved, so that running a task again
+ * archives nothing twice. The next batch is enqueued with the query cursor.
+ */
+public class OfferArchiver {
+
+	private static final Logger LOG = Logger.getLogger(OfferArchiver.class
+			.getName());
+
+	public static final String TASK_URL = "/tasks/archive_offers";
+
+	public static final String CURSOR_PARAM = "cursor";
+
+	public static final String BATCH_PARAM = "batch";
+
+	/**
+	 * The number of days before today still served from the Offers, so that
+	 * late returns and checkouts across midnight still find them.
+	 */
+	public static final int RETENTION_DAYS = 1;
+
+	/**
+	 * The number of Offers archived by one task.
+	 */
+	public static final int BATCH_SIZE = 100;
+
+	public static final String ARCHIVED = "offer.archived";
+
+	private static final TransactionRunner ARCHIVE_TX = new TransactionRunner(
+			"archiveOffers");
+
+	private OfferArchiver() {
+	}
+
+	/**
+	 * Enqueues the task archiving a batch of Offers. The tasks are named after
+	 * the cutoff day and the batch, so that a chain is started once a day and
+	 * a batch is enqueued once, even if a task runs again.
+	 *
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @param batch
+	 *            the number of the batch, from 0.
+	 */
+	public static void enqueue(final String cursor, final int batch) {
+		final TaskOptions task = TaskOptions.Builder.withUrl(TASK_URL)
+				.taskName("archive-" + cutoffDateNumber() + "-" + batch)
+				.param(BATCH_PARAM, String.valueOf(batch));
+		if (cursor != null) {
+			task.param(CURSOR_PARAM, cursor);
+		}
+		final Queue queue = QueueFactory.getDefaultQueue();
+		try {
+			queue.add(task);
+		} catch (final TaskAlreadyExistsException e) {
+			LOG.info("Batch " + batch + " is already enqueued");
+		}
+	}
+
+	/**
+	 * Archives a batch of expired Offers.
+	 *
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @return the cursor after this batch, null if it is the last one.
+	 */
+	public static String archiveBatch(final String cursor) {
+		Query<Offer> query = ofy().load().type(Offer.class)
+				.filter("offerDateNumber <", cutoffDateNumber())
+				.limit(BATCH_SIZE);
+		if (cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		}
+		final QueryResultIterator<Key<Offer>> iterator = query.keys()
+				.iterator();
+		final List<Key<Offer>> offerKeys = new ArrayList<>(BATCH_SIZE);
+		while (iterator.hasNext()) {
+			offerKeys.add(iterator.next());
+		}
+		final String nextCursor = offerKeys.size() < BATCH_SIZE ? null
+				: iterator.getCursor().toWebSafeString();
+
+		// Group the Offers by archive, an archive and its Offers are in a
+		// single entity group.
+		final List<Offer> offers = new ArrayList<>(ofy().load()
+				.keys(offerKeys).values());
+		final Map<Key<OfferArchive>, List<Offer>> archives = new LinkedHashMap<>();
+		for (final Offer offer : offers) {
+			final Key<OfferArchive> archiveKey = OfferArchive.key(
+					offer.getProviderKey(), offer.getOfferDateNumber());
+			if (!archives.containsKey(archiveKey)) {
+				archives.put(archiveKey, new ArrayList<Offer>());
+			}
+			archives.get(archiveKey).add(offer);
+		}
+		final Map<Key<Offer>, Integer> availableQuantities = availableQuantities(offers);
+		for (final List<Offer> archiveOffers : archives.values()) {
+			archive(archiveOffers, availableQuantities);
+		}
+
+		// The inventory shards are root entities, outside of the transactions.
+		final List<Key<InventoryShard>> shardKeys = shardKeys(offers);
+		for (final Offer offer : offers) {
+			EntityCache.invalidate(Key.create(offer));
+			if (offer.isInventorySharded()) {
+				InventoryCounter.invalidate(Key.create(offer));
+			}
+		}
+		if (!shardKeys.isEmpty()) {
+			ofy().delete().keys(shardKeys).now();
+		}
+		return nextCursor;
+	}
+
+	/**
+	 * Moves Offers of the same Provider and day to their archive, and
+	 * returns the number of Offers moved.
+	 */
+	private static int archive(final List<Offer> offers,
+			final Map<Key<Offer>, Integer> availableQuantities) {
+		final Key<Provider> providerKey = offers.get(0).getProviderKey();
+		final long offerDateNumber = offers.get(0).getOfferDateNumber();
+		final Key<OfferArchive> archiveKey = OfferArchive.key(providerKey,
+				offerDateNumber);
+		final List<Key<Offer>> offerKeys = new ArrayList<>(offers.size());
+		for (final Offer offer : offers) {
+			offerKeys.add(Key.create(offer));
+		}
+		final int archived = ARCHIVE_TX.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				OfferArchive archive = ofy().load().key(archiveKey).now();
+				if (archive == null) {
+					archive = new OfferArchive(providerKey, offerDateNumber);
+				}
+				// Offers already moved by another run of the task are gone.
+				final Map<Key<Offer>, Offer> loaded = ofy().load().keys(
+						offerKeys);
+				for (final Map.Entry<Key<Offer>, Offer> entry : loaded
+						.entrySet()) {
+					archive.add(new ArchivedOffer(entry.getValue(),
+							availableQuantities.get(entry.getKey())));
+				}
+				if (loaded.isEmpty()) {
+					return 0;
+				}
+				ofy().save().entity(archive).now();
+				ofy().delete().keys(loaded.keySet()).now();
+				return loaded.size();
+			}
+		}, archiveKey);
+		Metrics.add(ARCHIVED, archived);
+		return archived;
+	}
+
+	/**
+	 * Returns the quantity left of each Offer, reading the inventory shards
+	 * of the sharded ones in one batch. The days are past, so there are no
+	 * more purchases.
+	 */
+	private static Map<Key<Offer>, Integer> availableQuantities(
+			final List<Offer> offers) {
+		final Map<Key<InventoryShard>, InventoryShard> shards = ofy().load()
+				.keys(shardKeys(offers));
+		final Map<Key<Offer>, Integer> quantities = new LinkedHashMap<>();
+		for (final Offer offer : offers) {
+			final Key<Offer> offerKey = Key.create(offer);
+			int quantity = offer.getUnshardedQuantity();
+			if (offer.isInventorySharded()) {
+				for (int i = 0; i < InventoryCounter.SHARD_COUNT; i++) {
+					final InventoryShard shard = shards.get(InventoryShard
+							.key(offerKey, i));
+					if (shard != null) {
+						quantity += shard.getAvailableQuantity();
+					}
+				}
+			}
+			quantities.put(offerKey, quantity);
+		}
+		return quantities;
+	}
+
+	private static List<Key<InventoryShard>> shardKeys(final List<Offer> offers) {
+		final List<Key<InventoryShard>> shardKeys = new ArrayList<>();
+		for (final Offer offer : offers) {
+			if (offer.isInventorySharded()) {
+				for (int i = 0; i < InventoryCounter.SHARD_COUNT; i++) {
+					shardKeys.add(InventoryShard.key(Key.create(offer), i));
+				}
+			}
+		}
+		return shardKeys;
+	}
+
+	/**
+	 * Returns the offer date number of the first day not archived.
+	 */
+	static long cutoffDateNumber() {
+		final Calendar calendar = new GregorianCalendar();
+		calendar.add(Calendar.DAY_OF_MONTH, -RETENTION_DAYS);
+		return calendar.get(Calendar.DAY_OF_MONTH)
+				+ (100 * (calendar.get(Calendar.MONTH) + 1))
+				+ (10000 * calendar.get(Calendar.YEAR));
+	}
+}
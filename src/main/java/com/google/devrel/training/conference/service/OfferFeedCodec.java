@@ -0,0 +1,332 @@
+package com.google.devrel.training.conference.service;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferSummary;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+
+/**
+ * Encodes a page of Offers in a compact binary form for the mobile clients,
+ * and decodes it back to OfferSummaries.
+ *
+ * The feed holds the fields of OfferSummary. The Providers and the cuisines
+ * are written once in dictionaries and referenced by index, an Offer key is
+ * its Provider index followed by its id, the coordinates are deltas from the
+ * previous Offer in millionths of a degree, and the numbers are varints, the
+ * signed ones zigzag encoded. The layout is:
+ *
+ * <pre>
+ * version          byte, VERSION
+ * nextCursor       string, absent when there are no more Offers
+ * providers        varint count, then (websafe key string, name string) each
+ * cuisines         varint count, then the name string of each
+ * offers           varint count, then for each:
+ *   provider       varint index in providers
+ *   id             varint
+ *   title          string
+ *   cuisine        varint index in cuisines + 1, 0 when absent
+ *   priceInUnit    signed varint
+ *   available      varint + 1, 0 when unknown
+ *   latitude       signed varint, delta in 1e-6 degrees
+ *   longitude      signed varint, delta in 1e-6 degrees
+ *   distance       varint meters + 1, 0 when absent
+ * </pre>
+ *
+ * A string is the varint length of its UTF-8 bytes plus one, 0 for null,
+ * followed by the bytes.
+ */
+public class OfferFeedCodec {
+
+	public static final String CONTENT_TYPE = "application/x-homefood-offers";
+
+	public static final byte VERSION = 2;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private static final double E6 = 1000000d;
+
+	private static final double METERS_IN_KM = 1000d;
+
+	/**
+	 * A decoded page of the feed.
+	 */
+	public static class Feed {
+
+		private final List<OfferSummary> offers;
+
+		private final String nextCursor;
+
+		private Feed(final List<OfferSummary> offers, final String nextCursor) {
+			this.offers = offers;
+			this.nextCursor = nextCursor;
+		}
+
+		public List<OfferSummary> getOffers() {
+			return this.offers;
+		}
+
+		public String getNextCursor() {
+			return this.nextCursor;
+		}
+	}
+
+	private OfferFeedCodec() {
+	}
+
+	/**
+	 * Encodes a page of Offers.
+	 *
+	 * @param offers
+	 *            the Offers of the page. The ones without a location are left
+	 *            out, as the feed places every Offer.
+	 * @param nextCursor
+	 *            the cursor of the next page, null if it is the last one.
+	 * @return the bytes of the feed.
+	 */
+	public static byte[] encode(final List<Offer> offers,
+			final String nextCursor) {
+		final List<Offer> located = new ArrayList<>(offers.size());
+		for (final Offer offer : offers) {
+			if (offer.getLocation() != null) {
+				located.add(offer);
+			}
+		}
+		final Map<String, Integer> providers = new LinkedHashMap<>();
+		final List<String> providerNames = new ArrayList<>();
+		final Map<Cuisine, Integer> cuisines = new LinkedHashMap<>();
+		for (final Offer offer : located) {
+			final String providerKey = offer.getProviderKey().getString();
+			if (!providers.containsKey(providerKey)) {
+				providers.put(providerKey, providers.size());
+				providerNames.add(offer.getProviderName());
+			}
+			if ((offer.getCuisine() != null)
+					&& !cuisines.containsKey(offer.getCuisine())) {
+				cuisines.put(offer.getCuisine(), cuisines.size());
+			}
+		}
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(
+				64 + (located.size() * 32));
+		out.write(VERSION);
+		writeString(out, nextCursor);
+		writeVarint(out, providers.size());
+		int i = 0;
+		for (final String providerKey : providers.keySet()) {
+			writeString(out, providerKey);
+			writeString(out, providerNames.get(i++));
+		}
+		writeVarint(out, cuisines.size());
+		for (final Cuisine cuisine : cuisines.keySet()) {
+			writeString(out, cuisine.name());
+		}
+
+		writeVarint(out, located.size());
+		long latitude = 0;
+		long longitude = 0;
+		for (final Offer offer : located) {
+			writeVarint(out,
+					providers.get(offer.getProviderKey().getString()));
+			writeVarint(out, offer.getId());
+			writeString(out, offer.getTitle());
+			writeVarint(out, offer.getCuisine() == null ? 0 : cuisines
+					.get(offer.getCuisine()) + 1);
+			writeSignedVarint(out, offer.getPriceInUnit());
+			writeVarint(out, offer.getAvailableQuantity() == null ? 0 : offer
+					.getAvailableQuantity() + 1);
+			final long offerLatitude = Math.round(offer.getLocation()
+					.getLatitude() * E6);
+			final long offerLongitude = Math.round(offer.getLocation()
+					.getLongitude() * E6);
+			writeSignedVarint(out, offerLatitude - latitude);
+			writeSignedVarint(out, offerLongitude - longitude);
+			latitude = offerLatitude;
+			longitude = offerLongitude;
+			writeVarint(out, offer.getDistance() == null ? 0 : Math
+					.round(offer.getDistance() * METERS_IN_KM) + 1);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decodes a page of Offers.
+	 *
+	 * @param bytes
+	 *            the bytes of the feed.
+	 * @return the OfferSummaries of the page and the cursor of the next one.
+	 * @throws IllegalArgumentException
+	 *             if the bytes are not a feed of this version.
+	 */
+	public static Feed decode(final byte[] bytes) {
+		final Reader in = new Reader(bytes);
+		final int version = in.readByte();
+		if (version != VERSION) {
+			throw new IllegalArgumentException("Unsupported feed version "
+					+ version);
+		}
+		final String nextCursor = in.readString();
+		final int providerCount = in.readCount();
+		final List<String> providerKeys = new ArrayList<>(providerCount);
+		final List<String> providerNames = new ArrayList<>(providerCount);
+		for (int i = 0; i < providerCount; i++) {
+			providerKeys.add(in.readString());
+			providerNames.add(in.readString());
+		}
+		final int cuisineCount = in.readCount();
+		final List<Cuisine> cuisines = new ArrayList<>(cuisineCount);
+		for (int i = 0; i < cuisineCount; i++) {
+			cuisines.add(cuisine(in.readString()));
+		}
+
+		final int offerCount = in.readCount();
+		final List<OfferSummary> offers = new ArrayList<>(offerCount);
+		long latitude = 0;
+		long longitude = 0;
+		for (int i = 0; i < offerCount; i++) {
+			final int provider = in.readIndex(providerCount);
+			final long id = in.readVarint();
+			final String title = in.readString();
+			final int cuisine = in.readIndex(cuisineCount + 1);
+			final int priceInUnit = (int) in.readSignedVarint();
+			final long availableQuantity = in.readVarint();
+			latitude += in.readSignedVarint();
+			longitude += in.readSignedVarint();
+			final long distance = in.readVarint();
+			final String websafeKey = KeyFactory.keyToString(KeyFactory
+					.createKey(KeyFactory.stringToKey(providerKeys
+							.get(provider)), "Offer", id));
+			offers.add(new OfferSummary(websafeKey, title,
+					cuisine == 0 ? null : cuisines.get(cuisine - 1),
+					priceInUnit, (float) (latitude / E6),
+					(float) (longitude / E6), availableQuantity == 0 ? null
+							: (int) (availableQuantity - 1),
+					providerNames.get(provider), distance == 0 ? null
+							: (distance - 1) / METERS_IN_KM));
+		}
+		if (in.remaining() > 0) {
+			throw new IllegalArgumentException("Trailing bytes in the feed");
+		}
+		return new Feed(offers, nextCursor);
+	}
+
+	/**
+	 * Returns the cuisine of the given name, null for the cuisines unknown to
+	 * this version.
+	 */
+	private static Cuisine cuisine(final String name) {
+		try {
+			return name == null ? null : Cuisine.valueOf(name);
+		} catch (final IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	private static void writeVarint(final ByteArrayOutputStream out,
+			final long value) {
+		long rest = value;
+		while ((rest & ~0x7FL) != 0) {
+			out.write((int) ((rest & 0x7F) | 0x80));
+			rest >>>= 7;
+		}
+		out.write((int) rest);
+	}
+
+	private static void writeSignedVarint(final ByteArrayOutputStream out,
+			final long value) {
+		writeVarint(out, (value << 1) ^ (value >> 63));
+	}
+
+	private static void writeString(final ByteArrayOutputStream out,
+			final String value) {
+		if (value == null) {
+			writeVarint(out, 0);
+			return;
+		}
+		final byte[] bytes = value.getBytes(UTF_8);
+		writeVarint(out, bytes.length + 1);
+		out.write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Reads the values of a feed, failing on truncated or corrupted bytes.
+	 */
+	private static class Reader {
+
+		private final byte[] bytes;
+
+		private int position;
+
+		private Reader(final byte[] bytes) {
+			this.bytes = bytes;
+		}
+
+		private int remaining() {
+			return this.bytes.length - this.position;
+		}
+
+		private int readByte() {
+			if (this.position >= this.bytes.length) {
+				throw new IllegalArgumentException("Truncated feed");
+			}
+			return this.bytes[this.position++] & 0xFF;
+		}
+
+		private long readVarint() {
+			long value = 0;
+			for (int shift = 0; shift < 64; shift += 7) {
+				final int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IllegalArgumentException("Malformed varint in the feed");
+		}
+
+		private long readSignedVarint() {
+			final long value = readVarint();
+			return (value >>> 1) ^ -(value & 1);
+		}
+
+		/**
+		 * Reads a count of entries, each of them at least one byte long.
+		 */
+		private int readCount() {
+			final long count = readVarint();
+			if (count > remaining()) {
+				throw new IllegalArgumentException("Truncated feed");
+			}
+			return (int) count;
+		}
+
+		private int readIndex(final int size) {
+			final long index = readVarint();
+			if (index >= size) {
+				throw new IllegalArgumentException(
+						"Index out of range in the feed");
+			}
+			return (int) index;
+		}
+
+		private String readString() {
+			final long length = readVarint();
+			if (length == 0) {
+				return null;
+			}
+			if (length - 1 > remaining()) {
+				throw new IllegalArgumentException("Truncated feed");
+			}
+			final String value = new String(this.bytes, this.position,
+					(int) (length - 1), UTF_8);
+			this.position += (int) (length - 1);
+			return value;
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.googlecode.objectify.Key;
+
+/**
+ * An instance-local spatial index of the offers of a day, keyed by
+ * offerDateNumber.
+ *
+ * Each day is loaded lazily from the datastore on first use, kept up to date
+ * by {@link #put(Offer)} on this instance, and reloaded once it is older than
+ * the configured staleness bound, so that writes made through other instances
+ * show up. The queries of a day keep using its previous offers while it is
+ * reloaded. Offers are kept as datastore entities grouped by geohash cell, and
+ * fresh Offer objects are built for every lookup, so callers can modify them.
+ */
+public class OfferIndex {
+
+	private static final Logger LOG = Logger.getLogger(OfferIndex.class
+			.getName());
+
+	/**
+	 * The system property holding the staleness bound, 0 disables the index.
+	 */
+	public static final String MAX_STALENESS_PROPERTY = "homefood.offerIndex.maxStalenessSeconds";
+
+	private static final long DEFAULT_MAX_STALENESS_SECONDS = 60;
+
+	/**
+	 * The number of days kept in memory, least recently used days are dropped
+	 * first.
+	 */
+	private static final int MAX_DAYS = 8;
+
+	private static final Map<Long, DayIndex> DAYS = new LinkedHashMap<Long, DayIndex>(
+			MAX_DAYS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<Long, DayIndex> eldest) {
+			return size() > MAX_DAYS;
+		}
+	};
+
+	private OfferIndex() {
+	}
+
+	/**
+	 * Returns whether queries should be answered from the index.
+	 *
+	 * @return true unless the staleness bound is set to 0.
+	 */
+	public static boolean isEnabled() {
+		return getMaxStalenessMillis() > 0;
+	}
+
+	/**
+	 * Returns the offers of the given day in the geohash cells covering the
+	 * given circle.
+	 *
+	 * @param offerDateNumber
+	 *            the day of the offers.
+	 * @param latitude
+	 *            the latitude of the center.
+	 * @param longitude
+	 *            the longitude of the center.
+	 * @param radiusInKm
+	 *            the radius of the circle in km.
+	 * @return a List of new Offer objects, possibly outside of the circle.
+	 */
+	public static List<Offer> find(final long offerDateNumber,
+			final double latitude, final double longitude,
+			final double radiusInKm) {
+		return find(offerDateNumber, latitude, longitude, radiusInKm,
+				EnumSet.noneOf(Cuisine.class));
+	}
+
+	/**
+	 * Returns the offers of the given day and cuisines in the geohash cells
+	 * covering the given circle.
+	 *
+	 * Offers of other cuisines are skipped before they are turned into Offer
+	 * objects. Offers without a cuisine match every cuisine.
+	 *
+	 * @param offerDateNumber
+	 *            the day of the offers.
+	 * @param latitude
+	 *            the latitude of the center.
+	 * @param longitude
+	 *            the longitude of the center.
+	 * @param radiusInKm
+	 *            the radius of the circle in km.
+	 * @param cuisines
+	 *            the cuisines to match, empty to match any cuisine.
+	 * @return a List of new Offer objects, possibly outside of the circle.
+	 */
+	public static List<Offer> find(final long offerDateNumber,
+			final double latitude, final double longitude,
+			final double radiusInKm, final Set<Cuisine> cuisines) {
+		final List<String> cells = GeoHash.cover(latitude, longitude,
+				radiusInKm);
+		final Set<String> cuisineNames = new HashSet<>();
+		for (final Cuisine cuisine : cuisines) {
+			cuisineNames.add(cuisine.name());
+		}
+		final List<Entity> entities = getDayIndex(offerDateNumber).lookup(
+				cells, cuisineNames);
+		final List<Offer> offers = new ArrayList<>(entities.size());
+		for (final Entity entity : entities) {
+			final Offer offer = ofy().load().fromEntity(entity);
+			offers.add(offer);
+		}
+		return offers;
+	}
+
+	/**
+	 * Adds or replaces the given offer in the days already loaded on this
+	 * instance. Call this after the offer is committed.
+	 *
+	 * @param offer
+	 *            the Offer just saved.
+	 */
+	public static void put(final Offer offer) {
+		final Key<Offer> key = Key.create(offer);
+		final Entity entity = ofy().save().toEntity(offer);
+		final List<DayIndex> days;
+		synchronized (DAYS) {
+			days = new ArrayList<>(DAYS.values());
+		}
+		final IndexedOffer indexed = new IndexedOffer(entity,
+				offer.getGeoCells());
+		for (final DayIndex day : days) {
+			day.put(key, day.offerDateNumber == offer.getOfferDateNumber() ? indexed
+					: null);
+		}
+	}
+
+	/**
+	 * Drops every day from the index.
+	 */
+	public static void clear() {
+		synchronized (DAYS) {
+			DAYS.clear();
+		}
+	}
+
+	private static long getMaxStalenessMillis() {
+		final String value = System.getProperty(MAX_STALENESS_PROPERTY);
+		if (value == null) {
+			return DEFAULT_MAX_STALENESS_SECONDS * 1000;
+		}
+		try {
+			return Long.parseLong(value.trim()) * 1000;
+		} catch (final NumberFormatException e) {
+			LOG.warning("Invalid " + MAX_STALENESS_PROPERTY + ": " + value);
+			return DEFAULT_MAX_STALENESS_SECONDS * 1000;
+		}
+	}
+
+	private static DayIndex getDayIndex(final long offerDateNumber) {
+		DayIndex day;
+		synchronized (DAYS) {
+			day = DAYS.get(offerDateNumber);
+			if (day == null) {
+				day = new DayIndex(offerDateNumber);
+				DAYS.put(offerDateNumber, day);
+			}
+		}
+		day.ensureFresh(getMaxStalenessMillis());
+		return day;
+	}
+
+	/**
+	 * The offers of a single day. Lookups and puts use the current snapshot
+	 * under the lock of the day, while a reload builds the next snapshot
+	 * outside of it and swaps it in, so that queries keep being answered from
+	 * the previous snapshot during the reload. The puts made during a reload
+	 * are replayed on the next snapshot, as its query may predate them.
+	 */
+	private static class DayIndex {
+
+		private final long offerDateNumber;
+
+		private Snapshot snapshot = new Snapshot();
+
+		private long loadedAt;
+
+		/**
+		 * The number of reloads in progress.
+		 */
+		private int loads;
+
+		/**
+		 * The offers put since the oldest reload in progress started, null
+		 * for the ones removed from the day.
+		 */
+		private final Map<Key<Offer>, IndexedOffer> putsDuringLoads = new LinkedHashMap<>();
+
+		private DayIndex(final long offerDateNumber) {
+			this.offerDateNumber = offerDateNumber;
+		}
+
+		private void ensureFresh(final long maxStalenessMillis) {
+			final long now = System.currentTimeMillis();
+			synchronized (this) {
+				if ((this.loadedAt != 0)
+						&& ((now - this.loadedAt) <= maxStalenessMillis)) {
+					return;
+				}
+				// A stale day is still served while another thread reloads
+				// it. Until the first load is done, every caller loads it.
+				if ((this.loads > 0) && (this.loadedAt != 0)) {
+					return;
+				}
+				this.loads++;
+			}
+			Snapshot fresh = null;
+			try {
+				final List<Offer> offers = ofy().load().type(Offer.class)
+						.filter("offerDateNumber == ", this.offerDateNumber)
+						.list();
+				fresh = new Snapshot();
+				for (final Offer offer : offers) {
+					fresh.add(Key.create(offer), new IndexedOffer(ofy().save()
+							.toEntity(offer), offer.getGeoCells()));
+				}
+				LOG.info("Loaded " + offers.size() + " offers for "
+						+ this.offerDateNumber);
+			} finally {
+				synchronized (this) {
+					if (fresh != null) {
+						for (final Map.Entry<Key<Offer>, IndexedOffer> put : this.putsDuringLoads
+								.entrySet()) {
+							fresh.remove(put.getKey());
+							fresh.add(put.getKey(), put.getValue());
+						}
+						this.snapshot = fresh;
+						this.loadedAt = Math.max(this.loadedAt, now);
+					}
+					this.loads--;
+					if (this.loads == 0) {
+						this.putsDuringLoads.clear();
+					}
+				}
+			}
+		}
+
+		private synchronized List<Entity> lookup(final List<String> cells,
+				final Set<String> cuisineNames) {
+			return this.snapshot.lookup(cells, cuisineNames);
+		}
+
+		/**
+		 * Adds or replaces an offer of the day, or removes it.
+		 *
+		 * @param key
+		 *            the key of the offer.
+		 * @param offer
+		 *            the offer, null to remove it from the day.
+		 */
+		private synchronized void put(final Key<Offer> key,
+				final IndexedOffer offer) {
+			this.snapshot.remove(key);
+			this.snapshot.add(key, offer);
+			if (this.loads > 0) {
+				this.putsDuringLoads.put(key, offer);
+			}
+		}
+	}
+
+	/**
+	 * An offer in its datastore form, with its geohash cells.
+	 */
+	private static class IndexedOffer {
+
+		private final Entity entity;
+
+		private final List<String> geoCells;
+
+		private IndexedOffer(final Entity entity, final List<String> geoCells) {
+			this.entity = entity;
+			this.geoCells = geoCells;
+		}
+	}
+
+	/**
+	 * The offers of a day grouped by geohash cell, guarded by the lock of
+	 * their DayIndex once it is swapped in.
+	 */
+	private static class Snapshot {
+
+		private final Map<Key<Offer>, Entity> offers = new HashMap<>();
+
+		private final Map<String, Set<Key<Offer>>> cells = new HashMap<>();
+
+		private final Map<Key<Offer>, List<String>> cellsByOffer = new HashMap<>();
+
+		private List<Entity> lookup(final List<String> cells,
+				final Set<String> cuisineNames) {
+			final List<Entity> entities = new ArrayList<>();
+			if (cells.isEmpty()) {
+				for (final Entity entity : this.offers.values()) {
+					addIfMatches(entities, entity, cuisineNames);
+				}
+				return entities;
+			}
+			for (final String cell : cells) {
+				final Set<Key<Offer>> keys = this.cells.get(cell);
+				if (keys != null) {
+					for (final Key<Offer> key : keys) {
+						addIfMatches(entities, this.offers.get(key),
+								cuisineNames);
+					}
+				}
+			}
+			return entities;
+		}
+
+		private static void addIfMatches(final List<Entity> entities,
+				final Entity entity, final Set<String> cuisineNames) {
+			// Enums are stored by name.
+			final Object cuisine = entity.getProperty("cuisine");
+			if (cuisineNames.isEmpty() || (cuisine == null)
+					|| cuisineNames.contains(cuisine)) {
+				entities.add(entity);
+			}
+		}
+
+		private void add(final Key<Offer> key, final IndexedOffer offer) {
+			if ((offer == null) || (offer.geoCells == null)) {
+				return;
+			}
+			this.offers.put(key, offer.entity);
+			this.cellsByOffer.put(key, offer.geoCells);
+			for (final String cell : offer.geoCells) {
+				Set<Key<Offer>> keys = this.cells.get(cell);
+				if (keys == null) {
+					keys = new HashSet<>();
+					this.cells.put(cell, keys);
+				}
+				keys.add(key);
+			}
+		}
+
+		private void remove(final Key<Offer> key) {
+			this.offers.remove(key);
+			final List<String> geoCells = this.cellsByOffer.remove(key);
+			if (geoCells != null) {
+				for (final String cell : geoCells) {
+					final Set<Key<Offer>> keys = this.cells.get(cell);
+					if (keys != null) {
+						keys.remove(key);
+						if (keys.isEmpty()) {
+							this.cells.remove(cell);
+						}
+					}
+				}
+			}
+		}
+	}
+}
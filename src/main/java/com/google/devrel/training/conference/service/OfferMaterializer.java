@@ -0,0 +1,198 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.factory;
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskAlreadyExistsException;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferTemplate;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+import com.googlecode.objectify.cmd.Query;
+
+/**
+ * Creates the Offers of the upcoming days from the OfferTemplates.
+ *
+ * A cron job starts a chain of tasks off-peak. Each task materializes a batch
+ * of templates, in one small transaction per template, then enqueues the task
+ * of the next batch with the query cursor. A template records the next day
+ * without an Offer in the same transaction as the Offers, so that running a
+ * task again creates nothing twice.
+ */
+public class OfferMaterializer {
+
+	private static final Logger LOG = Logger.getLogger(OfferMaterializer.class
+			.getName());
+
+	public static final String TASK_URL = "/tasks/materialize_offers";
+
+	public static final String CURSOR_PARAM = "cursor";
+
+	public static final String BATCH_PARAM = "batch";
+
+	/**
+	 * The number of days after today with Offers.
+	 */
+	public static final int HORIZON_DAYS = 7;
+
+	/**
+	 * The number of templates materialized by one task.
+	 */
+	public static final int BATCH_SIZE = 20;
+
+	public static final String MATERIALIZED = "offerTemplate.materialized";
+
+	private static final TransactionRunner MATERIALIZE_TX = new TransactionRunner(
+			"materializeOffers");
+
+	private OfferMaterializer() {
+	}
+
+	/**
+	 * Enqueues the task materializing a batch of templates. The tasks are
+	 * named after the horizon and the batch, so that a chain is started once
+	 * a day and a batch is enqueued once, even if a task runs again.
+	 *
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @param batch
+	 *            the number of the batch, from 0.
+	 */
+	public static void enqueue(final String cursor, final int batch) {
+		final TaskOptions task = TaskOptions.Builder
+				.withUrl(TASK_URL)
+				.taskName(
+						"materialize-"
+								+ new SimpleDateFormat("yyyyMMdd")
+										.format(horizon()) + "-" + batch)
+				.param(BATCH_PARAM, String.valueOf(batch));
+		if (cursor != null) {
+			task.param(CURSOR_PARAM, cursor);
+		}
+		final Queue queue = QueueFactory.getDefaultQueue();
+		try {
+			queue.add(task);
+		} catch (final TaskAlreadyExistsException e) {
+			LOG.info("Batch " + batch + " is already enqueued");
+		}
+	}
+
+	/**
+	 * Materializes the templates of a batch.
+	 *
+	 * @param cursor
+	 *            the cursor after the previous batch, null for the first one.
+	 * @return the cursor after this batch, null if it is the last one.
+	 */
+	public static String materializeBatch(final String cursor) {
+		final Date horizon = horizon();
+		Query<OfferTemplate> query = ofy().load().type(OfferTemplate.class)
+				.filter("nextOfferDate <=", horizon).limit(BATCH_SIZE);
+		if (cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		}
+		final QueryResultIterator<Key<OfferTemplate>> iterator = query.keys()
+				.iterator();
+		int count = 0;
+		while (iterator.hasNext()) {
+			materialize(iterator.next(), horizon);
+			count++;
+		}
+		return count < BATCH_SIZE ? null : iterator.getCursor()
+				.toWebSafeString();
+	}
+
+	/**
+	 * Creates the Offers of a template up to the given day included.
+	 *
+	 * @param templateKey
+	 *            the key of the OfferTemplate.
+	 * @param horizon
+	 *            the last day to create an Offer for.
+	 * @return the Offers created, empty if they already exist.
+	 */
+	public static List<Offer> materialize(final Key<OfferTemplate> templateKey,
+			final Date horizon) {
+		final OfferTemplate template = ofy().load().key(templateKey).now();
+		if ((template == null) || (template.getNextOfferDate() == null)) {
+			return new ArrayList<>(0);
+		}
+		final Date nextOfferDate = template.getNextOfferDate();
+		final List<Date> offerDates = template.getOfferDatesUntil(horizon);
+
+		// Allocate the ids first, in order to make the transaction idempotent.
+		final List<Long> offerIds = new ArrayList<>(offerDates.size());
+		if (!offerDates.isEmpty()) {
+			final Iterator<Key<Offer>> offerKeys = factory().allocateIds(
+					template.getProviderKey(), Offer.class, offerDates.size())
+					.iterator();
+			while (offerKeys.hasNext()) {
+				offerIds.add(offerKeys.next().getId());
+			}
+		}
+
+		final List<Offer> offers = MATERIALIZE_TX.run(new Work<List<Offer>>() {
+			@Override
+			public List<Offer> run() {
+				final OfferTemplate template = ofy().load().key(templateKey)
+						.now();
+				final List<Offer> offers = new ArrayList<>(offerDates.size());
+				// Materialized in the meantime.
+				if ((template == null)
+						|| !nextOfferDate.equals(template.getNextOfferDate())) {
+					return offers;
+				}
+				final Provider provider = ofy().load()
+						.key(template.getProviderKey()).now();
+				if (provider == null) {
+					LOG.warning("No Provider for the template " + templateKey);
+				} else {
+					for (int i = 0; i < offerDates.size(); i++) {
+						offers.add(new Offer(offerIds.get(i), template
+								.getCreatorId(), template.toOfferForm(offerDates
+								.get(i)), provider));
+					}
+				}
+				template.materializedUntil(horizon);
+				final List<Object> entities = new ArrayList<Object>(offers);
+				entities.add(template);
+				OfyService.save(entities);
+				return offers;
+			}
+		}, templateKey);
+
+		Metrics.add(MATERIALIZED, offers.size());
+		for (final Offer offer : offers) {
+			OfferIndex.put(offer);
+			OfferQueryCache.invalidate(offer);
+		}
+		return offers;
+	}
+
+	/**
+	 * Returns the last day with Offers, HORIZON_DAYS after today.
+	 *
+	 * @return the beginning of the last day with Offers.
+	 */
+	public static Date horizon() {
+		final Calendar calendar = new GregorianCalendar();
+		calendar.setTime(OfferTemplate.startOfDay(new Date()));
+		calendar.add(Calendar.DAY_OF_MONTH, HORIZON_DAYS);
+		return calendar.getTime();
+	}
+}
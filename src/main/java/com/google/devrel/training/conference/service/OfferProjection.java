@@ -0,0 +1,152 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+
+/**
+ * Reads the fields of OfferSummary with datastore projection queries, so that
+ * list endpoints don't fetch whole Offer entities.
+ *
+ * Objectify does not support projections, so the queries go through the low
+ * level datastore API and the projected entities are turned into partial
+ * Offers, which only have the fields needed for ranking and summaries. The
+ * available quantity is projected with inventorySharded, so that
+ * InventoryCounter only counts the quantities of the sharded Offers.
+ */
+public class OfferProjection {
+
+	private OfferProjection() {
+	}
+
+	/**
+	 * Returns the partial offers of the given day and cuisines in the geohash
+	 * cells covering the given circle. Offers without a cuisine match every
+	 * cuisine.
+	 *
+	 * A projection on the cuisine only finds the offers having the property,
+	 * even null, so the offers saved without it are missing until
+	 * IndexBackfill saved them again.
+	 *
+	 * @param offerDateNumber
+	 *            the day of the offers.
+	 * @param latitude
+	 *            the latitude of the center.
+	 * @param longitude
+	 *            the longitude of the center.
+	 * @param radiusInKm
+	 *            the radius of the circle in km.
+	 * @param cuisines
+	 *            the cuisines to match, empty to match any cuisine.
+	 * @return a List of partial Offers, possibly outside of the circle.
+	 */
+	public static List<Offer> find(final long offerDateNumber,
+			final double latitude, final double longitude,
+			final double radiusInKm, final Set<Cuisine> cuisines) {
+		final DatastoreService datastore = DatastoreServiceFactory
+				.getDatastoreService();
+		final List<String> cells = GeoHash.cover(latitude, longitude,
+				radiusInKm);
+		Filter filter = new FilterPredicate("offerDateNumber",
+				FilterOperator.EQUAL, offerDateNumber);
+		if (!cells.isEmpty()) {
+			filter = CompositeFilterOperator.and(filter, new FilterPredicate(
+					"geoCells", FilterOperator.IN, cells));
+		}
+
+		// A property can't be both projected and filtered on with an equality
+		// filter, so the cuisine of each sub-query is set afterwards.
+		final List<QueryResultIterator<Entity>> results = new ArrayList<>();
+		final List<Cuisine> resultCuisines = new ArrayList<>();
+		if (cuisines.isEmpty()) {
+			results.add(datastore.prepare(newQuery(filter, true))
+					.asQueryResultIterator(FetchOptions.Builder.withDefaults()));
+			resultCuisines.add(null);
+		} else {
+			for (final Cuisine cuisine : cuisines) {
+				final Filter cuisineFilter = CompositeFilterOperator.and(
+						filter, new FilterPredicate("cuisine",
+								FilterOperator.EQUAL, cuisine.name()));
+				results.add(datastore.prepare(newQuery(cuisineFilter, false))
+						.asQueryResultIterator(
+								FetchOptions.Builder.withDefaults()));
+				resultCuisines.add(cuisine);
+			}
+			results.add(datastore.prepare(
+					newQuery(CompositeFilterOperator.and(filter,
+							new FilterPredicate("cuisine", FilterOperator.EQUAL,
+									null)), false)).asQueryResultIterator(
+					FetchOptions.Builder.withDefaults()));
+			resultCuisines.add(null);
+		}
+
+		final List<Offer> offers = new ArrayList<>();
+		// The IN filter may return an offer once per matching cell.
+		final Set<Key> keys = new HashSet<>();
+		for (int i = 0; i < results.size(); i++) {
+			final QueryResultIterator<Entity> result = results.get(i);
+			while (result.hasNext()) {
+				final Entity entity = result.next();
+				if (keys.add(entity.getKey())) {
+					offers.add(toOffer(entity, resultCuisines.get(i)));
+				}
+			}
+		}
+		return offers;
+	}
+
+	private static Query newQuery(final Filter filter,
+			final boolean withCuisine) {
+		final Query query = new Query("Offer").setFilter(filter);
+		query.addProjection(new PropertyProjection("title", String.class));
+		if (withCuisine) {
+			query.addProjection(new PropertyProjection("cuisine", String.class));
+		}
+		query.addProjection(new PropertyProjection("priceInUnit", Long.class));
+		query.addProjection(new PropertyProjection("location", GeoPt.class));
+		query.addProjection(new PropertyProjection("availableQuantity",
+				Long.class));
+		query.addProjection(new PropertyProjection("inventorySharded",
+				Boolean.class));
+		query.addProjection(new PropertyProjection("providerName",
+				String.class));
+		return query;
+	}
+
+	private static Offer toOffer(final Entity entity, final Cuisine cuisine) {
+		if (cuisine != null) {
+			entity.setProperty("cuisine", cuisine.name());
+		}
+		entity.setProperty("providerId", entity.getKey().getParent().getId());
+		// Offer.onLoad doesn't run for entities loaded this way.
+		final GeoPt location = (GeoPt) entity.getProperty("location");
+		if (location != null) {
+			final double latitudeRadians = Math.toRadians(location
+					.getLatitude());
+			entity.setProperty("latitudeRadians", latitudeRadians);
+			entity.setProperty("longitudeRadians",
+					Math.toRadians(location.getLongitude()));
+			entity.setProperty("cosLatitude", Math.cos(latitudeRadians));
+		}
+		return ofy().load().fromEntity(entity);
+	}
+}
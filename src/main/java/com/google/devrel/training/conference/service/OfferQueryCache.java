@@ -0,0 +1,247 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.googlecode.objectify.Key;
+
+/**
+ * An instance-local cache of the candidate Offers of the searches, so that
+ * the many searches made from the same neighborhood at lunchtime share one
+ * lookup.
+ *
+ * The location of a search is quantized to the geohash cell containing it.
+ * The candidates of a cell are looked up once around the center of the cell,
+ * with the radius extended by the half diagonal of the cell, so they contain
+ * the Offers within the radius of any location in the cell. The caller still
+ * ranks them from its exact location, so the results are the same as without
+ * the cache.
+ *
+ * Entries are dropped when an Offer they may contain is saved or bought on
+ * this instance, and expire after TTL_SECONDS, which bounds how stale the
+ * available quantities and the writes of other instances can be.
+ */
+public class OfferQueryCache {
+
+	public static final String HIT = "offerQueryCache.hit";
+
+	public static final String MISS = "offerQueryCache.miss";
+
+	public static final String INVALIDATED = "offerQueryCache.invalidated";
+
+	/**
+	 * The precision of the cells the searches are quantized to (a cell is
+	 * roughly 1.2km x 0.6km).
+	 */
+	public static final int CELL_PRECISION = GeoHash.MAX_PRECISION;
+
+	/**
+	 * The precision of the cells the hits and misses are counted for, the
+	 * counters are named after HIT and MISS followed by the cell.
+	 */
+	public static final int METRICS_PRECISION = 4;
+
+	public static final int TTL_SECONDS = 10;
+
+	private static final int MAX_ENTRIES = 1000;
+
+	private static final Cache<String, CachedResult> RESULTS = CacheBuilder
+			.newBuilder().maximumSize(MAX_ENTRIES)
+			.expireAfterWrite(TTL_SECONDS, TimeUnit.SECONDS).build();
+
+	/**
+	 * Incremented on every invalidation, so that a lookup racing with a write
+	 * is not cached.
+	 */
+	private static final AtomicLong INVALIDATIONS = new AtomicLong();
+
+	/**
+	 * Looks up the candidate Offers of a search.
+	 */
+	public interface Search {
+
+		/**
+		 * Returns the Offers of the search within the given circle, and
+		 * possibly outside of it.
+		 *
+		 * @param latitude
+		 *            the latitude of the center in degrees.
+		 * @param longitude
+		 *            the longitude of the center in degrees.
+		 * @param radiusInKm
+		 *            the radius of the circle in km.
+		 * @return the candidate Offers.
+		 */
+		List<Offer> find(double latitude, double longitude, double radiusInKm);
+	}
+
+	private OfferQueryCache() {
+	}
+
+	/**
+	 * Returns the candidate Offers of a search, from the cache or from the
+	 * given lookup.
+	 *
+	 * @param offerDateNumber
+	 *            the day of the Offers.
+	 * @param latitude
+	 *            the latitude of the caller in degrees.
+	 * @param longitude
+	 *            the longitude of the caller in degrees.
+	 * @param radiusInKm
+	 *            the search radius in km.
+	 * @param cuisines
+	 *            the cuisines to match, empty to match any cuisine.
+	 * @param search
+	 *            the lookup of the candidates on a miss.
+	 * @return a List of new Offer objects, containing the Offers within the
+	 *         radius, and possibly outside of it.
+	 */
+	public static List<Offer> find(final long offerDateNumber,
+			final double latitude, final double longitude,
+			final int radiusInKm, final Set<Cuisine> cuisines,
+			final Search search) {
+		final String cell = GeoHash.encode(latitude, longitude, CELL_PRECISION);
+		final String metricsCell = cell.substring(0, METRICS_PRECISION);
+		final String cacheKey = cell + ":" + offerDateNumber + ":"
+				+ radiusInKm + ":" + cuisines;
+		final CachedResult cached = RESULTS.getIfPresent(cacheKey);
+		if (cached != null) {
+			Metrics.increment(HIT);
+			Metrics.increment(HIT + "." + metricsCell);
+			return cached.toOffers();
+		}
+		Metrics.increment(MISS);
+		Metrics.increment(MISS + "." + metricsCell);
+
+		final long invalidations = INVALIDATIONS.get();
+		final double[] center = GeoHash.center(latitude, longitude,
+				CELL_PRECISION);
+		final double cellRadiusInKm = radiusInKm
+				+ GeoHash.halfDiagonalInKm(CELL_PRECISION);
+		final List<Offer> offers = search.find(center[0], center[1],
+				cellRadiusInKm);
+		final CachedResult result = new CachedResult(offerDateNumber, offers,
+				GeoHash.cover(center[0], center[1], cellRadiusInKm));
+		if (INVALIDATIONS.get() == invalidations) {
+			RESULTS.put(cacheKey, result);
+		}
+		return offers;
+	}
+
+	/**
+	 * Drops the searches which may contain the given Offer, call this after
+	 * it is saved.
+	 *
+	 * @param offer
+	 *            the Offer just saved.
+	 */
+	public static void invalidate(final Offer offer) {
+		INVALIDATIONS.incrementAndGet();
+		final Key<Offer> offerKey = Key.create(offer);
+		final List<String> cells = offer.getGeoCells();
+		final Iterator<CachedResult> results = RESULTS.asMap().values()
+				.iterator();
+		while (results.hasNext()) {
+			final CachedResult result = results.next();
+			if (result.offerKeys.contains(offerKey)
+					|| ((result.offerDateNumber == offer.getOfferDateNumber()) && result
+							.covers(cells))) {
+				results.remove();
+				Metrics.increment(INVALIDATED);
+			}
+		}
+	}
+
+	/**
+	 * Drops the searches containing the Offer with the given key, call this
+	 * after its available quantity changed.
+	 *
+	 * @param offerKey
+	 *            the key of the Offer.
+	 */
+	public static void invalidate(final Key<Offer> offerKey) {
+		INVALIDATIONS.incrementAndGet();
+		final Iterator<CachedResult> results = RESULTS.asMap().values()
+				.iterator();
+		while (results.hasNext()) {
+			if (results.next().offerKeys.contains(offerKey)) {
+				results.remove();
+				Metrics.increment(INVALIDATED);
+			}
+		}
+	}
+
+	/**
+	 * Drops every search from the cache.
+	 */
+	public static void clear() {
+		INVALIDATIONS.incrementAndGet();
+		RESULTS.invalidateAll();
+	}
+
+	/**
+	 * The candidates of a search in their datastore form, so that every
+	 * caller gets its own copies.
+	 */
+	private static class CachedResult {
+
+		private final long offerDateNumber;
+
+		private final List<Entity> entities;
+
+		private final Set<Key<Offer>> offerKeys;
+
+		/**
+		 * The cells looked up, empty when the radius was too large for cells.
+		 */
+		private final Set<String> cells;
+
+		private CachedResult(final long offerDateNumber,
+				final List<Offer> offers, final List<String> cells) {
+			this.offerDateNumber = offerDateNumber;
+			this.entities = new ArrayList<>(offers.size());
+			this.offerKeys = new HashSet<>(offers.size());
+			for (final Offer offer : offers) {
+				this.entities.add(ofy().save().toEntity(offer));
+				this.offerKeys.add(Key.create(offer));
+			}
+			this.cells = new HashSet<>(cells);
+		}
+
+		private boolean covers(final List<String> offerCells) {
+			if (this.cells.isEmpty()) {
+				return true;
+			}
+			if (offerCells != null) {
+				for (final String cell : offerCells) {
+					if (this.cells.contains(cell)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private List<Offer> toOffers() {
+			final List<Offer> offers = new ArrayList<>(this.entities.size());
+			for (final Entity entity : this.entities) {
+				final Offer offer = ofy().load().fromEntity(entity);
+				offers.add(offer);
+			}
+			return offers;
+		}
+	}
+}
@@ -0,0 +1,441 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.SortField;
+
+/**
+ * Ranks candidate offers around a location.
+ *
+ * Candidates are filtered and ordered with a cheap equirectangular metric
+ * computed from the radians precomputed on Offer. The exact haversine
+ * distance is only computed for candidates close to the edge of the search
+ * radius and for the offers that are returned.
+ *
+ * Only the best offers up to the limit are kept, in a bounded heap, so
+ * ranking n candidates costs O(n log k) instead of sorting all of them.
+ */
+public class OfferRanker {
+
+	public static final double RADIUS_OF_EARTH_IN_KM = 6371;
+
+	/**
+	 * The relative error of the equirectangular metric we tolerate before
+	 * checking the exact distance against the search radius.
+	 */
+	private static final double EDGE_TOLERANCE = 0.05;
+
+	/**
+	 * Above this radius (in radians) the equirectangular metric is not
+	 * accurate enough, so every candidate is checked with the exact distance.
+	 */
+	private static final double MAX_APPROXIMATE_RADIUS = 0.05;
+
+	private OfferRanker() {
+	}
+
+	/**
+	 * Returns the candidates within the given radius, sorted by the given
+	 * field, with their distance set.
+	 *
+	 * @param candidates
+	 *            the Offers to rank.
+	 * @param latitude
+	 *            the latitude of the caller in degrees.
+	 * @param longitude
+	 *            the longitude of the caller in degrees.
+	 * @param radiusInKm
+	 *            the search radius in km.
+	 * @param sortField
+	 *            the field to sort on, DISTANCE when null.
+	 * @param limit
+	 *            the maximum number of Offers returned.
+	 * @return a new List of the best ranked Offers.
+	 */
+	public static List<Offer> rank(final List<Offer> candidates,
+			final double latitude, final double longitude,
+			final double radiusInKm, final SortField sortField,
+			final int limit) {
+		return rank(candidates, latitude, longitude, radiusInKm, sortField,
+				limit, null).getOffers();
+	}
+
+	/**
+	 * Returns a page of the candidates within the given radius, sorted by the
+	 * given field, with their distance set.
+	 *
+	 * Offers are ordered by the sort value, then by their ids, and the cursor
+	 * holds the position of the last Offer returned, so the next page starts
+	 * right after it even if Offers are added or removed in between.
+	 *
+	 * @param candidates
+	 *            the Offers to rank.
+	 * @param latitude
+	 *            the latitude of the caller in degrees.
+	 * @param longitude
+	 *            the longitude of the caller in degrees.
+	 * @param radiusInKm
+	 *            the search radius in km.
+	 * @param sortField
+	 *            the field to sort on, DISTANCE when null.
+	 * @param limit
+	 *            the maximum number of Offers returned.
+	 * @param cursor
+	 *            the cursor of the previous page, null for the first page.
+	 * @return the page of the best ranked Offers.
+	 * @throws IllegalArgumentException
+	 *             when the cursor is invalid, or was returned for another
+	 *             query.
+	 */
+	public static Page rank(final List<Offer> candidates,
+			final double latitude, final double longitude,
+			final double radiusInKm, final SortField sortField,
+			final int limit, final String cursor) {
+		return rank(candidates, latitude, longitude, radiusInKm, sortField,
+				limit, cursor, "");
+	}
+
+	/**
+	 * Returns a page of the candidates within the given radius, sorted by the
+	 * given field, with their distance set.
+	 *
+	 * The cursor is bound to the location, the radius, the sort field and the
+	 * other filters of the query, so that it is rejected by a query with
+	 * different filters, which would skip or repeat Offers.
+	 *
+	 * @param candidates
+	 *            the Offers to rank.
+	 * @param latitude
+	 *            the latitude of the caller in degrees.
+	 * @param longitude
+	 *            the longitude of the caller in degrees.
+	 * @param radiusInKm
+	 *            the search radius in km.
+	 * @param sortField
+	 *            the field to sort on, DISTANCE when null.
+	 * @param limit
+	 *            the maximum number of Offers returned.
+	 * @param cursor
+	 *            the cursor of the previous page, null for the first page.
+	 * @param filters
+	 *            the other filters which selected the candidates, such as
+	 *            their day, in a stable text form.
+	 * @return the page of the best ranked Offers.
+	 * @throws IllegalArgumentException
+	 *             when the cursor is invalid, or was returned for another
+	 *             query.
+	 */
+	public static Page rank(final List<Offer> candidates,
+			final double latitude, final double longitude,
+			final double radiusInKm, final SortField sortField,
+			final int limit, final String cursor, final String filters) {
+		final SortField field = sortField == null ? SortField.DISTANCE
+				: sortField;
+		final String query = fingerprint(latitude, longitude, radiusInKm,
+				field, filters);
+		final Position after = cursor == null ? null : Position.decode(
+				cursor, query);
+		final double latitudeRadians = Math.toRadians(latitude);
+		final double longitudeRadians = Math.toRadians(longitude);
+		final double cosLatitude = Math.cos(latitudeRadians);
+		final double radius = radiusInKm / RADIUS_OF_EARTH_IN_KM;
+		final boolean approximate = radius <= MAX_APPROXIMATE_RADIUS;
+		final double inner = square(radius * (1 - EDGE_TOLERANCE));
+		final double outer = square(radius * (1 + EDGE_TOLERANCE));
+
+		final int count = candidates.size();
+		final long[] sortValues = new long[count];
+		final long[] ids = new long[count];
+		final long[] providerIds = new long[count];
+
+		// The heap keeps the indexes of the best candidates seen so far, the
+		// worst one at the root.
+		final int[] heap = new int[Math.max(0, Math.min(limit, count))];
+		int size = 0;
+		boolean more = false;
+		for (int i = 0; i < count; i++) {
+			final Offer offer = candidates.get(i);
+			if (offer.getLocation() == null) {
+				continue;
+			}
+			final double deltaLatitude = offer.getLatitudeRadians()
+					- latitudeRadians;
+			final double deltaLongitude = normalize(offer.getLongitudeRadians()
+					- longitudeRadians);
+			final double x = deltaLongitude * cosLatitude;
+			final double metric = (x * x) + (deltaLatitude * deltaLatitude);
+
+			if (!approximate || ((metric > inner) && (metric <= outer))) {
+				if (haversine(cosLatitude, deltaLatitude, deltaLongitude,
+						offer.getCosLatitude()) > radius) {
+					continue;
+				}
+			} else if (metric > outer) {
+				continue;
+			}
+
+			if (field == SortField.PRICE) {
+				sortValues[i] = offer.getPriceInUnit();
+			} else {
+				// The bits of a non-negative float sort like the float itself.
+				sortValues[i] = Float.floatToIntBits((float) metric);
+			}
+			ids[i] = offer.getId();
+			providerIds[i] = offer.getProviderId() == null ? 0 : offer
+					.getProviderId();
+			if ((after != null)
+					&& (compare(sortValues[i], ids[i], providerIds[i],
+							after.sortValue, after.id, after.providerId) <= 0)) {
+				continue;
+			}
+
+			if (size < heap.length) {
+				heap[size] = i;
+				siftUp(heap, sortValues, ids, providerIds, size++);
+			} else {
+				more = true;
+				if ((size > 0)
+						&& (compare(sortValues, ids, providerIds, i, heap[0]) < 0)) {
+					heap[0] = i;
+					siftDown(heap, sortValues, ids, providerIds, size, 0);
+				}
+			}
+		}
+
+		// Pop the worst remaining candidate until the heap is empty.
+		final int[] order = new int[size];
+		for (int remaining = size; remaining > 0; remaining--) {
+			order[remaining - 1] = heap[0];
+			heap[0] = heap[remaining - 1];
+			siftDown(heap, sortValues, ids, providerIds, remaining - 1, 0);
+		}
+
+		final List<Offer> ranked = new ArrayList<>(size);
+		for (final int i : order) {
+			final Offer offer = candidates.get(i);
+			offer.setDistance(RADIUS_OF_EARTH_IN_KM
+					* haversine(cosLatitude, offer.getLatitudeRadians()
+							- latitudeRadians,
+							normalize(offer.getLongitudeRadians()
+									- longitudeRadians), offer.getCosLatitude()));
+			ranked.add(offer);
+		}
+
+		String nextCursor = null;
+		if (more && (size > 0)) {
+			final int last = order[size - 1];
+			nextCursor = new Position(sortValues[last], ids[last],
+					providerIds[last]).encode(query);
+		}
+		return new Page(ranked, nextCursor);
+	}
+
+	/**
+	 * Returns the exact distance between the given location and the offer.
+	 *
+	 * @param latitude
+	 *            the latitude in degrees.
+	 * @param longitude
+	 *            the longitude in degrees.
+	 * @param offer
+	 *            the Offer.
+	 * @return the distance in km.
+	 */
+	public static double getDistanceInKm(final double latitude,
+			final double longitude, final Offer offer) {
+		final double latitudeRadians = Math.toRadians(latitude);
+		return RADIUS_OF_EARTH_IN_KM
+				* haversine(Math.cos(latitudeRadians),
+						offer.getLatitudeRadians() - latitudeRadians,
+						normalize(offer.getLongitudeRadians()
+								- Math.toRadians(longitude)),
+						offer.getCosLatitude());
+	}
+
+	/**
+	 * Returns the central angle between two points in radians.
+	 */
+	private static double haversine(final double cosLatitude,
+			final double deltaLatitude, final double deltaLongitude,
+			final double otherCosLatitude) {
+		final double sinLatitude = Math.sin(deltaLatitude / 2);
+		final double sinLongitude = Math.sin(deltaLongitude / 2);
+		final double a = (sinLatitude * sinLatitude)
+				+ (cosLatitude * otherCosLatitude * sinLongitude * sinLongitude);
+		return 2 * Math.asin(Math.min(1, Math.sqrt(a)));
+	}
+
+	/**
+	 * Brings a difference of longitudes back to [-PI, PI].
+	 */
+	private static double normalize(final double deltaLongitude) {
+		if (deltaLongitude > Math.PI) {
+			return deltaLongitude - (2 * Math.PI);
+		}
+		if (deltaLongitude < -Math.PI) {
+			return deltaLongitude + (2 * Math.PI);
+		}
+		return deltaLongitude;
+	}
+
+	private static int compare(final long sortValue, final long id,
+			final long providerId, final long otherSortValue,
+			final long otherId, final long otherProviderId) {
+		if (sortValue != otherSortValue) {
+			return sortValue < otherSortValue ? -1 : 1;
+		}
+		if (id != otherId) {
+			return id < otherId ? -1 : 1;
+		}
+		if (providerId != otherProviderId) {
+			return providerId < otherProviderId ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static int compare(final long[] sortValues, final long[] ids,
+			final long[] providerIds, final int i, final int j) {
+		final int result = compare(sortValues[i], ids[i], providerIds[i],
+				sortValues[j], ids[j], providerIds[j]);
+		return result != 0 ? result : Integer.compare(i, j);
+	}
+
+	private static void siftUp(final int[] heap, final long[] sortValues,
+			final long[] ids, final long[] providerIds, final int index) {
+		int child = index;
+		while (child > 0) {
+			final int parent = (child - 1) / 2;
+			if (compare(sortValues, ids, providerIds, heap[parent],
+					heap[child]) >= 0) {
+				return;
+			}
+			swap(heap, parent, child);
+			child = parent;
+		}
+	}
+
+	private static void siftDown(final int[] heap, final long[] sortValues,
+			final long[] ids, final long[] providerIds, final int size,
+			final int index) {
+		int parent = index;
+		while (true) {
+			final int left = (2 * parent) + 1;
+			if (left >= size) {
+				return;
+			}
+			final int right = left + 1;
+			final int largest = ((right < size) && (compare(sortValues, ids,
+					providerIds, heap[right], heap[left]) > 0)) ? right : left;
+			if (compare(sortValues, ids, providerIds, heap[parent],
+					heap[largest]) >= 0) {
+				return;
+			}
+			swap(heap, parent, largest);
+			parent = largest;
+		}
+	}
+
+	private static void swap(final int[] heap, final int i, final int j) {
+		final int value = heap[i];
+		heap[i] = heap[j];
+		heap[j] = value;
+	}
+
+	/**
+	 * Returns a short hash of the filters and the sort field of a query.
+	 */
+	private static String fingerprint(final double latitude,
+			final double longitude, final double radiusInKm,
+			final SortField sortField, final String filters) {
+		return Hashing.murmur3_32().newHasher().putDouble(latitude)
+				.putDouble(longitude).putDouble(radiusInKm)
+				.putString(sortField.name(), Charsets.UTF_8)
+				.putString(filters, Charsets.UTF_8).hash().toString();
+	}
+
+	private static double square(final double value) {
+		return value * value;
+	}
+
+	/**
+	 * A page of ranked Offers.
+	 */
+	public static class Page {
+
+		private final List<Offer> offers;
+
+		private final String nextCursor;
+
+		private Page(final List<Offer> offers, final String nextCursor) {
+			this.offers = offers;
+			this.nextCursor = nextCursor;
+		}
+
+		public List<Offer> getOffers() {
+			return this.offers;
+		}
+
+		/**
+		 * Returns the cursor of the next page.
+		 *
+		 * @return the cursor, or null when this is the last page.
+		 */
+		public String getNextCursor() {
+			return this.nextCursor;
+		}
+	}
+
+	/**
+	 * The position of an Offer in the ranking, encoded in cursors after the
+	 * fingerprint of the query.
+	 */
+	private static class Position {
+
+		private static final String SEPARATOR = ":";
+
+		private final long sortValue;
+
+		private final long id;
+
+		private final long providerId;
+
+		private Position(final long sortValue, final long id,
+				final long providerId) {
+			this.sortValue = sortValue;
+			this.id = id;
+			this.providerId = providerId;
+		}
+
+		private String encode(final String query) {
+			final String position = query + SEPARATOR
+					+ this.sortValue + SEPARATOR + this.id + SEPARATOR
+					+ this.providerId;
+			return BaseEncoding.base64Url().omitPadding()
+					.encode(position.getBytes(Charsets.UTF_8));
+		}
+
+		private static Position decode(final String cursor,
+				final String query) {
+			try {
+				final String[] parts = new String(BaseEncoding.base64Url()
+						.omitPadding().decode(cursor), Charsets.UTF_8)
+						.split(SEPARATOR);
+				if ((parts.length != 4) || !query.equals(parts[0])) {
+					throw new IllegalArgumentException("Invalid cursor: "
+							+ cursor);
+				}
+				return new Position(Long.parseLong(parts[1]),
+						Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+			} catch (final IllegalArgumentException e) {
+				// NumberFormatException is an IllegalArgumentException too.
+				throw new IllegalArgumentException("Invalid cursor: " + cursor,
+						e);
+			}
+		}
+	}
+}
@@ -1,10 +1,20 @@
 package com.google.devrel.training.conference.service;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.GeocodeCacheEntry;
+import com.google.devrel.training.conference.domain.InventoryShard;
 import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferArchive;
+import com.google.devrel.training.conference.domain.OfferTemplate;
 import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.domain.Versioned;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.ObjectifyFactory;
 import com.googlecode.objectify.ObjectifyService;
@@ -23,6 +33,10 @@ public class OfyService {
 
 		factory().register(Provider.class);
 		factory().register(Offer.class);
+		factory().register(GeocodeCacheEntry.class);
+		factory().register(InventoryShard.class);
+		factory().register(OfferTemplate.class);
+		factory().register(OfferArchive.class);
 	}
 
 	/**
@@ -35,6 +49,52 @@ public class OfyService {
 		return ObjectifyService.ofy();
 	}
 
+	/**
+	 * Saves entities and waits for the put. The Offers, Providers, Profiles
+	 * and Conferences must be saved this way rather than with ofy().save():
+	 * it increases their versions, and evicts them from the local tier of the
+	 * EntityCache of this instance, once the transaction of a
+	 * TransactionRunner commits when there is one.
+	 * 
+	 * @param entities
+	 *            the entities to save.
+	 */
+	public static void save(final Object... entities) {
+		save(Arrays.asList(entities));
+	}
+
+	/**
+	 * Saves entities and waits for the put. The Offers, Providers, Profiles
+	 * and Conferences must be saved this way rather than with ofy().save():
+	 * it increases their versions, and evicts them from the local tier of the
+	 * EntityCache of this instance, once the transaction of a
+	 * TransactionRunner commits when there is one.
+	 * 
+	 * @param entities
+	 *            the entities to save.
+	 */
+	public static void save(final Iterable<?> entities) {
+		for (final Object entity : entities) {
+			if (entity instanceof Versioned) {
+				final Versioned versioned = (Versioned) entity;
+				versioned.updateVersion(EntityVersions.next(versioned
+						.getVersion()));
+			}
+		}
+		ofy().save().entities(entities).now();
+		// Evicted once saved, as saving sets the ids of the new entities.
+		final List<Key<?>> keys = new ArrayList<>();
+		for (final Object entity : entities) {
+			keys.add(Key.create(entity));
+		}
+		// Until the transaction commits, a read may cache the entities as
+		// they were before.
+		if ((ofy().getTransaction() == null)
+				|| !TransactionRunner.evictOnCommit(keys)) {
+			EntityCache.invalidate(keys.toArray(new Key<?>[keys.size()]));
+		}
+	}
+
 	/**
 	 * Use this static method for getting the Objectify service factory.
 	 * 
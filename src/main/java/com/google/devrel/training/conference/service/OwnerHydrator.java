@@ -0,0 +1,86 @@
+package com.google.devrel.training.conference.service;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+
+/**
+ * Fills in the display data of the owners of the entities of a list
+ * response, before it is serialized.
+ *
+ * The entities only hold the user id of their owner. Reading the Profile of
+ * the owner while each entity is serialized costs one datastore get per
+ * entity, so the list endpoints hydrate the whole list instead, with the
+ * Profiles of all the owners read in one batch through the EntityCache.
+ */
+public class OwnerHydrator {
+
+	private OwnerHydrator() {
+	}
+
+	/**
+	 * Sets the display name of the organizer of the given Conferences.
+	 *
+	 * @param conferences
+	 *            the Conferences of the response.
+	 */
+	public static void hydrateConferences(final Iterable<Conference> conferences) {
+		final Set<String> userIds = new LinkedHashSet<>();
+		for (final Conference conference : conferences) {
+			userIds.add(conference.getOrganizerUserId());
+		}
+		final Map<String, String> displayNames = displayNames(userIds);
+		for (final Conference conference : conferences) {
+			conference.setOrganizerDisplayName(displayNames.get(conference
+					.getOrganizerUserId()));
+		}
+	}
+
+	/**
+	 * Sets the display name of the creator of the given Providers.
+	 *
+	 * @param providers
+	 *            the Providers of the response.
+	 */
+	public static void hydrateProviders(final Iterable<Provider> providers) {
+		final Set<String> userIds = new LinkedHashSet<>();
+		for (final Provider provider : providers) {
+			userIds.add(provider.getCreatorId());
+		}
+		final Map<String, String> displayNames = displayNames(userIds);
+		for (final Provider provider : providers) {
+			provider.setCreatorDisplayName(displayNames.get(provider
+					.getCreatorId()));
+		}
+	}
+
+	/**
+	 * Returns the display name of each user, the user id for the users
+	 * without a Profile.
+	 */
+	private static Map<String, String> displayNames(final Set<String> userIds) {
+		final List<Key<Profile>> keys = new ArrayList<>(userIds.size());
+		for (final String userId : userIds) {
+			keys.add(Key.create(Profile.class, userId));
+		}
+		final Map<String, String> displayNames = new HashMap<>();
+		if (keys.isEmpty()) {
+			return displayNames;
+		}
+		for (final String userId : userIds) {
+			displayNames.put(userId, userId);
+		}
+		for (final Profile profile : EntityCache.get(keys).values()) {
+			displayNames.put(profile.getUserId(), profile.getDisplayName());
+		}
+		return displayNames;
+	}
+}
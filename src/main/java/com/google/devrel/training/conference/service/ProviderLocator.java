@@ -0,0 +1,127 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+/**
+ * Back-fills the location of providers whose address changed.
+ *
+ * Providers are saved with a pending location and a task is enqueued in the
+ * same transaction. The task geocodes the address outside of any transaction,
+ * then saves the location on the provider and on its upcoming offers.
+ */
+public class ProviderLocator {
+
+	private static final Logger LOG = Logger.getLogger(ProviderLocator.class
+			.getName());
+
+	public static final String TASK_URL = "/tasks/geocode_provider";
+
+	public static final String PROVIDER_KEY_PARAM = "websafeProviderKey";
+
+	public static final String ADDRESS_PARAM = "address";
+
+	private static final TransactionRunner LOCATE_TX = new TransactionRunner(
+			"locateProvider");
+
+	private ProviderLocator() {
+	}
+
+	/**
+	 * Enqueues the task locating the given provider. Call this inside the
+	 * transaction saving the provider, so that the task only runs if the
+	 * provider is saved.
+	 *
+	 * @param provider
+	 *            the Provider with a pending location.
+	 */
+	public static void enqueue(final Provider provider) {
+		final Queue queue = QueueFactory.getDefaultQueue();
+		queue.add(
+				ofy().getTransaction(),
+				TaskOptions.Builder.withUrl(TASK_URL)
+						.param(PROVIDER_KEY_PARAM, provider.getWebsafeKey())
+						.param(ADDRESS_PARAM, provider.getAddress()));
+	}
+
+	/**
+	 * Geocodes the given address and saves the location on the provider and
+	 * on its offers from today on.
+	 *
+	 * Nothing is saved if the address of the provider changed since the task
+	 * was enqueued, the task enqueued by that change takes care of it.
+	 *
+	 * @param providerKey
+	 *            the key of the Provider.
+	 * @param address
+	 *            the address of the Provider when the task was enqueued.
+	 * @throws IOException
+	 *             when the geocoder fails, the task should be retried.
+	 */
+	public static void locate(final Key<Provider> providerKey,
+			final String address) throws IOException {
+		// Outside of the transaction, so that no lock is held across the
+		// network call.
+		final GeoPt location = GeocoderService.geocoder().geocode(address);
+		if (location == null) {
+			LOG.warning("No location found for " + address);
+		}
+		final long today = today();
+
+		final List<Offer> offers = LOCATE_TX.run(new Work<List<Offer>>() {
+			@Override
+			public List<Offer> run() {
+				final WriteSet writes = new WriteSet();
+				final Provider provider = writes.load(providerKey);
+				if ((provider == null) || !provider.isLocationPending()
+						|| !address.equals(provider.getAddress())) {
+					return new ArrayList<>(0);
+				}
+				provider.setLocation(location);
+				if (location == null) {
+					OfyService.save(provider);
+					return new ArrayList<>(0);
+				}
+				final List<Offer> offers = ofy().load().type(Offer.class)
+						.ancestor(providerKey)
+						.filter("offerDateNumber >= ", today).list();
+				// Offers already at this location are not written again.
+				writes.track(offers);
+				for (final Offer offer : offers) {
+					offer.setLocation(location.getLatitude(),
+							location.getLongitude());
+				}
+				final List<Object> entities = new ArrayList<Object>(offers);
+				entities.add(provider);
+				writes.save(entities);
+				return offers;
+			}
+		}, providerKey);
+		for (final Offer offer : offers) {
+			OfferIndex.put(offer);
+			OfferQueryCache.invalidate(offer);
+		}
+	}
+
+	private static long today() {
+		final Calendar calendar = new GregorianCalendar();
+		return calendar.get(Calendar.DAY_OF_MONTH)
+				+ (100 * (calendar.get(Calendar.MONTH) + 1))
+				+ (10000 * calendar.get(Calendar.YEAR));
+	}
+}
@@ -0,0 +1,243 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+/**
+ * Runs datastore transactions for one endpoint, with instrumentation and
+ * retries.
+ *
+ * Objectify retries a transaction failing on a conflict right away and
+ * silently. A TransactionRunner instead retries with a jittered exponential
+ * backoff, within the budget of attempts of its endpoint. It counts the
+ * attempts, conflicts, commits and failures of the endpoint in Metrics under
+ * "tx.[name].*", adds up the latency of the committed attempts, and counts the
+ * conflicts per entity group, so that hot entity groups show up in the
+ * StatsServlet and in the logs.
+ *
+ * The entities saved with OfyService.save in the transaction are evicted from
+ * the EntityCache once it commits.
+ */
+public class TransactionRunner {
+
+	private static final Logger LOG = Logger.getLogger(TransactionRunner.class
+			.getName());
+
+	public static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+	public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 10;
+
+	public static final long DEFAULT_MAX_BACKOFF_MILLIS = 500;
+
+	private static final int MAX_TRACKED_ENTITY_GROUPS = 1000;
+
+	private static final Cache<String, AtomicLong> ENTITY_GROUP_CONFLICTS = CacheBuilder
+			.newBuilder().maximumSize(MAX_TRACKED_ENTITY_GROUPS).build();
+
+	private static final Random RANDOM = new Random();
+
+	/**
+	 * The keys saved in the attempt running on this thread, null when there
+	 * is none.
+	 */
+	private static final ThreadLocal<Set<Key<?>>> SAVED_KEYS = new ThreadLocal<>();
+
+	private final String name;
+
+	private final int maxAttempts;
+
+	private final long initialBackoffMillis;
+
+	private final long maxBackoffMillis;
+
+	/**
+	 * Creates a TransactionRunner with the default budget.
+	 *
+	 * @param name
+	 *            the name of the endpoint, used in the metrics.
+	 */
+	public TransactionRunner(final String name) {
+		this(name, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF_MILLIS,
+				DEFAULT_MAX_BACKOFF_MILLIS);
+	}
+
+	/**
+	 * Creates a TransactionRunner with the given budget.
+	 *
+	 * @param name
+	 *            the name of the endpoint, used in the metrics.
+	 * @param maxAttempts
+	 *            the number of attempts before giving up.
+	 * @param initialBackoffMillis
+	 *            the upper bound of the wait before the first retry.
+	 * @param maxBackoffMillis
+	 *            the upper bound of the wait before any retry.
+	 */
+	public TransactionRunner(final String name, final int maxAttempts,
+			final long initialBackoffMillis, final long maxBackoffMillis) {
+		this.name = name;
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffMillis = initialBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+
+	/**
+	 * Runs the given work in a transaction, or in the current one if there
+	 * is one.
+	 *
+	 * @param work
+	 *            the work to run, possibly several times.
+	 * @param entityGroupKeys
+	 *            keys in the entity groups the work operates on, to count
+	 *            the conflicts on.
+	 * @return the result of the work.
+	 * @throws ConcurrentModificationException
+	 *             when the last attempt conflicted.
+	 */
+	public <R> R run(final Work<R> work, final Key<?>... entityGroupKeys) {
+		if (ofy().getTransaction() != null) {
+			// The enclosing transaction is retried as a whole.
+			return ofy().transact(work);
+		}
+		for (int attempt = 1;; attempt++) {
+			Metrics.increment(metric("attempt"));
+			final long start = System.nanoTime();
+			final Set<Key<?>> savedKeys = new HashSet<>();
+			SAVED_KEYS.set(savedKeys);
+			try {
+				// Objectify 5.0 retries limitTries times after the first
+				// attempt, the retries are done here instead.
+				final R result = ofy().transactNew(0, work);
+				Metrics.increment(metric("commit"));
+				Metrics.add(metric("commit_ms"), TimeUnit.NANOSECONDS
+						.toMillis(System.nanoTime() - start));
+				EntityCache.invalidate(savedKeys.toArray(new Key<?>[savedKeys
+						.size()]));
+				return result;
+			} catch (final ConcurrentModificationException e) {
+				Metrics.increment(metric("conflict"));
+				final Set<String> entityGroups = recordConflict(entityGroupKeys);
+				if (attempt >= this.maxAttempts) {
+					Metrics.increment(metric("failure"));
+					LOG.warning(this.name + " gave up after " + attempt
+							+ " conflicting attempts on " + entityGroups);
+					throw e;
+				}
+				final long backoffMillis = backoffMillis(attempt);
+				LOG.info(this.name + " conflicted on " + entityGroups
+						+ ", attempt " + attempt + ", retrying in "
+						+ backoffMillis + "ms");
+				try {
+					Thread.sleep(backoffMillis);
+				} catch (final InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					throw e;
+				}
+			} finally {
+				SAVED_KEYS.remove();
+			}
+		}
+	}
+
+	/**
+	 * Evicts the given keys from the EntityCache once the transaction run on
+	 * this thread commits, and not at all if it doesn't.
+	 *
+	 * @param keys
+	 *            the keys of the entities saved in the transaction.
+	 * @return false if the transaction of this thread was not started by a
+	 *         TransactionRunner.
+	 */
+	static boolean evictOnCommit(final Collection<Key<?>> keys) {
+		final Set<Key<?>> savedKeys = SAVED_KEYS.get();
+		if (savedKeys == null) {
+			return false;
+		}
+		savedKeys.addAll(keys);
+		return true;
+	}
+
+	/**
+	 * Returns the entity groups with the most conflicts on this instance.
+	 *
+	 * @param limit
+	 *            the maximum number of entity groups.
+	 * @return the entity groups and their number of conflicts, most
+	 *         conflicting first.
+	 */
+	public static List<Map.Entry<String, Long>> getHotEntityGroups(
+			final int limit) {
+		final List<Map.Entry<String, Long>> entityGroups = new ArrayList<>();
+		for (final Map.Entry<String, AtomicLong> entry : ENTITY_GROUP_CONFLICTS
+				.asMap().entrySet()) {
+			entityGroups.add(Maps.immutableEntry(entry.getKey(), entry
+					.getValue().get()));
+		}
+		Collections.sort(entityGroups,
+				new Comparator<Map.Entry<String, Long>>() {
+					@Override
+					public int compare(final Map.Entry<String, Long> entry1,
+							final Map.Entry<String, Long> entry2) {
+						return entry2.getValue().compareTo(entry1.getValue());
+					}
+				});
+		return entityGroups.subList(0, Math.min(limit, entityGroups.size()));
+	}
+
+	/**
+	 * Returns a random wait of at most initialBackoffMillis doubled on every
+	 * attempt, and at most maxBackoffMillis.
+	 */
+	long backoffMillis(final int attempt) {
+		final long bound = Math.min(this.maxBackoffMillis,
+				this.initialBackoffMillis << Math.min(attempt - 1, 30));
+		return (long) (RANDOM.nextDouble() * bound);
+	}
+
+	private String metric(final String event) {
+		return "tx." + this.name + "." + event;
+	}
+
+	private static Set<String> recordConflict(final Key<?>... entityGroupKeys) {
+		final Set<String> entityGroups = new LinkedHashSet<>();
+		for (final Key<?> key : entityGroupKeys) {
+			entityGroups.add(key.getRoot().getRaw().toString());
+		}
+		for (final String entityGroup : entityGroups) {
+			try {
+				ENTITY_GROUP_CONFLICTS.get(entityGroup,
+						new Callable<AtomicLong>() {
+							@Override
+							public AtomicLong call() {
+								return new AtomicLong();
+							}
+						}).incrementAndGet();
+			} catch (final ExecutionException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+		return entityGroups;
+	}
+}
@@ -0,0 +1,122 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Objectify;
+
+/**
+ * Resolves the App Engine userId of a User.
+ *
+ * Android clients get a User without userId, which the datastore only fills
+ * in when the User is stored. Instead of storing an AppEngineUser on every
+ * request, the userIds obtained that way are cached by email in an
+ * instance-local LRU and in memcache, and an AppEngineUser already stored is
+ * read without being written again.
+ *
+ * Resolve the userId once per request and pass it along.
+ */
+public class UserIdResolver {
+
+	private static final Logger LOG = Logger.getLogger(UserIdResolver.class
+			.getName());
+
+	private static final int LOCAL_CACHE_SIZE = 10000;
+
+	private static final String MEMCACHE_KEY_PREFIX = "userId:";
+
+	public static final String LOCAL_HIT = "userId.local.hit";
+
+	public static final String MEMCACHE_HIT = "userId.memcache.hit";
+
+	public static final String DATASTORE_HIT = "userId.datastore.hit";
+
+	public static final String MISS = "userId.miss";
+
+	private static final Cache<String, String> LOCAL_CACHE = CacheBuilder
+			.newBuilder().maximumSize(LOCAL_CACHE_SIZE).build();
+
+	private UserIdResolver() {
+	}
+
+	/**
+	 * Returns the App Engine userId of the given user.
+	 *
+	 * @param user
+	 *            A User object injected by the cloud endpoints.
+	 * @return the App Engine userId for the user.
+	 */
+	public static String resolve(final User user) {
+		String userId = user.getUserId();
+		if (userId != null) {
+			return userId;
+		}
+		final String email = user.getEmail();
+		userId = LOCAL_CACHE.getIfPresent(email);
+		if (userId != null) {
+			Metrics.increment(LOCAL_HIT);
+			return userId;
+		}
+
+		final MemcacheService memcache = MemcacheServiceFactory
+				.getMemcacheService();
+		final String memcacheKey = MEMCACHE_KEY_PREFIX + email;
+		try {
+			userId = (String) memcache.get(memcacheKey);
+		} catch (final RuntimeException e) {
+			// Memcache is only a cache, fall back to the datastore.
+			LOG.log(Level.WARNING, "Failed to read " + memcacheKey, e);
+		}
+		if (userId != null) {
+			Metrics.increment(MEMCACHE_HIT);
+			LOCAL_CACHE.put(email, userId);
+			return userId;
+		}
+
+		userId = loadUserId(email);
+		if (userId != null) {
+			Metrics.increment(DATASTORE_HIT);
+		} else {
+			Metrics.increment(MISS);
+			LOG.info("userId is null, so trying to obtain it from the datastore.");
+			final AppEngineUser appEngineUser = new AppEngineUser(user);
+			ofy().save().entity(appEngineUser).now();
+			userId = loadUserId(email);
+			LOG.info("Obtained the userId: " + userId);
+		}
+		if (userId != null) {
+			try {
+				memcache.put(memcacheKey, userId);
+			} catch (final RuntimeException e) {
+				LOG.log(Level.WARNING, "Failed to write " + memcacheKey, e);
+			}
+			LOCAL_CACHE.put(email, userId);
+		}
+		return userId;
+	}
+
+	/**
+	 * Clears the instance-local cache, used by tests.
+	 */
+	public static void clear() {
+		LOCAL_CACHE.invalidateAll();
+	}
+
+	private static String loadUserId(final String email) {
+		// Begin new session for not using session cache.
+		final Objectify objectify = ofy().factory().begin();
+		final AppEngineUser savedUser = objectify.load()
+				.key(Key.create(AppEngineUser.class, email)).now();
+		return savedUser == null || savedUser.getUser() == null ? null
+				: savedUser.getUser().getUserId();
+	}
+}
@@ -0,0 +1,130 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.appengine.api.datastore.Entity;
+import com.googlecode.objectify.Key;
+
+/**
+ * Saves only the entities which changed since they were loaded.
+ *
+ * Entities loaded or tracked through a WriteSet are snapshotted in their
+ * datastore form. Saving them through the WriteSet compares them with their
+ * snapshot, and skips the put of the ones whose properties and indexes are
+ * unchanged, sparing their entity and index writes and keeping them out of
+ * the transaction. Entities which were not tracked are always saved.
+ *
+ * A WriteSet is meant for one unit of work, so it must be created inside the
+ * Work of a transaction, which is run again on a retry.
+ */
+public class WriteSet {
+
+	public static final String WRITTEN = "writes.written";
+
+	public static final String SKIPPED = "writes.skipped";
+
+	private final Map<com.google.appengine.api.datastore.Key, Entity> snapshots = new HashMap<>();
+
+	/**
+	 * Loads an entity and tracks it.
+	 *
+	 * @param key
+	 *            the key of the entity.
+	 * @return the entity, null if it does not exist.
+	 */
+	public <T> T load(final Key<T> key) {
+		final T entity = ofy().load().key(key).now();
+		if (entity != null) {
+			track(entity);
+		}
+		return entity;
+	}
+
+	/**
+	 * Tracks entities just loaded, so that they are saved only if they change.
+	 *
+	 * @param entities
+	 *            the loaded entities.
+	 */
+	public void track(final Iterable<?> entities) {
+		for (final Object entity : entities) {
+			track(entity);
+		}
+	}
+
+	/**
+	 * Tracks an entity just loaded, so that it is saved only if it changes.
+	 *
+	 * @param entity
+	 *            the loaded entity.
+	 */
+	public void track(final Object entity) {
+		final Entity snapshot = ofy().save().toEntity(entity);
+		this.snapshots.put(snapshot.getKey(), snapshot);
+	}
+
+	/**
+	 * Saves the given entities which changed, and waits for the put.
+	 *
+	 * @param entities
+	 *            the entities to save.
+	 * @return the number of entities actually saved.
+	 */
+	public int save(final Object... entities) {
+		return save(Arrays.asList(entities));
+	}
+
+	/**
+	 * Saves the given entities which changed, and waits for the put.
+	 *
+	 * @param entities
+	 *            the entities to save.
+	 * @return the number of entities actually saved.
+	 */
+	public int save(final Iterable<?> entities) {
+		final List<Object> changed = new ArrayList<>();
+		int skipped = 0;
+		for (final Object entity : entities) {
+			final Entity current = ofy().save().toEntity(entity);
+			final Entity snapshot = current.getKey().isComplete() ? this.snapshots
+					.get(current.getKey()) : null;
+			if ((snapshot != null) && sameState(snapshot, current)) {
+				skipped++;
+			} else {
+				changed.add(entity);
+			}
+		}
+		if (!changed.isEmpty()) {
+			OfyService.save(changed);
+			// Snapshotted once saved, as saving sets their ids and versions.
+			track(changed);
+		}
+		Metrics.add(WRITTEN, changed.size());
+		Metrics.add(SKIPPED, skipped);
+		return changed.size();
+	}
+
+	/**
+	 * Returns whether two entities have the same properties, indexed the same
+	 * way.
+	 */
+	private static boolean sameState(final Entity entity1, final Entity entity2) {
+		final Map<String, Object> properties = entity1.getProperties();
+		if (!properties.equals(entity2.getProperties())) {
+			return false;
+		}
+		for (final String name : properties.keySet()) {
+			if (entity1.isUnindexedProperty(name) != entity2
+					.isUnindexedProperty(name)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
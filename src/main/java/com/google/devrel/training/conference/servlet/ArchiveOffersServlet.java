@@ -0,0 +1,38 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.OfferArchiver;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for moving the offers of past days to archives.
+ *
+ * The cron job GETs it to start the chain of tasks, each task POSTs it to
+ * archive a batch of offers and enqueue the next batch.
+ */
+public class ArchiveOffersServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        OfferArchiver.enqueue(null, 0);
+        response.setStatus(204);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter(OfferArchiver.CURSOR_PARAM);
+        int batch = Integer.parseInt(request.getParameter(OfferArchiver.BATCH_PARAM));
+        String nextCursor = OfferArchiver.archiveBatch(cursor);
+        if (nextCursor != null) {
+            OfferArchiver.enqueue(nextCursor, batch + 1);
+        }
+        response.setStatus(204);
+    }
+}
@@ -0,0 +1,41 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.IndexBackfill;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for saving the entities again after a property got indexed.
+ *
+ * An admin GETs it once after the deploy to start a chain of tasks per kind, each task POSTs
+ * it to save a batch of entities and enqueue the next batch.
+ */
+public class BackfillIndexesServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        IndexBackfill.start();
+        response.setStatus(204);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String run = request.getParameter(IndexBackfill.RUN_PARAM);
+        IndexBackfill.Kind kind = IndexBackfill.Kind.valueOf(
+                request.getParameter(IndexBackfill.KIND_PARAM));
+        String cursor = request.getParameter(IndexBackfill.CURSOR_PARAM);
+        int batch = Integer.parseInt(request.getParameter(IndexBackfill.BATCH_PARAM));
+        String nextCursor = IndexBackfill.resaveBatch(kind, cursor);
+        if (nextCursor != null) {
+            IndexBackfill.enqueue(run, kind, nextCursor, batch + 1);
+        }
+        response.setStatus(204);
+    }
+}
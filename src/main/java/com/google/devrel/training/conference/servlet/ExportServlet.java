@@ -0,0 +1,60 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.Exporter;
+
+import java.io.IOException;
+import java.io.Writer;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for exporting the offers or the providers, optionally of one city, as newline
+ * delimited JSON or as CSV.
+ *
+ * The parameters are kind (offers or providers), format (json or csv, json by default), city
+ * and cursor. A response holds at most Exporter.MAX_ROWS rows, when there are more the
+ * X-Next-Cursor header holds the cursor parameter of the next request.
+ */
+public class ExportServlet extends HttpServlet {
+
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        Exporter.Kind kind;
+        Exporter.Format format;
+        try {
+            kind = Exporter.Kind.valueOf(String.valueOf(request.getParameter("kind"))
+                    .toUpperCase());
+            String formatParam = request.getParameter("format");
+            format = formatParam == null ? Exporter.Format.JSON
+                    : Exporter.Format.valueOf(formatParam.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                    "kind must be offers or providers, format json or csv");
+            return;
+        }
+        String city = request.getParameter("city");
+        String cursor = request.getParameter("cursor");
+
+        String nextCursor;
+        try {
+            nextCursor = Exporter.endCursor(kind, city, cursor, Exporter.MAX_ROWS);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid cursor");
+            return;
+        }
+        response.setContentType(format.getContentType());
+        response.setCharacterEncoding("UTF-8");
+        if (nextCursor != null) {
+            response.setHeader(NEXT_CURSOR_HEADER, nextCursor);
+        }
+        Writer writer = response.getWriter();
+        Exporter.export(kind, city, cursor, nextCursor, format, Exporter.PAGE_SIZE, writer);
+        writer.flush();
+    }
+}
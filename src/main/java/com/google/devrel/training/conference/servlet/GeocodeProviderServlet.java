@@ -0,0 +1,38 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.service.ProviderLocator;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for back-filling the location of a provider.
+ */
+public class GeocodeProviderServlet extends HttpServlet {
+
+    private static final Logger LOG = Logger.getLogger(
+            GeocodeProviderServlet.class.getName());
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeProviderKey = request.getParameter(ProviderLocator.PROVIDER_KEY_PARAM);
+        String address = request.getParameter(ProviderLocator.ADDRESS_PARAM);
+        try {
+            ProviderLocator.locate(Key.<Provider>create(websafeProviderKey), address);
+        } catch (IOException e) {
+            // Failing the task makes the task queue retry it with backoff.
+            LOG.log(Level.WARNING, String.format("Failed to geocode %s", address), e);
+            throw e;
+        }
+        response.setStatus(204);
+    }
+}
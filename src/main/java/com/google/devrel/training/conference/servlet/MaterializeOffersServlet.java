@@ -0,0 +1,39 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.OfferMaterializer;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for creating the offers of the upcoming days from the offer
+ * templates.
+ *
+ * The cron job GETs it to start the chain of tasks, each task POSTs it to
+ * materialize a batch of templates and enqueue the next batch.
+ */
+public class MaterializeOffersServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        OfferMaterializer.enqueue(null, 0);
+        response.setStatus(204);
+    }
+
+    @Override
+    protected void doPost(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String cursor = request.getParameter(OfferMaterializer.CURSOR_PARAM);
+        int batch = Integer.parseInt(request.getParameter(OfferMaterializer.BATCH_PARAM));
+        String nextCursor = OfferMaterializer.materializeBatch(cursor);
+        if (nextCursor != null) {
+            OfferMaterializer.enqueue(nextCursor, batch + 1);
+        }
+        response.setStatus(204);
+    }
+}
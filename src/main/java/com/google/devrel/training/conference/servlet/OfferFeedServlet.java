@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.form.OfferQueryForm;
+import com.google.devrel.training.conference.form.SortField;
+import com.google.devrel.training.conference.service.OfferFeedCodec;
+import com.google.devrel.training.conference.spi.HomeFoodApi;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet serving the results of queryOffers in the compact binary form of OfferFeedCodec,
+ * for the mobile clients.
+ *
+ * The parameters are those of OfferQueryForm: lat and lng (required), distance, date
+ * (yyyy-MM-dd), cuisine (repeated), sort, limit and cursor.
+ */
+public class OfferFeedServlet extends HttpServlet {
+
+    private final HomeFoodApi homeFoodApi = new HomeFoodApi();
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        OfferQueryForm offerQueryForm;
+        try {
+            offerQueryForm = parseForm(request);
+        } catch (IllegalArgumentException | ParseException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        CollectionResponse<Offer> offers;
+        try {
+            offers = homeFoodApi.queryOffers(offerQueryForm);
+        } catch (BadRequestException e) {
+            // The cursor is invalid.
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+        byte[] feed = OfferFeedCodec.encode(new ArrayList<>(offers.getItems()),
+                offers.getNextPageToken());
+        response.setContentType(OfferFeedCodec.CONTENT_TYPE);
+        response.setContentLength(feed.length);
+        response.getOutputStream().write(feed);
+    }
+
+    private static OfferQueryForm parseForm(HttpServletRequest request)
+            throws ParseException {
+        String latitude = request.getParameter("lat");
+        String longitude = request.getParameter("lng");
+        if (latitude == null || longitude == null) {
+            throw new IllegalArgumentException("lat and lng are required");
+        }
+        String distance = request.getParameter("distance");
+        String date = request.getParameter("date");
+        String sort = request.getParameter("sort");
+        String limit = request.getParameter("limit");
+        Date offerDate = date == null ? null : new SimpleDateFormat("yyyy-MM-dd").parse(date);
+
+        List<Cuisine> cuisines = new ArrayList<>();
+        String[] cuisineParams = request.getParameterValues("cuisine");
+        if (cuisineParams != null) {
+            for (String cuisine : cuisineParams) {
+                cuisines.add(Cuisine.valueOf(cuisine.toUpperCase()));
+            }
+        }
+
+        return new OfferQueryForm(Float.parseFloat(latitude), Float.parseFloat(longitude),
+                distance == null ? 0 : Integer.parseInt(distance), offerDate, null,
+                sort == null ? null : SortField.valueOf(sort.toUpperCase()),
+                limit == null ? 0 : Integer.parseInt(limit), request.getParameter("cursor"))
+                .cuisines(cuisines.toArray(new Cuisine[cuisines.size()]));
+    }
+}
@@ -0,0 +1,47 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.devrel.training.conference.service.Metrics;
+import com.google.devrel.training.conference.service.OfyService;
+import com.google.devrel.training.conference.service.TransactionRunner;
+import com.googlecode.objectify.impl.EntityMemcacheStats;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.TreeMap;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for reading the counters of the instance serving the request, followed by the
+ * hits and misses of the Objectify global cache per kind, and by the entity groups with the
+ * most transaction conflicts.
+ */
+public class StatsServlet extends HttpServlet {
+
+    private static final int HOT_ENTITY_GROUPS = 20;
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        PrintWriter writer = response.getWriter();
+        for (Map.Entry<String, Long> counter : Metrics.snapshot().entrySet()) {
+            writer.println(counter.getKey() + " " + counter.getValue());
+        }
+        for (Map.Entry<String, EntityMemcacheStats.Stat> kind : new TreeMap<>(
+                OfyService.factory().getMemcacheStats().getStats()).entrySet()) {
+            writer.println("ofy.memcache." + kind.getKey() + ".hit " + kind.getValue().getHits());
+            writer.println("ofy.memcache." + kind.getKey() + ".miss "
+                    + kind.getValue().getMisses());
+        }
+        for (Map.Entry<String, Long> entityGroup
+                : TransactionRunner.getHotEntityGroups(HOT_ENTITY_GROUPS)) {
+            writer.println("tx.conflicts " + entityGroup.getKey() + " " + entityGroup.getValue());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.google.devrel.training.conference.servlet;
+
+import com.google.appengine.api.oauth.OAuthRequestException;
+import com.google.appengine.api.oauth.OAuthServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.devrel.training.conference.Constants;
+import com.google.devrel.training.conference.service.EntityVersions;
+import com.google.devrel.training.conference.service.UserIdResolver;
+import com.googlecode.objectify.Key;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A servlet for revalidating the copies of the responses of getOffer, getProvider, getProfile
+ * and getConference held by polling clients.
+ *
+ * The key parameter is the websafe key of the entity. The response carries the entity tag of
+ * the current response of the read endpoint in its ETag header, and is a 304 without reading
+ * the response when the If-None-Match header of the request matches it, so the clients only
+ * call the read endpoint again when the entity changed. Like getProfile, a Profile key
+ * requires its user to be signed in.
+ */
+public class VersionServlet extends HttpServlet {
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String websafeKey = request.getParameter("key");
+        if (websafeKey == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "key is required");
+            return;
+        }
+        String etag;
+        try {
+            Key<Object> key = Key.create(websafeKey);
+            if (key.getKind().equals("Profile")) {
+                User user = currentUser();
+                if (user == null) {
+                    response.sendError(HttpServletResponse.SC_UNAUTHORIZED,
+                            "Authorization required");
+                    return;
+                }
+                if (!UserIdResolver.resolve(user).equals(key.getName())) {
+                    response.sendError(HttpServletResponse.SC_FORBIDDEN,
+                            "Only the user can read their profile.");
+                    return;
+                }
+            }
+            etag = EntityVersions.etag(websafeKey);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid key: " + websafeKey);
+            return;
+        }
+        if (etag == null) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "No entity found with key: "
+                    + websafeKey);
+            return;
+        }
+        response.setHeader("ETag", etag);
+        response.setHeader("Cache-Control", "no-cache");
+        if (EntityVersions.matches(request.getHeader("If-None-Match"), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setContentType("text/plain");
+        response.setCharacterEncoding("UTF-8");
+        response.getWriter().print(etag);
+    }
+
+    /**
+     * Returns the user signed in with OAuth like on the endpoints, or with the users service.
+     */
+    private static User currentUser() {
+        try {
+            User user = OAuthServiceFactory.getOAuthService().getCurrentUser(
+                    Constants.EMAIL_SCOPE);
+            if (user != null) {
+                return user;
+            }
+        } catch (OAuthRequestException e) {
+            // No OAuth token, try the users service.
+        }
+        return UserServiceFactory.getUserService().getCurrentUser();
+    }
+}
@@ -6,10 +6,14 @@ import static com.google.devrel.training.conference.service.OfyService.ofy;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.memcache.MemcacheService;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
@@ -18,19 +22,23 @@ import com.google.appengine.api.taskqueue.TaskOptions;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
 import com.google.devrel.training.conference.domain.Announcement;
-import com.google.devrel.training.conference.domain.AppEngineUser;
 import com.google.devrel.training.conference.domain.Conference;
 import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.OwnerHydrator;
+import com.google.devrel.training.conference.service.TransactionRunner;
+import com.google.devrel.training.conference.service.UserIdResolver;
+import com.google.devrel.training.conference.service.WriteSet;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Work;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.logging.Logger;
 
@@ -54,14 +62,28 @@ public class ConferenceApi {
 
     private static final Logger LOG = Logger.getLogger(ConferenceApi.class.getName());
 
+    private static final TransactionRunner CREATE_CONFERENCE_TX =
+            new TransactionRunner("createConference");
+
+    private static final TransactionRunner UPDATE_CONFERENCE_TX =
+            new TransactionRunner("updateConference");
+
+    /**
+     * Registrations contend for the seats of popular conferences, so they get more attempts.
+     */
+    private static final TransactionRunner REGISTER_TX =
+            new TransactionRunner("registerForConference", 10, 20, 1000);
+
+    private static final TransactionRunner UNREGISTER_TX =
+            new TransactionRunner("unregisterFromConference", 10, 20, 1000);
+
     private static String extractDefaultDisplayNameFromEmail(String email) {
         return email == null ? null : email.substring(0, email.indexOf("@"));
     }
 
-    private static Profile getProfileFromUser(User user, String userId) {
+    private static Profile getProfileFromUser(User user, String userId, WriteSet writes) {
         // First fetch it from the datastore.
-        Profile profile = ofy().load().key(
-                Key.create(Profile.class, userId)).now();
+        Profile profile = writes.load(Key.create(Profile.class, userId));
         if (profile == null) {
             // Create a new Profile if not exist.
             String email = user.getEmail();
@@ -71,27 +93,6 @@ public class ConferenceApi {
         return profile;
     }
 
-    /**
-     * This is an ugly workaround for null userId for Android clients.
-     *
-     * @param user A User object injected by the cloud endpoints.
-     * @return the App Engine userId for the user.
-     */
-    private static String getUserId(User user) {
-        String userId = user.getUserId();
-        if (userId == null) {
-            LOG.info("userId is null, so trying to obtain it from the datastore.");
-            AppEngineUser appEngineUser = new AppEngineUser(user);
-            ofy().save().entity(appEngineUser).now();
-            // Begin new session for not using session cache.
-            Objectify objectify = ofy().factory().begin();
-            AppEngineUser savedUser = objectify.load().key(appEngineUser.getKey()).now();
-            userId = savedUser.getUser().getUserId();
-            LOG.info("Obtained the userId: " + userId);
-        }
-        return userId;
-    }
-
     /**
      * Just a wrapper for Boolean.
      */
@@ -178,7 +179,7 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        return ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        return EntityCache.get(Key.create(Profile.class, UserIdResolver.resolve(user)));
     }
 
     /**
@@ -198,7 +199,9 @@ public class ConferenceApi {
         String displayName = profileForm.getDisplayName();
         TeeShirtSize teeShirtSize = profileForm.getTeeShirtSize();
 
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        String userId = UserIdResolver.resolve(user);
+        WriteSet writes = new WriteSet();
+        Profile profile = writes.load(Key.create(Profile.class, userId));
         if (profile == null) {
             // Populate displayName and teeShirtSize with the default values if null.
             if (displayName == null) {
@@ -207,11 +210,12 @@ public class ConferenceApi {
             if (teeShirtSize == null) {
                 teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
             }
-            profile = new Profile(getUserId(user), displayName, user.getEmail(), teeShirtSize);
+            profile = new Profile(userId, displayName, user.getEmail(), teeShirtSize);
         } else {
             profile.update(displayName, teeShirtSize);
         }
-        ofy().save().entity(profile).now();
+        // Resubmitting the same form does not write the Profile again.
+        writes.save(profile);
         return profile;
     }
 
@@ -229,28 +233,29 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
+        final String userId = UserIdResolver.resolve(user);
         // Allocate Id first, in order to make the transaction idempotent.
-        Key<Profile> profileKey = Key.create(Profile.class, getUserId(user));
+        Key<Profile> profileKey = Key.create(Profile.class, userId);
         final Key<Conference> conferenceKey = factory().allocateId(profileKey, Conference.class);
         final long conferenceId = conferenceKey.getId();
         final Queue queue = QueueFactory.getDefaultQueue();
-        final String userId = getUserId(user);
         // Start a transaction.
-        Conference conference = ofy().transact(new Work<Conference>() {
+        Conference conference = CREATE_CONFERENCE_TX.run(new Work<Conference>() {
             @Override
             public Conference run() {
                 // Fetch user's Profile.
-                Profile profile = getProfileFromUser(user, userId);
+                WriteSet writes = new WriteSet();
+                Profile profile = getProfileFromUser(user, userId, writes);
                 Conference conference = new Conference(conferenceId, userId, conferenceForm);
-                // Save Conference and Profile.
-                ofy().save().entities(conference, profile).now();
+                // Save Conference, and Profile if it is new.
+                writes.save(conference, profile);
                 queue.add(ofy().getTransaction(),
                         TaskOptions.Builder.withUrl("/tasks/send_confirmation_email")
                         .param("email", profile.getMainEmail())
                         .param("conferenceInfo", conference.toString()));
                 return conference;
             }
-        });
+        }, profileKey);
         return conference;
     }
 
@@ -278,15 +283,16 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        final String userId = getUserId(user);
+        final String userId = UserIdResolver.resolve(user);
         // Update the conference with the conferenceForm sent from the client.
         // Need a transaction because we need to safely preserve the number of allocated seats.
-        TxResult<Conference> result = ofy().transact(new Work<TxResult<Conference>>() {
+        TxResult<Conference> result = UPDATE_CONFERENCE_TX.run(new Work<TxResult<Conference>>() {
             @Override
             public TxResult<Conference> run() {
                 // If there is no Conference with the id, throw a 404 error.
                 Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
-                Conference conference = ofy().load().key(conferenceKey).now();
+                WriteSet writes = new WriteSet();
+                Conference conference = writes.load(conferenceKey);
                 if (conference == null) {
                     return new TxResult<>(
                             new NotFoundException("No Conference found with the key: "
@@ -300,10 +306,10 @@ public class ConferenceApi {
                             new ForbiddenException("Only the owner can update the conference."));
                 }
                 conference.updateWithConferenceForm(conferenceForm);
-                ofy().save().entity(conference).now();
+                writes.save(conference);
                 return new TxResult<>(conference);
             }
-        });
+        }, Key.create(websafeConferenceKey));
         // NotFoundException or ForbiddenException is actually thrown here.
         return result.getResult();
     }
@@ -342,6 +348,8 @@ public class ConferenceApi {
         if (conference == null) {
             throw new NotFoundException("No Conference found with key: " + websafeConferenceKey);
         }
+        // The organizer's display name goes in the entity tag of the response.
+        OwnerHydrator.hydrateConferences(Collections.singletonList(conference));
         return conference;
     }
 
@@ -363,7 +371,8 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        Profile profile = ofy().load().key(Key.create(Profile.class, getUserId(user))).now();
+        String userId = UserIdResolver.resolve(user);
+        Profile profile = ofy().load().key(Key.create(Profile.class, userId)).now();
         if (profile == null) {
             throw new NotFoundException("Profile doesn't exist.");
         }
@@ -372,7 +381,9 @@ public class ConferenceApi {
         for (String keyString : keyStringsToAttend) {
             keysToAttend.add(Key.<Conference>create(keyString));
         }
-        return ofy().load().keys(keysToAttend).values();
+        Collection<Conference> conferences = ofy().load().keys(keysToAttend).values();
+        OwnerHydrator.hydrateConferences(conferences);
+        return conferences;
     }
 
     /**
@@ -382,24 +393,45 @@ public class ConferenceApi {
      * but we do it with POST, in order to receive conferenceQueryForm Object via the POST body.
      *
      * @param conferenceQueryForm A form object representing the query.
-     * @return A List of Conferences that match the query.
+     * @return A page of at most conferenceQueryForm.limit Conferences that match the query,
+     *         with the cursor of the next page when there may be more.
+     * @throws BadRequestException when the cursor is invalid.
      */
     @ApiMethod(
             name = "queryConferences",
             path = "queryConferences",
             httpMethod = HttpMethod.POST
     )
-    public List<Conference> queryConferences(ConferenceQueryForm conferenceQueryForm) {
-        Iterable<Conference> conferenceIterable = conferenceQueryForm.getQuery();
+    public CollectionResponse<Conference> queryConferences(
+            ConferenceQueryForm conferenceQueryForm) throws BadRequestException {
+        QueryResultIterator<Conference> conferenceIterator;
         List<Conference> result = new ArrayList<>(0);
-        List<Key<Profile>> organizersKeyList = new ArrayList<>(0);
-        for (Conference conference : conferenceIterable) {
-            organizersKeyList.add(Key.create(Profile.class, conference.getOrganizerUserId()));
-            result.add(conference);
+        try {
+            conferenceIterator = conferenceQueryForm.getQuery().iterator();
+            while (conferenceIterator.hasNext()) {
+                result.add(conferenceIterator.next());
+            }
+        } catch (IllegalArgumentException e) {
+            // The filters are checked the same way.
+            if (conferenceQueryForm.getCursor() == null) {
+                throw e;
+            }
+            throw new BadRequestException("Invalid cursor");
+        }
+        // To avoid separate datastore gets for each Conference, read the Profiles in one batch.
+        OwnerHydrator.hydrateConferences(result);
+        String nextPageToken = null;
+        // A page that is not full is the last one.
+        if (result.size() == conferenceQueryForm.getLimit()) {
+            Cursor cursor = conferenceIterator.getCursor();
+            if (cursor != null) {
+                nextPageToken = cursor.toWebSafeString();
+            }
         }
-        // To avoid separate datastore gets for each Conference, pre-fetch the Profiles.
-        ofy().load().keys(organizersKeyList);
-        return result;
+        return CollectionResponse.<Conference>builder()
+                .setItems(result)
+                .setNextPageToken(nextPageToken)
+                .build();
     }
 
     /**
@@ -420,10 +452,12 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        String userId = getUserId(user);
-        return ofy().load().type(Conference.class)
+        String userId = UserIdResolver.resolve(user);
+        List<Conference> conferences = ofy().load().type(Conference.class)
                 .ancestor(Key.create(Profile.class, userId))
                 .order("name").list();
+        OwnerHydrator.hydrateConferences(conferences);
+        return conferences;
     }
 
     /**
@@ -448,8 +482,8 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+        final String userId = UserIdResolver.resolve(user);
+        TxResult<Boolean> result = REGISTER_TX.run(new Work<TxResult<Boolean>>() {
             @Override
             public TxResult<Boolean> run() {
                 Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
@@ -460,7 +494,8 @@ public class ConferenceApi {
                             "No Conference found with key: " + websafeConferenceKey));
                 }
                 // Registration happens here.
-                Profile profile = getProfileFromUser(user, userId);
+                WriteSet writes = new WriteSet();
+                Profile profile = getProfileFromUser(user, userId, writes);
                 if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
                     return new TxResult<>(new ConflictException("You have already registered for this conference"));
                 } else if (conference.getSeatsAvailable() <= 0) {
@@ -468,11 +503,12 @@ public class ConferenceApi {
                 } else {
                     profile.addToConferenceKeysToAttend(websafeConferenceKey);
                     conference.bookSeats(1);
-                    ofy().save().entities(profile, conference).now();
+                    writes.save(profile, conference);
                     return new TxResult<>(true);
                 }
             }
-        });
+        }, Key.create(websafeConferenceKey),
+                Key.create(Profile.class, userId));
         // NotFoundException is actually thrown here.
         return new WrappedBoolean(result.getResult());
     }
@@ -500,8 +536,8 @@ public class ConferenceApi {
         if (user == null) {
             throw new UnauthorizedException("Authorization required");
         }
-        final String userId = getUserId(user);
-        TxResult<Boolean> result = ofy().transact(new Work<TxResult<Boolean>>() {
+        final String userId = UserIdResolver.resolve(user);
+        TxResult<Boolean> result = UNREGISTER_TX.run(new Work<TxResult<Boolean>>() {
             @Override
             public TxResult<Boolean> run() {
                 Key<Conference> conferenceKey = Key.create(websafeConferenceKey);
@@ -512,17 +548,19 @@ public class ConferenceApi {
                             "No Conference found with key: " + websafeConferenceKey));
                 }
                 // Un-registering from the Conference.
-                Profile profile = getProfileFromUser(user, userId);
+                WriteSet writes = new WriteSet();
+                Profile profile = getProfileFromUser(user, userId, writes);
                 if (profile.getConferenceKeysToAttend().contains(websafeConferenceKey)) {
                     profile.unregisterFromConference(websafeConferenceKey);
                     conference.giveBackSeats(1);
-                    ofy().save().entities(profile, conference).now();
+                    writes.save(profile, conference);
                     return new TxResult<>(true);
                 } else {
                     return new TxResult<>(false);
                 }
             }
-        });
+        }, Key.create(websafeConferenceKey),
+                Key.create(Profile.class, userId));
         // NotFoundException is actually thrown here.
         return new WrappedBoolean(result.getResult());
     }
@@ -4,10 +4,14 @@ import static com.google.devrel.training.conference.service.OfyService.factory;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 import javax.inject.Named;
@@ -15,25 +19,49 @@ import javax.inject.Named;
 import com.google.api.server.spi.config.Api;
 import com.google.api.server.spi.config.ApiMethod;
 import com.google.api.server.spi.config.ApiMethod.HttpMethod;
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.api.server.spi.response.ConflictException;
 import com.google.api.server.spi.response.ForbiddenException;
 import com.google.api.server.spi.response.NotFoundException;
 import com.google.api.server.spi.response.UnauthorizedException;
-import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.QueryResultIterator;
 import com.google.appengine.api.users.User;
 import com.google.devrel.training.conference.Constants;
-import com.google.devrel.training.conference.domain.AppEngineUser;
+import com.google.devrel.training.conference.domain.CheckoutResult;
+import com.google.devrel.training.conference.domain.InventoryShard;
 import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferArchive;
+import com.google.devrel.training.conference.domain.OfferBatchResult;
+import com.google.devrel.training.conference.domain.OfferSummary;
+import com.google.devrel.training.conference.domain.OfferTemplate;
 import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.form.CheckoutForm;
+import com.google.devrel.training.conference.form.OfferBatchForm;
 import com.google.devrel.training.conference.form.OfferForm;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
 import com.google.devrel.training.conference.form.OfferQueryForm;
+import com.google.devrel.training.conference.form.OfferTemplateForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
 import com.google.devrel.training.conference.form.ProviderForm;
 import com.google.devrel.training.conference.form.ProviderQueryForm;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.GeoHash;
+import com.google.devrel.training.conference.service.InventoryCounter;
+import com.google.devrel.training.conference.service.OfferIndex;
+import com.google.devrel.training.conference.service.OfferMaterializer;
+import com.google.devrel.training.conference.service.OfferQueryCache;
+import com.google.devrel.training.conference.service.OfferProjection;
+import com.google.devrel.training.conference.service.OfferRanker;
+import com.google.devrel.training.conference.service.OwnerHydrator;
+import com.google.devrel.training.conference.service.ProviderLocator;
+import com.google.devrel.training.conference.service.TransactionRunner;
+import com.google.devrel.training.conference.service.UserIdResolver;
+import com.google.devrel.training.conference.service.WriteSet;
 import com.googlecode.objectify.Key;
-import com.googlecode.objectify.Objectify;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.cmd.Query;
 
@@ -50,15 +78,38 @@ public class HomeFoodApi {
 	private static final Logger LOG = Logger.getLogger(HomeFoodApi.class
 			.getName());
 
+	/**
+	 * The maximum number of offers created at once, a week of three meals a
+	 * day fits.
+	 */
+	public static final int MAX_BATCH_OFFERS = 50;
+
+	private static final TransactionRunner CREATE_PROVIDER_TX = new TransactionRunner(
+			"createProvider");
+
+	private static final TransactionRunner UPDATE_PROVIDER_TX = new TransactionRunner(
+			"updateProvider");
+
+	private static final TransactionRunner CREATE_OFFER_TX = new TransactionRunner(
+			"createOffer");
+
+	private static final TransactionRunner CREATE_OFFERS_TX = new TransactionRunner(
+			"createOffers");
+
+	private static final TransactionRunner CREATE_OFFER_TEMPLATE_TX = new TransactionRunner(
+			"createOfferTemplate");
+
+	private static final TransactionRunner UPDATE_OFFER_TX = new TransactionRunner(
+			"updateOffer");
+
 	private static String extractDefaultDisplayNameFromEmail(final String email) {
 		return email == null ? null : email.substring(0, email.indexOf("@"));
 	}
 
 	private static Profile getProfileFromUser(final User user,
-			final String userId) {
+			final String userId, final WriteSet writes) {
 		// First fetch it from the datastore.
-		Profile profile = ofy().load().key(Key.create(Profile.class, userId))
-				.now();
+		Profile profile = writes.load(Key.create(Profile.class, userId));
 		if (profile == null) {
 			// Create a new Profile if not exist.
 			final String email = user.getEmail();
@@ -69,29 +120,6 @@ public class HomeFoodApi {
 		return profile;
 	}
 
-	/**
-	 * This is an ugly workaround for null userId for Android clients.
-	 *
-	 * @param user
-	 *            A User object injected by the cloud endpoints.
-	 * @return the App Engine userId for the user.
-	 */
-	private static String getUserId(final User user) {
-		String userId = user.getUserId();
-		if (userId == null) {
-			LOG.info("userId is null, so trying to obtain it from the datastore.");
-			final AppEngineUser appEngineUser = new AppEngineUser(user);
-			ofy().save().entity(appEngineUser).now();
-			// Begin new session for not using session cache.
-			final Objectify objectify = ofy().factory().begin();
-			final AppEngineUser savedUser = objectify.load()
-					.key(appEngineUser.getKey()).now();
-			userId = savedUser.getUser().getUserId();
-			LOG.info("Obtained the userId: " + userId);
-		}
-		return userId;
-	}
-
 	/**
 	 * Just a wrapper for Boolean.
 	 */
@@ -108,6 +136,22 @@ public class HomeFoodApi {
 		}
 	}
 
+	/**
+	 * Just a wrapper for Integer.
+	 */
+	public static class WrappedInteger {
+
+		private final Integer result;
+
+		public WrappedInteger(final Integer result) {
+			this.result = result;
+		}
+
+		public Integer getResult() {
+			return this.result;
+		}
+	}
+
 	/**
 	 * A wrapper class that can embrace a generic result or some kind of
 	 * exception.
@@ -184,8 +228,8 @@ public class HomeFoodApi {
 		if (user == null) {
 			throw new UnauthorizedException("Authorization required");
 		}
-		return ofy().load().key(Key.create(Profile.class, getUserId(user)))
-				.now();
+		return EntityCache.get(Key.create(Profile.class,
+				UserIdResolver.resolve(user)));
 	}
 
 	/**
@@ -209,8 +253,9 @@ public class HomeFoodApi {
 		String displayName = profileForm.getDisplayName();
 		TeeShirtSize teeShirtSize = profileForm.getTeeShirtSize();
 
-		Profile profile = ofy().load()
-				.key(Key.create(Profile.class, getUserId(user))).now();
+		final String userId = UserIdResolver.resolve(user);
+		final WriteSet writes = new WriteSet();
+		Profile profile = writes.load(Key.create(Profile.class, userId));
 		if (profile == null) {
 			// Populate displayName and teeShirtSize with the default values if
 			// null.
@@ -221,12 +266,13 @@ public class HomeFoodApi {
 			if (teeShirtSize == null) {
 				teeShirtSize = TeeShirtSize.NOT_SPECIFIED;
 			}
-			profile = new Profile(getUserId(user), displayName,
+			profile = new Profile(userId, displayName,
 					user.getEmail(), teeShirtSize);
 		} else {
 			profile.update(displayName, teeShirtSize);
 		}
-		ofy().save().entity(profile).now();
+		// Resubmitting the same form does not write the Profile again.
+		writes.save(profile);
 		return profile;
 	}
 
@@ -248,28 +294,33 @@ public class HomeFoodApi {
 		if (user == null) {
 			throw new UnauthorizedException("Authorization required");
 		}
+		final String userId = UserIdResolver.resolve(user);
 		// Allocate Id first, in order to make the transaction idempotent.
-		final Key<Profile> profileKey = Key.create(Profile.class,
-				getUserId(user));
+		final Key<Profile> profileKey = Key.create(Profile.class, userId);
 
 		final Key<Provider> providerKey = factory().allocateId(profileKey,
 				Provider.class);
 
 		final long providerId = providerKey.getId();
 		// final Queue queue = QueueFactory.getDefaultQueue();
-		final String userId = getUserId(user);
 
 		// Start a transaction.
-		final Provider provider = ofy().transact(new Work<Provider>() {
+		final Provider provider = CREATE_PROVIDER_TX.run(new Work<Provider>() {
 			@Override
 			public Provider run() {
 				// Fetch user's Profile.
-				final Profile profile = getProfileFromUser(user, userId);
+				final WriteSet writes = new WriteSet();
+				final Profile profile = getProfileFromUser(user, userId,
+						writes);
 				final Provider provider = new Provider(providerId, userId,
 						providerForm);
 
-				// Save Provider and Profile.
-				ofy().save().entities(provider, profile).now();
+				// Save Provider, and Profile if it is new.
+				writes.save(provider, profile);
+
+				// Geocode the address in a task, the location is pending
+				// until then.
+				ProviderLocator.enqueue(provider);
 
 				/*
 				 * queue.add( ofy().getTransaction(), TaskOptions.Builder
@@ -280,7 +331,7 @@ public class HomeFoodApi {
 
 				return provider;
 			}
-		});
+		}, profileKey);
 
 		return provider;
 
@@ -314,11 +365,11 @@ public class HomeFoodApi {
 		if (user == null) {
 			throw new UnauthorizedException("Authorization required");
 		}
-		final String userId = getUserId(user);
+		final String userId = UserIdResolver.resolve(user);
 		// Update the provider with the providerForm sent from the client.
 		// Need a transaction because we need to safely preserve the number of
 		// allocated seats.
-		final TxResult<Provider> result = ofy().transact(
+		final TxResult<Provider> result = UPDATE_PROVIDER_TX.run(
 				new Work<TxResult<Provider>>() {
 					@Override
 					public TxResult<Provider> run() {
@@ -326,8 +377,8 @@ public class HomeFoodApi {
 						// error.
 						final Key<Provider> providerKey = Key
 								.create(websafeProviderKey);
-						final Provider provider = ofy().load().key(providerKey)
-								.now();
+						final WriteSet writes = new WriteSet();
+						final Provider provider = writes.load(providerKey);
 						if (provider == null) {
 							return new TxResult<>(new NotFoundException(
 									"No Provider found with the key: "
@@ -342,10 +393,13 @@ public class HomeFoodApi {
 									"Only the owner can update the provider."));
 						}
 						provider.updateWithProviderForm(providerForm);
-						ofy().save().entity(provider).now();
+						writes.save(provider);
+						if (provider.isLocationPending()) {
+							ProviderLocator.enqueue(provider);
+						}
 						return new TxResult<>(provider);
 					}
-				});
+				}, Key.create(websafeProviderKey));
 		// NotFoundException or ForbiddenException is actually thrown here.
 		return result.getResult();
 	}
@@ -364,7 +418,7 @@ public class HomeFoodApi {
 			@Named("websafeProviderKey") final String websafeProviderKey)
 			throws NotFoundException {
 		final Key<Provider> providerKey = Key.create(websafeProviderKey);
-		final Provider provider = ofy().load().key(providerKey).now();
+		final Provider provider = EntityCache.get(providerKey);
 		if (provider == null) {
 			throw new NotFoundException("No Provider found with key: "
 					+ websafeProviderKey);
@@ -382,24 +436,36 @@ public class HomeFoodApi {
 	 *
 	 * @param providerQueryForm
 	 *            A form object representing the query.
-	 * @return A List of Providers that match the query.
+	 * @return A page of at most providerQueryForm.limit Providers that match
+	 *         the query, with the cursor of the next page when there may be
+	 *         more.
+	 * @throws BadRequestException
+	 *             when the cursor is invalid.
 	 */
 	@ApiMethod(name = "queryProviders", path = "queryProviders", httpMethod = HttpMethod.POST)
-	public List<Provider> queryProviders(
-			final ProviderQueryForm providerQueryForm) {
-		final Iterable<Provider> providerIterable = providerQueryForm
-				.getQuery();
+	public CollectionResponse<Provider> queryProviders(
+			final ProviderQueryForm providerQueryForm)
+			throws BadRequestException {
+		final QueryResultIterator<Provider> providerIterator;
 		final List<Provider> result = new ArrayList<>(0);
-		final List<Key<Profile>> creatorsKeyList = new ArrayList<>(0);
-		for (final Provider provider : providerIterable) {
-			creatorsKeyList.add(Key.create(Profile.class,
-					provider.getCreatorId()));
-			result.add(provider);
-		}
-		// To avoid separate datastore gets for each Provider, pre-fetch the
-		// Profiles.
-		ofy().load().keys(creatorsKeyList);
-		return result;
+		try {
+			providerIterator = providerQueryForm.getQuery().iterator();
+			while (providerIterator.hasNext()) {
+				result.add(providerIterator.next());
+			}
+		} catch (final IllegalArgumentException e) {
+			// The filters are checked the same way.
+			if (providerQueryForm.getCursor() == null) {
+				throw e;
+			}
+			throw new BadRequestException("Invalid cursor");
+		}
+		// To avoid separate datastore gets for each Provider, read the
+		// Profiles in one batch.
+		OwnerHydrator.hydrateProviders(result);
+		return CollectionResponse.<Provider> builder().setItems(result)
+				.setNextPageToken(getNextPageToken(providerIterator,
+						result.size(), providerQueryForm.getLimit())).build();
 	}
 
 	/**
@@ -420,10 +486,12 @@ public class HomeFoodApi {
 		if (user == null) {
 			throw new UnauthorizedException("Authorization required");
 		}
-		final String userId = getUserId(user);
-		return ofy().load().type(Provider.class)
+		final String userId = UserIdResolver.resolve(user);
+		final List<Provider> providers = ofy().load().type(Provider.class)
 				.ancestor(Key.create(Profile.class, userId)).order("name")
 				.list();
+		OwnerHydrator.hydrateProviders(providers);
+		return providers;
 	}
 
 	/**
@@ -465,19 +533,23 @@ public class HomeFoodApi {
 		final long offerId = offerKey.getId();
 
 		// final Queue queue = QueueFactory.getDefaultQueue();
-		final String userId = getUserId(user);
+		final String userId = UserIdResolver.resolve(user);
 
 		// Start a transaction.
-		final Offer offer = ofy().transact(new Work<Offer>() {
+		final Offer offer = CREATE_OFFER_TX.run(new Work<Offer>() {
 			@Override
 			public Offer run() {
 				// Fetch user's Profile.
-				final Profile profile = getProfileFromUser(user, userId);
-				final Provider provider = getProviderUsingKey(providerKey);
-				final Offer offer = new Offer(offerId, userId, offerForm);
+				final WriteSet writes = new WriteSet();
+				final Profile profile = getProfileFromUser(user, userId,
+						writes);
+				final Provider provider = writes.load(providerKey);
+				// Reuse the Provider loaded in this transaction.
+				final Offer offer = new Offer(offerId, userId, offerForm,
+						provider);
 
-				// Save Offer and Profile.
-				ofy().save().entities(offer, provider, profile).now();
+				// Save Offer, and Provider and Profile if they changed.
+				writes.save(offer, provider, profile);
 
 				/*
 				 * queue.add( ofy().getTransaction(), TaskOptions.Builder
@@ -488,17 +560,271 @@ public class HomeFoodApi {
 
 				return offer;
 			}
+		}, providerKey, Key.create(Profile.class, userId));
 
-			private Provider getProviderUsingKey(final Key<Provider> providerKey) {
-				final Provider provider = ofy().load().key(providerKey).now();
-				return provider;
-			}
-		});
+		OfferIndex.put(offer);
+		OfferQueryCache.invalidate(offer);
 
 		return offer;
 
 	}
 
+	/**
+	 * Creates several Offers of one Provider at once, for instance the menu of
+	 * a week.
+	 *
+	 * The forms are all validated before anything is written, the ids of the
+	 * valid ones are allocated in one call, and the Provider is loaded once.
+	 * The valid offers are then saved in one batch, in one transaction, while
+	 * the invalid ones are reported in the result.
+	 *
+	 * @param user
+	 *            A user who invokes this method, null when the user is not
+	 *            signed in.
+	 * @param offerBatchForm
+	 *            The OfferForms of the same Provider.
+	 * @return The outcome of each offer, in the order of the forms.
+	 * @throws UnauthorizedException
+	 *             when the user is not signed in.
+	 * @throws BadRequestException
+	 *             when the batch is empty or too large, or when the offers are
+	 *             not all of one valid Provider.
+	 * @throws NotFoundException
+	 *             when the Provider does not exist.
+	 * @throws ForbiddenException
+	 *             when the user does not own the Provider.
+	 */
+	@ApiMethod(name = "createOffers", path = "offers", httpMethod = HttpMethod.POST)
+	public OfferBatchResult createOffers(final User user,
+			final OfferBatchForm offerBatchForm) throws UnauthorizedException,
+			BadRequestException, NotFoundException, ForbiddenException,
+			ConflictException {
+		if (user == null) {
+			throw new UnauthorizedException("Authorization required");
+		}
+		final List<OfferForm> offerForms = offerBatchForm.getOffers();
+		if (offerForms.isEmpty() || (offerForms.size() > MAX_BATCH_OFFERS)) {
+			throw new BadRequestException("The batch must have between 1 and "
+					+ MAX_BATCH_OFFERS + " offers");
+		}
+		final String websafeProviderKey = offerForms.get(0)
+				.getWebsafeProviderKey();
+		final Key<Provider> providerKey;
+		try {
+			providerKey = Key.create(websafeProviderKey);
+		} catch (final RuntimeException e) {
+			throw new BadRequestException("Invalid provider key: "
+					+ websafeProviderKey);
+		}
+
+		// Validate every form first, the invalid ones get no id.
+		final String[] errors = new String[offerForms.size()];
+		int validCount = 0;
+		for (int i = 0; i < offerForms.size(); i++) {
+			final OfferForm offerForm = offerForms.get(i);
+			if (!websafeProviderKey.equals(offerForm.getWebsafeProviderKey())) {
+				throw new BadRequestException(
+						"The offers of a batch must be of the same provider");
+			}
+			try {
+				Offer.checkOfferForm(offerForm);
+				validCount++;
+			} catch (final NullPointerException | IllegalArgumentException e) {
+				errors[i] = e.getMessage();
+			}
+		}
+
+		// Allocate the ids of the valid offers in one call, in order to make
+		// the transaction idempotent.
+		final long[] offerIds = new long[offerForms.size()];
+		if (validCount > 0) {
+			final Iterator<Key<Offer>> offerKeys = factory().allocateIds(
+					providerKey, Offer.class, validCount).iterator();
+			for (int i = 0; i < offerForms.size(); i++) {
+				if (errors[i] == null) {
+					offerIds[i] = offerKeys.next().getId();
+				}
+			}
+		}
+
+		final String userId = UserIdResolver.resolve(user);
+		final TxResult<List<Offer>> result = CREATE_OFFERS_TX.run(
+				new Work<TxResult<List<Offer>>>() {
+					@Override
+					public TxResult<List<Offer>> run() {
+						final WriteSet writes = new WriteSet();
+						final Provider provider = writes.load(providerKey);
+						if (provider == null) {
+							return new TxResult<>(new NotFoundException(
+									"No Provider found with the key: "
+											+ websafeProviderKey));
+						}
+						if (!provider.getCreatorId().equals(userId)) {
+							return new TxResult<>(new ForbiddenException(
+									"Only the owner can add offers to the provider."));
+						}
+						final Profile profile = getProfileFromUser(user,
+								userId, writes);
+						// Null for the invalid forms.
+						final List<Offer> offers = new ArrayList<>(
+								offerForms.size());
+						final List<Object> entities = new ArrayList<>();
+						for (int i = 0; i < offerForms.size(); i++) {
+							if (errors[i] == null) {
+								final Offer offer = new Offer(offerIds[i],
+										userId, offerForms.get(i), provider);
+								offers.add(offer);
+								entities.add(offer);
+							} else {
+								offers.add(null);
+							}
+						}
+						entities.add(provider);
+						entities.add(profile);
+						writes.save(entities);
+						return new TxResult<>(offers);
+					}
+				}, providerKey, Key.create(Profile.class, userId));
+		// NotFoundException or ForbiddenException is actually thrown here.
+		final List<Offer> offers = result.getResult();
+
+		final List<OfferBatchResult.Item> items = new ArrayList<>(
+				offers.size());
+		for (int i = 0; i < offers.size(); i++) {
+			final Offer offer = offers.get(i);
+			if (offer == null) {
+				items.add(new OfferBatchResult.Item(
+						OfferBatchResult.Status.INVALID, null, errors[i]));
+			} else {
+				OfferIndex.put(offer);
+				OfferQueryCache.invalidate(offer);
+				items.add(new OfferBatchResult.Item(
+						OfferBatchResult.Status.CREATED, offer, null));
+			}
+		}
+		return new OfferBatchResult(items);
+	}
+
+	/**
+	 * Creates an OfferTemplate repeating an Offer, and creates its Offers of
+	 * the upcoming days. The Offers of the following days are created by the
+	 * daily materialization job.
+	 *
+	 * @param user
+	 *            A user who invokes this method, null when the user is not
+	 *            signed in.
+	 * @param offerTemplateForm
+	 *            The Offer to repeat, and the days to repeat it on.
+	 * @return The newly created OfferTemplate.
+	 * @throws UnauthorizedException
+	 *             when the user is not signed in.
+	 * @throws BadRequestException
+	 *             when the form is invalid.
+	 * @throws NotFoundException
+	 *             when the Provider does not exist.
+	 * @throws ForbiddenException
+	 *             when the user does not own the Provider.
+	 */
+	@ApiMethod(name = "createOfferTemplate", path = "offerTemplate", httpMethod = HttpMethod.POST)
+	public OfferTemplate createOfferTemplate(final User user,
+			final OfferTemplateForm offerTemplateForm)
+			throws UnauthorizedException, BadRequestException,
+			NotFoundException, ForbiddenException, ConflictException {
+		if (user == null) {
+			throw new UnauthorizedException("Authorization required");
+		}
+		final OfferForm offerForm = offerTemplateForm.getOfferForm();
+		if ((offerForm == null) || (offerForm.getWebsafeProviderKey() == null)) {
+			throw new BadRequestException("The offer and its provider are required");
+		}
+		final Key<Provider> providerKey;
+		try {
+			providerKey = Key.create(offerForm.getWebsafeProviderKey());
+		} catch (final RuntimeException e) {
+			throw new BadRequestException("Invalid provider key: "
+					+ offerForm.getWebsafeProviderKey());
+		}
+
+		// Allocate Id first, in order to make the transaction idempotent.
+		final Key<OfferTemplate> templateKey = factory().allocateId(
+				providerKey, OfferTemplate.class);
+
+		final String userId = UserIdResolver.resolve(user);
+		final OfferTemplate offerTemplate;
+		try {
+			offerTemplate = new OfferTemplate(templateKey.getId(), userId,
+					offerTemplateForm);
+		} catch (final NullPointerException | IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
+		}
+
+		final TxResult<Boolean> result = CREATE_OFFER_TEMPLATE_TX.run(
+				new Work<TxResult<Boolean>>() {
+					@Override
+					public TxResult<Boolean> run() {
+						final Provider provider = ofy().load().key(providerKey)
+								.now();
+						if (provider == null) {
+							return new TxResult<>(new NotFoundException(
+									"No Provider found with the key: "
+											+ offerForm.getWebsafeProviderKey()));
+						}
+						if (!provider.getCreatorId().equals(userId)) {
+							return new TxResult<>(new ForbiddenException(
+									"Only the owner can add offers to the provider."));
+						}
+						ofy().save().entity(offerTemplate).now();
+						return new TxResult<>(true);
+					}
+				}, providerKey);
+		// NotFoundException or ForbiddenException is actually thrown here.
+		result.getResult();
+
+		OfferMaterializer.materialize(templateKey, OfferMaterializer.horizon());
+		return ofy().load().key(templateKey).now();
+	}
+
+	/**
+	 * Returns the OfferTemplates of a Provider.
+	 *
+	 * @param websafeProviderKey
+	 *            The String representation of the Provider Key.
+	 * @return The OfferTemplates of the Provider.
+	 */
+	@ApiMethod(name = "getOfferTemplates", path = "provider/{websafeProviderKey}/offerTemplates", httpMethod = HttpMethod.GET)
+	public List<OfferTemplate> getOfferTemplates(
+			@Named("websafeProviderKey") final String websafeProviderKey) {
+		return ofy().load().type(OfferTemplate.class)
+				.ancestor(Key.create(websafeProviderKey)).list();
+	}
+
+	/**
+	 * Returns the archived Offers of a Provider on a past day.
+	 *
+	 * @param websafeProviderKey
+	 *            The String representation of the Provider Key.
+	 * @param offerDateNumber
+	 *            The day, as yyyyMMdd.
+	 * @return The OfferArchive of the day.
+	 * @throws NotFoundException
+	 *             when the Provider had no archived Offer on that day.
+	 */
+	@ApiMethod(name = "getOfferArchive", path = "provider/{websafeProviderKey}/offerArchive/{offerDateNumber}", httpMethod = HttpMethod.GET)
+	public OfferArchive getOfferArchive(
+			@Named("websafeProviderKey") final String websafeProviderKey,
+			@Named("offerDateNumber") final long offerDateNumber)
+			throws NotFoundException {
+		final OfferArchive offerArchive = ofy()
+				.load()
+				.key(OfferArchive.key(Key.<Provider> create(websafeProviderKey),
+						offerDateNumber)).now();
+		if (offerArchive == null) {
+			throw new NotFoundException("No archived offer on "
+					+ offerDateNumber);
+		}
+		return offerArchive;
+	}
+
 	/**
 	 * Updates the existing Offer with the given offerId.
 	 *
@@ -526,38 +852,70 @@ public class HomeFoodApi {
 		if (user == null) {
 			throw new UnauthorizedException("Authorization required");
 		}
-		final String userId = getUserId(user);
+		final String userId = UserIdResolver.resolve(user);
 		// Update the offer with the offerForm sent from the client.
 		// Need a transaction because we need to safely preserve the number of
 		// allocated seats.
-		final TxResult<Offer> result = ofy().transact(
+		final TxResult<Offer> result = UPDATE_OFFER_TX.run(
 				new Work<TxResult<Offer>>() {
 					@Override
 					public TxResult<Offer> run() {
+						// Load the Offer, its Provider and the Profile in a
+						// single batch. The Offer and its Provider are in the
+						// entity group of the owner's Profile, so only the
+						// Profile of another user is in a second group.
+						final Key<Offer> offerKey = Key.create(websafeOfferKey);
+						final Key<Provider> providerKey = offerKey.getParent();
+						final Key<Profile> profileKey = Key.create(
+								Profile.class, userId);
+						final Map<Key<Object>, Object> loaded = ofy().load()
+								.<Object> keys(offerKey, providerKey,
+										profileKey);
 						// If there is no Offer with the id, throw a 404
 						// error.
-						final Key<Offer> offerKey = Key.create(websafeOfferKey);
-						final Offer offer = ofy().load().key(offerKey).now();
+						final Offer offer = (Offer) loaded.get(offerKey);
 						if (offer == null) {
 							return new TxResult<>(new NotFoundException(
 									"No Offer found with the key: "
 											+ websafeOfferKey));
 						}
 						// If the user is not the owner, throw a 403 error.
-						final Profile profile = ofy().load()
-								.key(Key.create(Profile.class, userId)).now();
+						final Profile profile = (Profile) loaded
+								.get(profileKey);
 						if ((profile == null)
 								|| !offer.getCreatorId().equals(userId)) {
 							return new TxResult<>(new ForbiddenException(
 									"Only the owner can update the offer."));
 						}
-						offer.updateWithOfferForm(offerForm);
-						ofy().save().entity(offer).now();
+						final Provider provider = (Provider) loaded
+								.get(providerKey);
+						// The shards are read after the owner is checked, so
+						// that the transaction spans at most 5 entity groups.
+						final List<InventoryShard> shards = offer
+								.isInventorySharded() ? InventoryCounter
+								.loadShards(offerKey) : Collections
+								.<InventoryShard> emptyList();
+						final WriteSet writes = new WriteSet();
+						writes.track(offer);
+						writes.track(shards);
+						final int fromShards = offer.updateWithOfferForm(
+								offerForm, provider,
+								InventoryCounter.getQuantity(shards));
+						InventoryCounter.takeFromShards(shards, fromShards);
+						final List<Object> entities = new ArrayList<Object>(
+								shards);
+						entities.add(offer);
+						writes.save(entities);
 						return new TxResult<>(offer);
 					}
-				});
+				}, Key.create(websafeOfferKey),
+				Key.create(Profile.class, userId));
 		// NotFoundException or ForbiddenException is actually thrown here.
-		return result.getResult();
+		final Offer offer = result.getResult();
+		OfferIndex.put(offer);
+		OfferQueryCache.invalidate(offer);
+		InventoryCounter.invalidate(Key.<Offer> create(websafeOfferKey));
+		return offer;
 	}
 
 	/**
@@ -572,19 +930,204 @@ public class HomeFoodApi {
 	@ApiMethod(name = "getOffer", path = "offer/{websafeOfferKey}", httpMethod = HttpMethod.GET)
 	public Offer getOffer(@Named("websafeOfferKey") final String websafeOfferKey)
 			throws NotFoundException {
-		final Key<Offer> offerKey = Key.create(websafeOfferKey);
-		final Offer offer = ofy().load().key(offerKey).now();
+		// The Provider is the parent of the Offer, so both are read in one
+		// batch.
+		final Key<Object> offerKey = Key.create(websafeOfferKey);
+		final Key<Object> providerKey = offerKey.getParent();
+		if (providerKey == null) {
+			throw new NotFoundException("No Offer found with key: "
+					+ websafeOfferKey);
+		}
+		final Map<Key<Object>, Object> entities = EntityCache.get(Arrays
+				.asList(offerKey, providerKey));
+		final Offer offer = (Offer) entities.get(offerKey);
 		if (offer == null) {
 			throw new NotFoundException("No Offer found with key: "
 					+ websafeOfferKey);
-		} else {
-			final Provider provider = ofy().load().key(offer.getProviderKey())
-					.now();
-			offer.setProvider(provider);
 		}
+		offer.setProvider((Provider) entities.get(providerKey));
+		InventoryCounter.countAvailableQuantities(Collections
+				.singletonList(offer));
 		return offer;
 	}
 
+	/**
+	 * Buys the given quantity of the Offer with the given key.
+	 *
+	 * @param user
+	 *            A user who invokes this method, null when the user is not
+	 *            signed in.
+	 * @param websafeOfferKey
+	 *            The String representation of the Offer Key.
+	 * @param quantity
+	 *            The quantity to buy.
+	 * @return Boolean true when success.
+	 * @throws UnauthorizedException
+	 *             when the user is not signed in.
+	 * @throws BadRequestException
+	 *             when the quantity is not greater than zero.
+	 * @throws NotFoundException
+	 *             when there is no Offer with the given offerId.
+	 * @throws ConflictException
+	 *             when there is not enough quantity available.
+	 */
+	@ApiMethod(name = "purchaseOffer", path = "offer/{websafeOfferKey}/purchase", httpMethod = HttpMethod.POST)
+	public WrappedBoolean purchaseOffer(final User user,
+			@Named("websafeOfferKey") final String websafeOfferKey,
+			@Named("quantity") final int quantity)
+			throws UnauthorizedException, BadRequestException,
+			NotFoundException, ConflictException {
+		if (user == null) {
+			throw new UnauthorizedException("Authorization required");
+		}
+		if (quantity <= 0) {
+			throw new BadRequestException(
+					"The quantity must be greater than zero");
+		}
+		final boolean found;
+		try {
+			found = InventoryCounter.purchase(
+					Key.<Offer> create(websafeOfferKey), quantity);
+		} catch (final IllegalArgumentException e) {
+			throw new ConflictException(e.getMessage());
+		}
+		if (!found) {
+			throw new NotFoundException("No Offer found with key: "
+					+ websafeOfferKey);
+		}
+		return new WrappedBoolean(true);
+	}
+
+	/**
+	 * Gives back the given quantity of the Offer with the given key.
+	 *
+	 * @param user
+	 *            A user who invokes this method, null when the user is not
+	 *            signed in.
+	 * @param websafeOfferKey
+	 *            The String representation of the Offer Key.
+	 * @param quantity
+	 *            The quantity to give back.
+	 * @return Boolean true when success.
+	 * @throws UnauthorizedException
+	 *             when the user is not signed in.
+	 * @throws BadRequestException
+	 *             when the quantity is not greater than zero.
+	 * @throws NotFoundException
+	 *             when there is no Offer with the given offerId.
+	 * @throws ConflictException
+	 *             when the quantity would exceed the maximum quantity.
+	 */
+	@ApiMethod(name = "returnOffer", path = "offer/{websafeOfferKey}/return", httpMethod = HttpMethod.POST)
+	public WrappedBoolean returnOffer(final User user,
+			@Named("websafeOfferKey") final String websafeOfferKey,
+			@Named("quantity") final int quantity)
+			throws UnauthorizedException, BadRequestException,
+			NotFoundException, ConflictException {
+		if (user == null) {
+			throw new UnauthorizedException("Authorization required");
+		}
+		if (quantity <= 0) {
+			throw new BadRequestException(
+					"The quantity must be greater than zero");
+		}
+		final boolean found;
+		try {
+			found = InventoryCounter.giveback(
+					Key.<Offer> create(websafeOfferKey), quantity);
+		} catch (final IllegalArgumentException e) {
+			throw new ConflictException(e.getMessage());
+		}
+		if (!found) {
+			throw new NotFoundException("No Offer found with key: "
+					+ websafeOfferKey);
+		}
+		return new WrappedBoolean(true);
+	}
+
+	/**
+	 * Reserves the quantities of several Offers at once, all or nothing.
+	 *
+	 * @param user
+	 *            A user who invokes this method, null when the user is not
+	 *            signed in.
+	 * @param checkoutForm
+	 *            A CheckoutForm object representing the cart.
+	 * @return the outcome of each item of the cart.
+	 * @throws UnauthorizedException
+	 *             when the user is not signed in.
+	 * @throws BadRequestException
+	 *             when the cart is empty, has a quantity not greater than
+	 *             zero, has an Offer twice, or has more Offers than can be
+	 *             checked out at once.
+	 * @throws ConflictException
+	 *             when the inventory keeps changing during the checkout.
+	 */
+	@ApiMethod(name = "checkout", path = "checkout", httpMethod = HttpMethod.POST)
+	public CheckoutResult checkout(final User user,
+			final CheckoutForm checkoutForm) throws UnauthorizedException,
+			BadRequestException, ConflictException {
+		if (user == null) {
+			throw new UnauthorizedException("Authorization required");
+		}
+		final List<CheckoutForm.Item> items = checkoutForm.getItems();
+		if (items.isEmpty()
+				|| (items.size() > InventoryCounter.MAX_ENTITY_GROUPS)) {
+			throw new BadRequestException("The cart must have between 1 and "
+					+ InventoryCounter.MAX_ENTITY_GROUPS + " offers");
+		}
+		final Map<Key<Offer>, Integer> quantities = new LinkedHashMap<>();
+		for (final CheckoutForm.Item item : items) {
+			if (item.getQuantity() <= 0) {
+				throw new BadRequestException(
+						"The quantity must be greater than zero");
+			}
+			final Key<Offer> offerKey;
+			try {
+				offerKey = Key.create(item.getWebsafeOfferKey());
+			} catch (final RuntimeException e) {
+				throw new BadRequestException("Invalid offer key: "
+						+ item.getWebsafeOfferKey());
+			}
+			if (quantities.put(offerKey, item.getQuantity()) != null) {
+				throw new BadRequestException("The cart has the offer "
+						+ item.getWebsafeOfferKey() + " twice");
+			}
+		}
+		try {
+			return InventoryCounter.reserve(quantities);
+		} catch (final IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
+		} catch (final ConcurrentModificationException e) {
+			// The client may try again.
+			throw new ConflictException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the available quantity of the Offer with the given key.
+	 *
+	 * The quantity is cached, so it may be a few seconds stale.
+	 *
+	 * @param websafeOfferKey
+	 *            The String representation of the Offer Key.
+	 * @return the available quantity.
+	 * @throws NotFoundException
+	 *             when there is no Offer with the given offerId.
+	 */
+	@ApiMethod(name = "getOfferAvailability", path = "offer/{websafeOfferKey}/availability", httpMethod = HttpMethod.GET)
+	public WrappedInteger getOfferAvailability(
+			@Named("websafeOfferKey") final String websafeOfferKey)
+			throws NotFoundException {
+		final Integer availableQuantity = InventoryCounter
+				.getAvailableQuantity(Key.<Offer> create(websafeOfferKey));
+		if (availableQuantity == null) {
+			throw new NotFoundException("No Offer found with key: "
+					+ websafeOfferKey);
+		}
+		return new WrappedInteger(availableQuantity);
+	}
+
 	/**
 	 * Queries against the datastore with the given filters and returns the
 	 * result.
@@ -593,99 +1136,171 @@ public class HomeFoodApi {
 	 * method, but we do it with POST, in order to receive offerQueryForm Object
 	 * via the POST body.
 	 *
+	 * The offers are ranked in memory, so the cursor of the next page is the
+	 * position of the last offer returned in the ranking rather than a
+	 * datastore cursor. It only continues a query with the same filters.
+	 *
 	 * @param offerQueryForm
 	 *            A form object representing the query.
-	 * @return A List of Offers that match the query.
+	 * @return A page of at most offerQueryForm.limit Offers that match the
+	 *         query, with the cursor of the next page when there are more.
+	 * @throws BadRequestException
+	 *             when the cursor is invalid or belongs to another query.
 	 */
 	@ApiMethod(name = "queryOffers", path = "queryOffers", httpMethod = HttpMethod.POST)
-	public List<Offer> queryOffers(final OfferQueryForm offerQueryForm) {
-
-		Query<Offer> query = ofy().load().type(Offer.class);
-
-		query = query.filter("offerDateNumber == ",
-				offerQueryForm.getOfferDateNumber());
-
-		final GeoPt geoLocG = new GeoPt(offerQueryForm.getMaxLatitude(),
-				offerQueryForm.getMaxLongitude());
-
-		final GeoPt geoLocL = new GeoPt(offerQueryForm.getMinLatitude(),
-				offerQueryForm.getMinLongitude());
-
-		query = query.filter("location >= ", geoLocL);
-		query = query.filter("location <= ", geoLocG);
+	public CollectionResponse<Offer> queryOffers(
+			final OfferQueryForm offerQueryForm) throws BadRequestException {
+
+		// Searches from the same neighborhood share their candidates.
+		final List<Offer> offers = OfferQueryCache.find(
+				offerQueryForm.getOfferDateNumber(),
+				offerQueryForm.getLatitude(), offerQueryForm.getLongitude(),
+				offerQueryForm.getDistanceInKm(),
+				offerQueryForm.getCuisineFilter(),
+				new OfferQueryCache.Search() {
+					@Override
+					public List<Offer> find(final double latitude,
+							final double longitude, final double radiusInKm) {
+						if (OfferIndex.isEnabled()) {
+							return OfferIndex.find(
+									offerQueryForm.getOfferDateNumber(),
+									latitude, longitude, radiusInKm,
+									offerQueryForm.getCuisineFilter());
+						}
+						return queryOffersFromDatastore(offerQueryForm,
+								latitude, longitude, radiusInKm);
+					}
+				});
 
-		final List<Offer> offers = query.list();
+		final OfferRanker.Page page = rankOffers(offers, offerQueryForm);
+		InventoryCounter.countAvailableQuantities(page.getOffers());
+		return CollectionResponse.<Offer> builder()
+				.setItems(page.getOffers())
+				.setNextPageToken(page.getNextCursor()).build();
+	}
 
-		final GeoPt callerLocation = new GeoPt(offerQueryForm.getLatitude(),
-				offerQueryForm.getLongitude());
+	/**
+	 * Queries against the datastore with the given filters and returns a
+	 * summary of each matching offer.
+	 *
+	 * This returns the same offers, in the same order and with the same
+	 * cursors, as queryOffers. When the offers are read from the datastore,
+	 * only the fields of the summaries are read, with projection queries.
+	 * Use getOffer for the details of an offer.
+	 *
+	 * A projection query only finds the offers having an index entry for
+	 * every projected property, so the offers saved before providerName and
+	 * inventorySharded were indexed are missing until IndexBackfill saved
+	 * them again.
+	 *
+	 * @param offerQueryForm
+	 *            A form object representing the query.
+	 * @return A page of at most offerQueryForm.limit OfferSummaries of the
+	 *         Offers that match the query, with the cursor of the next page
+	 *         when there are more.
+	 * @throws BadRequestException
+	 *             when the cursor is invalid or belongs to another query.
+	 */
+	@ApiMethod(name = "queryOfferSummaries", path = "queryOfferSummaries", httpMethod = HttpMethod.POST)
+	public CollectionResponse<OfferSummary> queryOfferSummaries(
+			final OfferQueryForm offerQueryForm) throws BadRequestException {
+
+		final List<Offer> offers;
+		if (OfferIndex.isEnabled()) {
+			offers = OfferIndex.find(offerQueryForm.getOfferDateNumber(),
+					offerQueryForm.getLatitude(),
+					offerQueryForm.getLongitude(),
+					offerQueryForm.getDistanceInKm(),
+					offerQueryForm.getCuisineFilter());
+		} else {
+			offers = OfferProjection.find(
+					offerQueryForm.getOfferDateNumber(),
+					offerQueryForm.getLatitude(),
+					offerQueryForm.getLongitude(),
+					offerQueryForm.getDistanceInKm(),
+					offerQueryForm.getCuisineFilter());
+		}
 
-		// If cuisine is not null, remove offers that does not match the
-		// given cuisine
-		if (offerQueryForm.getCuisine() != null) {
-			for (final Iterator<Offer> iterator = offers.iterator(); iterator
-					.hasNext();) {
-				final Offer offer = iterator.next();
-				if ((offer.getCuisine() != null)
-						&& (offer.getCuisine() != offerQueryForm.getCuisine())) {
-					iterator.remove();
-				}
-			}
+		final OfferRanker.Page page = rankOffers(offers, offerQueryForm);
+		InventoryCounter.countAvailableQuantities(page.getOffers());
+		final List<OfferSummary> summaries = new ArrayList<>(page
+				.getOffers().size());
+		for (final Offer offer : page.getOffers()) {
+			summaries.add(new OfferSummary(offer));
 		}
+		return CollectionResponse.<OfferSummary> builder()
+				.setItems(summaries).setNextPageToken(page.getNextCursor())
+				.build();
+	}
 
-		// calculate the distance for the
-		for (final Offer offer : offers) {
-			offer.setDistance(getDistanceInKm(offer.getLocation(),
-					callerLocation));
+	private static OfferRanker.Page rankOffers(final List<Offer> offers,
+			final OfferQueryForm offerQueryForm) throws BadRequestException {
+		// The cursor is bound to the day and the cuisines too.
+		final String filters = offerQueryForm.getOfferDateNumber() + "/"
+				+ offerQueryForm.getCuisineFilter();
+		try {
+			return OfferRanker.rank(offers, offerQueryForm.getLatitude(),
+					offerQueryForm.getLongitude(),
+					offerQueryForm.getDistanceInKm(),
+					offerQueryForm.getSortField(), offerQueryForm.getLimit(),
+					offerQueryForm.getCursor(), filters);
+		} catch (final IllegalArgumentException e) {
+			throw new BadRequestException(e.getMessage());
 		}
+	}
 
-		switch (offerQueryForm.getSortField()) {
+	private static List<Offer> queryOffersFromDatastore(
+			final OfferQueryForm offerQueryForm, final double latitude,
+			final double longitude, final double radiusInKm) {
 
-		case PRICE: // ascending
-			Collections.sort(offers, new Comparator<Offer>() {
+		Query<Offer> query = ofy().load().type(Offer.class);
 
-				@Override
-				public int compare(final Offer o1, final Offer o2) {
-					return Integer.compare(o1.getPriceInUnit(),
-							o2.getPriceInUnit());
-				}
+		query = query.filter("offerDateNumber == ",
+				offerQueryForm.getOfferDateNumber());
 
-			});
-			break;
+		// Look up only the few geohash cells covering the search radius, a
+		// range filter on the GeoPt would scan the whole latitude band.
+		final List<String> cells = GeoHash.cover(latitude, longitude,
+				radiusInKm);
+		if (!cells.isEmpty()) {
+			query = query.filter("geoCells in ", cells);
+		}
 
-		case DISTANCE: // ascending
-		default:
-			Collections.sort(offers, new Comparator<Offer>() {
-				@Override
-				public int compare(final Offer o1, final Offer o2) {
-					return Double.compare(o1.getDistance(), o2.getDistance());
-				}
-			});
-			break;
+		final Set<Cuisine> cuisines = offerQueryForm.getCuisineFilter();
+		if (cuisines.isEmpty()) {
+			return query.list();
 		}
 
+		// One sub-query per cuisine, and one for the offers without a
+		// cuisine, which match every cuisine. Creating the iterators issues
+		// the queries asynchronously, so they all run in parallel before any
+		// result is read. The ranker merges their results.
+		final List<QueryResultIterator<Offer>> results = new ArrayList<>(
+				cuisines.size() + 1);
+		for (final Cuisine cuisine : cuisines) {
+			results.add(query.filter("cuisine == ", cuisine).iterator());
+		}
+		results.add(query.filter("cuisine == ", null).iterator());
+		final List<Offer> offers = new ArrayList<>();
+		for (final QueryResultIterator<Offer> result : results) {
+			while (result.hasNext()) {
+				offers.add(result.next());
+			}
+		}
 		return offers;
 	}
 
-	private double getDistanceInKm(final GeoPt fromLocation,
-			final GeoPt toLocation) {
-
-		final int RADIUS_OF_EARTH = 6371; // Radius of the earth in km
-
-		final double dLat = Math.toRadians(toLocation.getLatitude()
-				- fromLocation.getLatitude());
-		final double dLon = Math.toRadians(toLocation.getLongitude()
-				- fromLocation.getLongitude());
-
-		final double a = (Math.sin(dLat / 2) * Math.sin(dLat / 2))
-				+ (Math.cos(Math.toRadians(toLocation.getLatitude()))
-						* Math.cos(Math.toRadians(fromLocation.getLatitude()))
-						* Math.sin(dLon / 2) * Math.sin(dLon / 2));
-
-		final double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-		final double distance = RADIUS_OF_EARTH * c; // Distance in km
-
-		return distance;
+	/**
+	 * Returns the web safe cursor of the next page, or null when the page was
+	 * not full, so there are no more results.
+	 */
+	private static String getNextPageToken(final QueryResultIterator<?> iterator,
+			final int size, final int limit) {
+		if (size < limit) {
+			return null;
+		}
+		final Cursor cursor = iterator.getCursor();
+		return cursor == null ? null : cursor.toWebSafeString();
 	}
 
 }
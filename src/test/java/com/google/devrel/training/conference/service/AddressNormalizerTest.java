@@ -0,0 +1,37 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for AddressNormalizer.
+ */
+public class AddressNormalizerTest {
+
+    @Test
+    public void testNormalize() throws Exception {
+        assertEquals("1 mg rd, bangalore, ka, india",
+                AddressNormalizer.normalize("1  MG Road., Bangalore , KA,, India"));
+    }
+
+    @Test
+    public void testEquivalentAddresses() throws Exception {
+        assertEquals(AddressNormalizer.normalize("12 North Main Street, Springfield"),
+                AddressNormalizer.normalize("12 N. Main St,  springfield,"));
+    }
+
+    @Test
+    public void testKeepsWordsWithoutStandardAbbreviation() throws Exception {
+        assertEquals("5th main, 3rd cross, bangalore",
+                AddressNormalizer.normalize("5th Main, 3rd Cross, Bangalore"));
+        assertNotEquals(AddressNormalizer.normalize("12 Main Road, Springfield"),
+                AddressNormalizer.normalize("12 Mn Road, Springfield"));
+    }
+
+    @Test
+    public void testDifferentAddresses() throws Exception {
+        assertNotEquals(AddressNormalizer.normalize("12 Main Street, Springfield"),
+                AddressNormalizer.normalize("14 Main Street, Springfield"));
+    }
+}
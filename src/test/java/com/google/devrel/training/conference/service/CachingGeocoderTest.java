@@ -0,0 +1,82 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for CachingGeocoder.
+ */
+public class CachingGeocoderTest {
+
+    private static final String ADDRESS = "1 MG Road, Bangalore, KA, India";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private StubGeocoder stubGeocoder;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        stubGeocoder = new StubGeocoder().add(ADDRESS, 12.9716f, 77.5946f);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testLocalCache() throws Exception {
+        CachingGeocoder geocoder = new CachingGeocoder(stubGeocoder);
+        long hits = Metrics.get(CachingGeocoder.LOCAL_HIT);
+        GeoPt location = geocoder.geocode(ADDRESS);
+        assertEquals(12.9716f, location.getLatitude(), 0);
+        // The same address, written differently.
+        assertEquals(location, geocoder.geocode("1 mg rd.,  bangalore, KA, india"));
+        assertEquals(1, stubGeocoder.getRequests().size());
+        assertEquals(hits + 1, Metrics.get(CachingGeocoder.LOCAL_HIT));
+    }
+
+    @Test
+    public void testMemcache() throws Exception {
+        new CachingGeocoder(stubGeocoder).geocode(ADDRESS);
+        long hits = Metrics.get(CachingGeocoder.MEMCACHE_HIT);
+        // Another instance, with an empty local cache.
+        assertNotNull(new CachingGeocoder(stubGeocoder).geocode(ADDRESS));
+        assertEquals(1, stubGeocoder.getRequests().size());
+        assertEquals(hits + 1, Metrics.get(CachingGeocoder.MEMCACHE_HIT));
+    }
+
+    @Test
+    public void testDatastore() throws Exception {
+        new CachingGeocoder(stubGeocoder).geocode(ADDRESS);
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        long hits = Metrics.get(CachingGeocoder.DATASTORE_HIT);
+        assertNotNull(new CachingGeocoder(stubGeocoder).geocode(ADDRESS));
+        assertEquals(1, stubGeocoder.getRequests().size());
+        assertEquals(hits + 1, Metrics.get(CachingGeocoder.DATASTORE_HIT));
+    }
+
+    @Test
+    public void testNotFoundIsNotCached() throws Exception {
+        CachingGeocoder geocoder = new CachingGeocoder(stubGeocoder);
+        long misses = Metrics.get(CachingGeocoder.MISS);
+        assertNull(geocoder.geocode("Nowhere"));
+        assertNull(geocoder.geocode("Nowhere"));
+        assertEquals(2, stubGeocoder.getRequests().size());
+        assertEquals(misses + 2, Metrics.get(CachingGeocoder.MISS));
+    }
+}
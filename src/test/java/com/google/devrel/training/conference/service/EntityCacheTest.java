@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Tests for EntityCache.
+ */
+public class EntityCacheTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private Key<Profile> profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        profileKey = Key.create(Profile.class, "123456789");
+        ofy().save().entity(new Profile("123456789", "Display Name",
+                "example@gmail.com", TeeShirtSize.M)).now();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        EntityCache.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testLocalHitReturnsCopy() throws Exception {
+        long misses = Metrics.get(EntityCache.LOCAL_MISS);
+        long hits = Metrics.get(EntityCache.LOCAL_HIT);
+        Profile first = EntityCache.get(profileKey);
+        // Changing a copy does not change the cached entity.
+        first.update("Changed", null);
+        ofy().clear();
+        Profile second = EntityCache.get(profileKey);
+        assertNotSame(first, second);
+        assertEquals("Display Name", second.getDisplayName());
+        assertEquals(misses + 1, Metrics.get(EntityCache.LOCAL_MISS));
+        assertEquals(hits + 1, Metrics.get(EntityCache.LOCAL_HIT));
+    }
+
+    @Test
+    public void testSaveEvicts() throws Exception {
+        Profile profile = EntityCache.get(profileKey);
+        profile.update("New Name", null);
+        OfyService.save(profile);
+        ofy().clear();
+        long misses = Metrics.get(EntityCache.LOCAL_MISS);
+        assertEquals("New Name", EntityCache.get(profileKey).getDisplayName());
+        assertEquals(misses + 1, Metrics.get(EntityCache.LOCAL_MISS));
+    }
+
+    @Test
+    public void testSaveInTransactionEvictsOnCommit() throws Exception {
+        EntityCache.get(profileKey);
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        new TransactionRunner("testEvictsOnCommit").run(new Work<Void>() {
+            @Override
+            public Void run() {
+                Profile profile = ofy().load().key(profileKey).now();
+                profile.update("New Name", null);
+                OfyService.save(profile);
+                // A concurrent read before the commit caches the entity as it was.
+                Thread reader = new Thread() {
+                    @Override
+                    public void run() {
+                        ApiProxy.setEnvironmentForCurrentThread(environment);
+                        EntityCache.get(profileKey);
+                    }
+                };
+                reader.start();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            }
+        }, profileKey);
+        ofy().clear();
+        long misses = Metrics.get(EntityCache.LOCAL_MISS);
+        assertEquals("New Name", EntityCache.get(profileKey).getDisplayName());
+        assertEquals(misses + 1, Metrics.get(EntityCache.LOCAL_MISS));
+    }
+
+    @Test
+    public void testBatchLoadsMisses() throws Exception {
+        Key<Profile> otherKey = Key.create(Profile.class, "987654321");
+        Key<Profile> missingKey = Key.create(Profile.class, "000000000");
+        ofy().save().entity(new Profile("987654321", "Other", "other@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED)).now();
+        ofy().clear();
+        EntityCache.get(profileKey);
+        long misses = Metrics.get(EntityCache.LOCAL_MISS);
+        Map<Key<Profile>, Profile> profiles = EntityCache.get(
+                Arrays.asList(missingKey, otherKey, profileKey));
+        assertEquals(Arrays.asList(otherKey, profileKey),
+                new ArrayList<>(profiles.keySet()));
+        assertEquals("Other", profiles.get(otherKey).getDisplayName());
+        assertEquals("Display Name", profiles.get(profileKey).getDisplayName());
+        assertEquals(misses + 2, Metrics.get(EntityCache.LOCAL_MISS));
+    }
+
+    @Test
+    public void testMissingEntity() throws Exception {
+        assertNull(EntityCache.get(Key.create(Profile.class, "987654321")));
+    }
+}
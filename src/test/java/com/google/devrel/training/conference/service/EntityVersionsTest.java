@@ -0,0 +1,138 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for EntityVersions.
+ */
+public class EntityVersionsTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private Key<Provider> providerKey;
+
+    private Key<Offer> offerKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        com.google.appengine.api.datastore.Key rawProviderKey = KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", 1L);
+        Entity provider = new Entity(rawProviderKey);
+        provider.setProperty("name", "Amma's Kitchen");
+        Entity offer = new Entity("Offer", 2L, rawProviderKey);
+        offer.setProperty("title", "Thali");
+        DatastoreServiceFactory.getDatastoreService().put(provider);
+        DatastoreServiceFactory.getDatastoreService().put(offer);
+        providerKey = Key.create(rawProviderKey);
+        offerKey = Key.create(offer.getKey());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        EntityCache.clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testVersionIncreasesOnSave() throws Exception {
+        Offer offer = ofy().load().key(offerKey).now();
+        assertEquals(0, offer.getVersion());
+        OfyService.save(offer);
+        long version = offer.getVersion();
+        assertTrue(version > 0);
+        OfyService.save(offer);
+        assertTrue(offer.getVersion() > version);
+        ofy().clear();
+        assertEquals(offer.getVersion(), ofy().load().key(offerKey).now().getVersion());
+    }
+
+    @Test
+    public void testTranslationKeepsVersion() throws Exception {
+        Offer offer = ofy().load().key(offerKey).now();
+        ofy().save().toEntity(offer);
+        assertEquals(0, offer.getVersion());
+    }
+
+    @Test
+    public void testOfferEtagFollowsProvider() throws Exception {
+        String etag = EntityVersions.etag(offerKey.getString());
+        assertNotNull(etag);
+        assertEquals(etag, EntityVersions.etag(offerKey.getString()));
+
+        Provider provider = ofy().load().key(providerKey).now();
+        OfyService.save(provider);
+        String changed = EntityVersions.etag(offerKey.getString());
+        assertNotEquals(etag, changed);
+        assertNotEquals(EntityVersions.etag(providerKey.getString()), changed);
+    }
+
+    @Test
+    public void testEtagHidesVersion() throws Exception {
+        Offer offer = ofy().load().key(offerKey).now();
+        OfyService.save(offer);
+        String etag = EntityVersions.etag(offerKey.getString());
+        assertFalse(etag.contains(Long.toString(offer.getVersion(), Character.MAX_RADIX)));
+        assertFalse(etag.contains(Long.toString(offer.getVersion())));
+    }
+
+    @Test
+    public void testConferenceEtagFollowsOrganizerName() throws Exception {
+        Profile organizer = new Profile("123456789", "Takashi", "takashi@example.com", null);
+        ofy().save().entity(organizer).now();
+        Entity conference = new Entity("Conference", 3L,
+                KeyFactory.createKey("Profile", "123456789"));
+        conference.setProperty("name", "Devfest");
+        conference.setProperty("organizerUserId", "123456789");
+        DatastoreServiceFactory.getDatastoreService().put(conference);
+        String websafeKey = KeyFactory.keyToString(conference.getKey());
+        String etag = EntityVersions.etag(websafeKey);
+
+        organizer.update(null, TeeShirtSize.XL);
+        OfyService.save(organizer);
+        EntityCache.clear();
+        assertEquals(etag, EntityVersions.etag(websafeKey));
+
+        organizer.update("Takashi Matsuo", null);
+        OfyService.save(organizer);
+        EntityCache.clear();
+        assertNotEquals(etag, EntityVersions.etag(websafeKey));
+    }
+
+    @Test
+    public void testEtagOfMissingEntity() throws Exception {
+        assertNull(EntityVersions.etag(Key.create(providerKey, Offer.class, 99L).getString()));
+        assertNull(EntityVersions.etag(KeyFactory.keyToString(
+                KeyFactory.createKey("Announcement", 1L))));
+    }
+
+    @Test
+    public void testMatches() throws Exception {
+        assertTrue(EntityVersions.matches("\"abc\"", "\"abc\""));
+        assertTrue(EntityVersions.matches("\"xyz\", W/\"abc\"", "\"abc\""));
+        assertTrue(EntityVersions.matches("*", "\"abc\""));
+        assertFalse(EntityVersions.matches("\"abd\"", "\"abc\""));
+        assertFalse(EntityVersions.matches(null, "\"abc\""));
+    }
+}
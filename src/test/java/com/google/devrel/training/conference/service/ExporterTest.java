@@ -0,0 +1,115 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.StringWriter;
+
+/**
+ * Tests for Exporter.
+ */
+public class ExporterTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private com.google.appengine.api.datastore.Key profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        profileKey = KeyFactory.createKey("Profile", "123456789");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testExportsProvidersOfCityAsCsv() throws Exception {
+        putProvider(1, "Lunch, \"Fast\"", "Paris");
+        putProvider(2, "Other", "Lyon");
+
+        StringWriter writer = new StringWriter();
+        assertEquals(1, Exporter.export(Exporter.Kind.PROVIDERS, "Paris", null, null,
+                Exporter.Format.CSV, Exporter.PAGE_SIZE, writer));
+        String[] lines = writer.toString().split("\r\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("websafeKey,name,mainEmail,"));
+        assertTrue(lines[1].contains(",\"Lunch, \"\"Fast\"\"\",,"));
+        assertTrue(lines[1].contains(",Paris,"));
+    }
+
+    @Test
+    public void testExportsOffersAsJson() throws Exception {
+        putOffer(1, "Paris");
+        putOffer(2, "Lyon");
+
+        StringWriter writer = new StringWriter();
+        assertEquals(2, Exporter.export(Exporter.Kind.OFFERS, null, null, null,
+                Exporter.Format.JSON, Exporter.PAGE_SIZE, writer));
+        String[] lines = writer.toString().split("\n");
+        assertEquals(2, lines.length);
+        assertTrue(lines[0].startsWith("{\"websafeKey\":"));
+        assertTrue(lines[0].contains("\"providerCity\":\"Paris\""));
+        assertTrue(lines[0].contains("\"maximumQuantity\":10"));
+        assertTrue(lines[0].contains("\"latitude\":48.8"));
+        assertTrue(lines[1].contains("\"title\":\"Offer 2\""));
+    }
+
+    @Test
+    public void testExportsInPages() throws Exception {
+        for (long id = 1; id <= 7; id++) {
+            putOffer(id, "Paris");
+        }
+
+        // Pages of 2 rows, exports of at most 5 rows.
+        String endCursor = Exporter.endCursor(Exporter.Kind.OFFERS, "Paris", null, 5);
+        assertNotNull(endCursor);
+        StringWriter writer = new StringWriter();
+        assertEquals(5, Exporter.export(Exporter.Kind.OFFERS, "Paris", null, endCursor,
+                Exporter.Format.JSON, 2, writer));
+        assertTrue(writer.toString().contains("\"title\":\"Offer 5\""));
+        assertFalse(writer.toString().contains("\"title\":\"Offer 6\""));
+
+        assertNull(Exporter.endCursor(Exporter.Kind.OFFERS, "Paris", endCursor, 5));
+        writer = new StringWriter();
+        assertEquals(2, Exporter.export(Exporter.Kind.OFFERS, "Paris", endCursor, null,
+                Exporter.Format.JSON, 2, writer));
+        assertTrue(writer.toString().startsWith("{\"websafeKey\":"));
+        assertTrue(writer.toString().contains("\"title\":\"Offer 7\""));
+    }
+
+    private void putProvider(long id, String name, String city) {
+        Entity entity = new Entity("Provider", id, profileKey);
+        entity.setProperty("name", name);
+        entity.setProperty("city", city);
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+    }
+
+    private void putOffer(long id, String providerCity) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(profileKey, "Provider", 1L));
+        entity.setProperty("title", "Offer " + id);
+        entity.setProperty("providerCity", providerCity);
+        entity.setProperty("maximumQuantity", 10L);
+        entity.setProperty("offerDateNumber", 20150301L);
+        entity.setProperty("location", new GeoPt(48.85f, 2.35f));
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+    }
+}
@@ -0,0 +1,79 @@
+package com.google.devrel.training.conference.service;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for GeoHash.
+ */
+public class GeoHashTest {
+
+    private static final double LATITUDE = 12.9716;
+
+    private static final double LONGITUDE = 77.5946;
+
+    private static final double KM_PER_DEGREE = 111.32;
+
+    @Test
+    public void testEncode() throws Exception {
+        assertEquals("u4pruy", GeoHash.encode(57.64911, 10.40744, 6));
+        assertEquals("u4pr", GeoHash.encode(57.64911, 10.40744, 4));
+        assertEquals("7zzzzz", GeoHash.encode(-0.000001, -0.000001, 6));
+    }
+
+    @Test
+    public void testCenter() throws Exception {
+        double[] center = GeoHash.center(LATITUDE, LONGITUDE, 6);
+        assertEquals(GeoHash.encode(LATITUDE, LONGITUDE, 6),
+                GeoHash.encode(center[0], center[1], 6));
+        double deltaLatitude = (center[0] - LATITUDE) * KM_PER_DEGREE;
+        double deltaLongitude = (center[1] - LONGITUDE) * KM_PER_DEGREE
+                * Math.cos(Math.toRadians(LATITUDE));
+        assertTrue(Math.hypot(deltaLatitude, deltaLongitude) <= GeoHash.halfDiagonalInKm(6));
+    }
+
+    @Test
+    public void testCells() throws Exception {
+        List<String> cells = GeoHash.cells(57.64911, 10.40744);
+        assertEquals(GeoHash.MAX_PRECISION - GeoHash.MIN_PRECISION + 1, cells.size());
+        assertEquals("u", cells.get(0));
+        assertEquals("u4pruy", cells.get(cells.size() - 1));
+    }
+
+    @Test
+    public void testCoverContainsPointsWithinRadius() throws Exception {
+        double radius = 10;
+        List<String> cover = GeoHash.cover(LATITUDE, LONGITUDE, radius);
+        assertFalse(cover.isEmpty());
+        assertTrue(cover.size() <= 9);
+        int precision = cover.get(0).length();
+        double deltaLatitude = radius / KM_PER_DEGREE;
+        double deltaLongitude = radius
+                / (KM_PER_DEGREE * Math.cos(Math.toRadians(LATITUDE)));
+        assertTrue(cover.contains(GeoHash.encode(LATITUDE, LONGITUDE, precision)));
+        assertTrue(cover.contains(
+                GeoHash.encode(LATITUDE + deltaLatitude, LONGITUDE, precision)));
+        assertTrue(cover.contains(
+                GeoHash.encode(LATITUDE - deltaLatitude, LONGITUDE, precision)));
+        assertTrue(cover.contains(
+                GeoHash.encode(LATITUDE, LONGITUDE + deltaLongitude, precision)));
+        assertTrue(cover.contains(
+                GeoHash.encode(LATITUDE, LONGITUDE - deltaLongitude, precision)));
+    }
+
+    @Test
+    public void testCoverAcrossAntimeridian() throws Exception {
+        List<String> cover = GeoHash.cover(0, 179.99, 5);
+        int precision = cover.get(0).length();
+        assertTrue(cover.contains(GeoHash.encode(0, 179.99, precision)));
+        assertTrue(cover.contains(GeoHash.encode(0, -179.99, precision)));
+    }
+
+    @Test
+    public void testCoverTooLarge() throws Exception {
+        assertTrue(GeoHash.cover(LATITUDE, LONGITUDE, 20000).isEmpty());
+    }
+}
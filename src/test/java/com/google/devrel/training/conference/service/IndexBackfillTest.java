@@ -0,0 +1,87 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Provider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for IndexBackfill.
+ */
+public class IndexBackfillTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        EntityCache.clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testIndexesOffersSavedBefore() throws Exception {
+        putOffer("123456789", 1);
+        putOffer("987654321", 2);
+        assertEquals(0, ofy().load().type(Offer.class)
+                .filter("providerName", "Amma's Kitchen").count());
+
+        assertNull(IndexBackfill.resaveBatch(IndexBackfill.Kind.OFFERS, null));
+        assertEquals(2, ofy().load().type(Offer.class)
+                .filter("providerName", "Amma's Kitchen").count());
+    }
+
+    @Test
+    public void testIndexesCitiesSavedBefore() throws Exception {
+        Entity provider = new Entity("Provider", 1L, KeyFactory.createKey("Profile", "123456789"));
+        provider.setProperty("name", "Amma's Kitchen");
+        provider.setUnindexedProperty("city", "Bangalore");
+        DatastoreServiceFactory.getDatastoreService().put(provider);
+        putOffer("123456789", 1);
+
+        assertNull(IndexBackfill.resaveBatch(IndexBackfill.Kind.PROVIDERS, null));
+        assertNull(IndexBackfill.resaveBatch(IndexBackfill.Kind.OFFERS, null));
+        assertEquals(1, ofy().load().type(Provider.class).filter("city", "Bangalore").count());
+        assertEquals(1, ofy().load().type(Offer.class)
+                .filter("providerCity", "Bangalore").count());
+    }
+
+    @Test
+    public void testResavesInBatches() throws Exception {
+        for (long id = 1; id <= IndexBackfill.BATCH_SIZE + 1; id++) {
+            putOffer("user" + (id % 3), id);
+        }
+        long resaved = Metrics.get(IndexBackfill.RESAVED);
+        String cursor = IndexBackfill.resaveBatch(IndexBackfill.Kind.OFFERS, null);
+        assertNotNull(cursor);
+        assertNull(IndexBackfill.resaveBatch(IndexBackfill.Kind.OFFERS, cursor));
+        assertEquals(resaved + IndexBackfill.BATCH_SIZE + 1, Metrics.get(IndexBackfill.RESAVED));
+    }
+
+    private static void putOffer(String userId, long id) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", userId), "Provider", 1L));
+        entity.setProperty("title", "Offer " + id);
+        entity.setUnindexedProperty("providerName", "Amma's Kitchen");
+        DatastoreServiceFactory.getDatastoreService().put(entity);
+    }
+}
@@ -0,0 +1,127 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import com.google.devrel.training.conference.domain.Offer;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.VoidWork;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Compares purchases through InventoryCounter with purchases on the Offer entity, under
+ * parallel buyers.
+ *
+ * This is not part of the regular test run, run it with:
+ * mvn test -Dtest=InventoryCounterBenchmark
+ */
+public class InventoryCounterBenchmark {
+
+    private static final int BUYERS = 16;
+
+    private static final int PURCHASES_PER_BUYER = 25;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        executor = Executors.newFixedThreadPool(BUYERS);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void benchmarkParallelPurchases() throws Exception {
+        int quantity = BUYERS * PURCHASES_PER_BUYER;
+        final Key<Offer> entityKey = Key.create(KeyFactory.keyToString(
+                InventoryCounterTest.putOffer(1, quantity)));
+        final Key<Offer> shardedKey = Key.create(KeyFactory.keyToString(
+                InventoryCounterTest.putOffer(2, quantity)));
+        // Shards the inventory before measuring.
+        InventoryCounter.shardInventory(shardedKey);
+
+        long entity = run(new Purchase() {
+            @Override
+            public void buy() {
+                ofy().transact(new VoidWork() {
+                    @Override
+                    public void vrun() {
+                        Offer offer = ofy().load().key(entityKey).now();
+                        offer.buyOffer(1);
+                        ofy().save().entity(offer).now();
+                    }
+                });
+            }
+        });
+        long sharded = run(new Purchase() {
+            @Override
+            public void buy() {
+                InventoryCounter.purchase(shardedKey, 1);
+            }
+        });
+
+        assertEquals(0, ofy().factory().begin().load().key(entityKey).now()
+                .getUnshardedQuantity());
+        InventoryCounter.invalidate(shardedKey);
+        assertEquals(Integer.valueOf(0), InventoryCounter.getAvailableQuantity(shardedKey));
+        System.out.println(String.format(
+                "%d buyers, %d purchases: Offer entity %.2fms, %d shards %.2fms (%.1fx)",
+                BUYERS, quantity, entity / 1e6, InventoryCounter.SHARD_COUNT, sharded / 1e6,
+                (double) entity / sharded));
+    }
+
+    private interface Purchase {
+        void buy();
+    }
+
+    /**
+     * Runs the purchases from BUYERS threads, and returns the elapsed time in nanoseconds.
+     */
+    private long run(final Purchase purchase) throws Exception {
+        final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+        List<Callable<Void>> buyers = new ArrayList<>();
+        for (int i = 0; i < BUYERS; i++) {
+            buyers.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    ApiProxy.setEnvironmentForCurrentThread(environment);
+                    for (int j = 0; j < PURCHASES_PER_BUYER; j++) {
+                        purchase.buy();
+                    }
+                    return null;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Future<Void> future : executor.invokeAll(buyers)) {
+            future.get();
+        }
+        return System.nanoTime() - start;
+    }
+}
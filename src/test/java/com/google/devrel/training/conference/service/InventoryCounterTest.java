@@ -0,0 +1,228 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.CheckoutResult;
+import com.google.devrel.training.conference.domain.InventoryShard;
+import com.google.devrel.training.conference.domain.Offer;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for InventoryCounter.
+ */
+public class InventoryCounterTest {
+
+    private static final int QUANTITY = 20;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private Key<Offer> offerKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        offerKey = Key.create(KeyFactory.keyToString(putOffer(1, QUANTITY)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testPurchaseUnshardedOffer() throws Exception {
+        long directs = Metrics.get(InventoryCounter.DIRECT_PURCHASE);
+        assertTrue(InventoryCounter.purchase(offerKey, 1));
+        assertEquals(directs + 1, Metrics.get(InventoryCounter.DIRECT_PURCHASE));
+        Offer offer = ofy().factory().begin().load().key(offerKey).now();
+        assertFalse(offer.isInventorySharded());
+        assertEquals(QUANTITY - 1, offer.getUnshardedQuantity());
+        assertNull(ofy().factory().begin().load().key(InventoryShard.key(offerKey, 0)).now());
+        assertEquals(Integer.valueOf(QUANTITY - 1), InventoryCounter.getAvailableQuantity(offerKey));
+    }
+
+    @Test
+    public void testShardInventory() throws Exception {
+        assertTrue(InventoryCounter.shardInventory(offerKey).isInventorySharded());
+        long shardPurchases = Metrics.get(InventoryCounter.SHARD_PURCHASE);
+        assertTrue(InventoryCounter.purchase(offerKey, 1));
+        assertEquals(shardPurchases + 1, Metrics.get(InventoryCounter.SHARD_PURCHASE));
+        Offer offer = ofy().factory().begin().load().key(offerKey).now();
+        assertTrue(offer.isInventorySharded());
+        assertEquals(0, offer.getUnshardedQuantity());
+        assertNull(offer.getAvailableQuantity());
+        int total = 0;
+        for (int i = 0; i < InventoryCounter.SHARD_COUNT; i++) {
+            InventoryShard shard = ofy().factory().begin().load()
+                    .key(InventoryShard.key(offerKey, i)).now();
+            assertTrue(shard.getAvailableQuantity() >= 1);
+            total += shard.getAvailableQuantity();
+        }
+        assertEquals(QUANTITY - 1, total);
+        assertEquals(Integer.valueOf(QUANTITY - 1), InventoryCounter.getAvailableQuantity(offerKey));
+    }
+
+    @Test
+    public void testPurchaseFallsBackToAllShards() throws Exception {
+        long fallbacks = Metrics.get(InventoryCounter.FALLBACK_PURCHASE);
+        InventoryCounter.shardInventory(offerKey);
+        // More than any single shard holds.
+        assertTrue(InventoryCounter.purchase(offerKey, QUANTITY - 1));
+        assertEquals(fallbacks + 1, Metrics.get(InventoryCounter.FALLBACK_PURCHASE));
+        assertEquals(Integer.valueOf(1), InventoryCounter.getAvailableQuantity(offerKey));
+        assertTrue(InventoryCounter.purchase(offerKey, 1));
+        assertEquals(Integer.valueOf(0), InventoryCounter.getAvailableQuantity(offerKey));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPurchaseTooMany() throws Exception {
+        InventoryCounter.purchase(offerKey, QUANTITY + 1);
+    }
+
+    @Test
+    public void testGiveback() throws Exception {
+        InventoryCounter.purchase(offerKey, 5);
+        assertTrue(InventoryCounter.giveback(offerKey, 5));
+        assertEquals(Integer.valueOf(QUANTITY), InventoryCounter.getAvailableQuantity(offerKey));
+        try {
+            InventoryCounter.giveback(offerKey, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals("The quantity of offer will exceed the maximum quantity.",
+                    e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCachedAvailableQuantity() throws Exception {
+        long misses = Metrics.get(InventoryCounter.CACHE_MISS);
+        assertEquals(Integer.valueOf(QUANTITY), InventoryCounter.getAvailableQuantity(offerKey));
+        InventoryCounter.purchase(offerKey, 3);
+        InventoryCounter.purchase(offerKey, 2);
+        // Kept up to date without reading the shards again.
+        assertEquals(Integer.valueOf(QUANTITY - 5), InventoryCounter.getAvailableQuantity(offerKey));
+        assertEquals(misses + 1, Metrics.get(InventoryCounter.CACHE_MISS));
+    }
+
+    @Test
+    public void testMissingOffer() throws Exception {
+        Key<Offer> missingKey = Key.create(KeyFactory.keyToString(KeyFactory.createKey(
+                KeyFactory.createKey(KeyFactory.createKey("Profile", "123456789"),
+                        "Provider", 1L), "Offer", 2L)));
+        assertFalse(InventoryCounter.purchase(missingKey, 1));
+        assertFalse(InventoryCounter.giveback(missingKey, 1));
+        assertNull(InventoryCounter.shardInventory(missingKey));
+        assertNull(InventoryCounter.getAvailableQuantity(missingKey));
+    }
+
+    @Test
+    public void testReserve() throws Exception {
+        // Offer 1 is sharded, offer 2 isn't.
+        InventoryCounter.shardInventory(offerKey);
+        InventoryCounter.purchase(offerKey, 1);
+        Key<Offer> otherKey = Key.create(KeyFactory.keyToString(putOffer(2, 5)));
+        CheckoutResult result = InventoryCounter.reserve(quantities(offerKey, 12, otherKey, 5));
+        assertTrue(result.isReserved());
+        assertEquals(CheckoutResult.Status.RESERVED, result.getItems().get(0).getStatus());
+        assertEquals(Integer.valueOf(QUANTITY - 1),
+                result.getItems().get(0).getAvailableQuantity());
+        assertEquals(Integer.valueOf(QUANTITY - 13), InventoryCounter.getAvailableQuantity(offerKey));
+        assertEquals(Integer.valueOf(0), InventoryCounter.getAvailableQuantity(otherKey));
+    }
+
+    @Test
+    public void testReserveAllOrNothing() throws Exception {
+        Key<Offer> otherKey = Key.create(KeyFactory.keyToString(putOffer(2, 5)));
+        Key<Offer> missingKey = Key.create(KeyFactory.keyToString(KeyFactory.createKey(
+                KeyFactory.createKey(KeyFactory.createKey("Profile", "123456789"),
+                        "Provider", 1L), "Offer", 3L)));
+        CheckoutResult result = InventoryCounter.reserve(
+                quantities(offerKey, 2, otherKey, 6, missingKey, 1));
+        assertFalse(result.isReserved());
+        List<CheckoutResult.Item> items = result.getItems();
+        assertEquals(CheckoutResult.Status.RESERVED, items.get(0).getStatus());
+        assertEquals(CheckoutResult.Status.NOT_ENOUGH_QUANTITY, items.get(1).getStatus());
+        assertEquals(Integer.valueOf(5), items.get(1).getAvailableQuantity());
+        assertEquals(CheckoutResult.Status.NOT_FOUND, items.get(2).getStatus());
+        assertNull(items.get(2).getAvailableQuantity());
+        assertEquals(Integer.valueOf(QUANTITY), InventoryCounter.getAvailableQuantity(offerKey));
+        assertEquals(Integer.valueOf(5), InventoryCounter.getAvailableQuantity(otherKey));
+    }
+
+    @Test
+    public void testReserveSoldOutShardedOffer() throws Exception {
+        InventoryCounter.shardInventory(offerKey);
+        InventoryCounter.purchase(offerKey, QUANTITY);
+        Key<Offer> otherKey = Key.create(KeyFactory.keyToString(putOffer("user2", 2, 5)));
+        InventoryCounter.shardInventory(otherKey);
+        InventoryCounter.purchase(otherKey, 1);
+        CheckoutResult result = InventoryCounter.reserve(quantities(offerKey, 1, otherKey, 1));
+        assertFalse(result.isReserved());
+        List<CheckoutResult.Item> items = result.getItems();
+        assertEquals(CheckoutResult.Status.NOT_ENOUGH_QUANTITY, items.get(0).getStatus());
+        assertEquals(Integer.valueOf(0), items.get(0).getAvailableQuantity());
+        assertEquals(CheckoutResult.Status.RESERVED, items.get(1).getStatus());
+        assertEquals(Integer.valueOf(4), InventoryCounter.getAvailableQuantity(otherKey));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReserveTooManyEntityGroups() throws Exception {
+        // The shards of offer 1, plus the groups of the other users.
+        InventoryCounter.shardInventory(offerKey);
+        InventoryCounter.purchase(offerKey, 1);
+        Map<Key<Offer>, Integer> quantities = quantities(offerKey, QUANTITY - 1);
+        for (int i = 2; i <= InventoryCounter.MAX_ENTITY_GROUPS; i++) {
+            quantities.put(Key.<Offer>create(KeyFactory.keyToString(putOffer("user" + i, i, 5))), 1);
+        }
+        InventoryCounter.reserve(quantities);
+    }
+
+    private static Map<Key<Offer>, Integer> quantities(Object... keysAndQuantities) {
+        Map<Key<Offer>, Integer> quantities = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndQuantities.length; i += 2) {
+            @SuppressWarnings("unchecked")
+            Key<Offer> key = (Key<Offer>) keysAndQuantities[i];
+            quantities.put(key, (Integer) keysAndQuantities[i + 1]);
+        }
+        return quantities;
+    }
+
+    /**
+     * Stores an Offer with the given quantity, and returns its key.
+     */
+    static com.google.appengine.api.datastore.Key putOffer(long id, int quantity) {
+        return putOffer("123456789", id, quantity);
+    }
+
+    /**
+     * Stores an Offer of the given user with the given quantity, and returns its key.
+     */
+    static com.google.appengine.api.datastore.Key putOffer(String userId, long id,
+                                                           int quantity) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", userId), "Provider", 1L));
+        entity.setProperty("title", "Offer " + id);
+        entity.setProperty("maximumQuantity", (long) quantity);
+        entity.setProperty("availableQuantity", (long) quantity);
+        return DatastoreServiceFactory.getDatastoreService().put(entity);
+    }
+}
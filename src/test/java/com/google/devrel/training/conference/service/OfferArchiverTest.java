@@ -0,0 +1,110 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.InventoryShard;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferArchive;
+import com.google.devrel.training.conference.domain.Provider;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+/**
+ * Tests for OfferArchiver.
+ */
+public class OfferArchiverTest {
+
+    private static final long PAST_DAY = 20150301L;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig());
+
+    private Key<Provider> providerKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        providerKey = Key.create(KeyFactory.keyToString(KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", 1L)));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testArchivesPastOffers() throws Exception {
+        Key<Offer> sharded = putOffer(1, PAST_DAY);
+        putOffer(2, PAST_DAY);
+        Key<Offer> current = putOffer(3, OfferArchiver.cutoffDateNumber());
+        InventoryCounter.shardInventory(sharded);
+        InventoryCounter.purchase(sharded, 3);
+
+        assertNull(OfferArchiver.archiveBatch(null));
+        ofy().clear();
+        assertNull(ofy().load().key(sharded).now());
+        assertNotNull(ofy().load().key(current).now());
+        assertNull(ofy().load().key(InventoryShard.key(sharded, 0)).now());
+
+        OfferArchive archive = ofy().load().key(OfferArchive.key(providerKey, PAST_DAY)).now();
+        List<OfferArchive.ArchivedOffer> offers = archive.getOffers();
+        assertEquals(2, offers.size());
+        assertEquals("Offer 1", offers.get(0).getTitle());
+        assertEquals(10, offers.get(0).getMaximumQuantity());
+        assertEquals(3, offers.get(0).getSoldQuantity());
+        assertEquals(0, offers.get(1).getSoldQuantity());
+    }
+
+    @Test
+    public void testArchivesOnce() throws Exception {
+        putOffer(1, PAST_DAY);
+        OfferArchiver.archiveBatch(null);
+        OfferArchiver.archiveBatch(null);
+        ofy().clear();
+        assertEquals(1, ofy().load().key(OfferArchive.key(providerKey, PAST_DAY)).now()
+                .getOffers().size());
+    }
+
+    @Test
+    public void testArchivesInBatches() throws Exception {
+        for (long id = 1; id <= OfferArchiver.BATCH_SIZE + 1; id++) {
+            putOffer(id, PAST_DAY - (id % 2));
+        }
+        String cursor = OfferArchiver.archiveBatch(null);
+        assertNotNull(cursor);
+        assertNull(OfferArchiver.archiveBatch(cursor));
+        ofy().clear();
+        assertEquals(0, ofy().load().type(Offer.class).count());
+        assertEquals(OfferArchiver.BATCH_SIZE + 1,
+                ofy().load().key(OfferArchive.key(providerKey, PAST_DAY)).now()
+                        .getOffers().size()
+                        + ofy().load().key(OfferArchive.key(providerKey, PAST_DAY - 1)).now()
+                        .getOffers().size());
+    }
+
+    private Key<Offer> putOffer(long id, long offerDateNumber) {
+        Entity entity = new Entity("Offer", id, providerKey.getRaw());
+        entity.setProperty("title", "Offer " + id);
+        entity.setProperty("maximumQuantity", 10L);
+        entity.setProperty("availableQuantity", 10L);
+        entity.setProperty("offerDateNumber", offerDateNumber);
+        return Key.create(KeyFactory.keyToString(
+                DatastoreServiceFactory.getDatastoreService().put(entity)));
+    }
+}
@@ -0,0 +1,150 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferSummary;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.gson.Gson;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for OfferFeedCodec.
+ */
+public class OfferFeedCodecTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Offer> offers = Arrays.asList(
+                offer(1, 1, "Kitchen A", "Idli", Cuisine.SOUTH_INDIAN, 12.9716, 77.5946, 2.345),
+                offer(2, 7, "Kitchen B", "Thali", Cuisine.GUJARATI, 12.9521, 77.6012, null),
+                offer(1, 3, "Kitchen A", "Dosa ஸ", null, -12.9716, -77.5946, 0.0));
+
+        OfferFeedCodec.Feed feed = OfferFeedCodec.decode(OfferFeedCodec.encode(offers, "50"));
+        assertEquals("50", feed.getNextCursor());
+        assertEquals(3, feed.getOffers().size());
+        for (int i = 0; i < offers.size(); i++) {
+            OfferSummary expected = new OfferSummary(offers.get(i));
+            OfferSummary actual = feed.getOffers().get(i);
+            assertEquals(expected.getWebsafeKey(), actual.getWebsafeKey());
+            assertEquals(expected.getTitle(), actual.getTitle());
+            assertEquals(expected.getCuisine(), actual.getCuisine());
+            assertEquals(expected.getPriceInUnit(), actual.getPriceInUnit());
+            assertEquals(expected.getAvailableQuantity(), actual.getAvailableQuantity());
+            assertEquals(expected.getProviderName(), actual.getProviderName());
+            assertEquals(expected.getLatitude(), actual.getLatitude(), 1e-6);
+            assertEquals(expected.getLongitude(), actual.getLongitude(), 1e-6);
+            if (expected.getDistance() == null) {
+                assertNull(actual.getDistance());
+            } else {
+                assertEquals(expected.getDistance(), actual.getDistance(), 0.001);
+            }
+        }
+    }
+
+    @Test
+    public void testSmallerThanJson() throws Exception {
+        List<Offer> offers = new ArrayList<>();
+        for (long id = 1; id <= 50; id++) {
+            offers.add(offer(id % 5, id, "Kitchen " + (id % 5), "Meal " + id,
+                    Cuisine.PUNJABI, 12.9716 + (id * 0.001), 77.5946 - (id * 0.001), id * 0.1));
+        }
+        List<OfferSummary> summaries = new ArrayList<>();
+        for (Offer offer : offers) {
+            summaries.add(new OfferSummary(offer));
+        }
+        int jsonLength = new Gson().toJson(summaries).getBytes("UTF-8").length;
+        assertTrue(OfferFeedCodec.encode(offers, null).length * 3 < jsonLength);
+        assertNull(OfferFeedCodec.decode(OfferFeedCodec.encode(offers, null)).getNextCursor());
+    }
+
+    @Test
+    public void testEmptyFeed() throws Exception {
+        OfferFeedCodec.Feed feed = OfferFeedCodec.decode(
+                OfferFeedCodec.encode(new ArrayList<Offer>(), null));
+        assertTrue(feed.getOffers().isEmpty());
+        assertNull(feed.getNextCursor());
+    }
+
+    @Test
+    public void testSkipsOffersWithoutLocation() throws Exception {
+        List<Offer> offers = Arrays.asList(
+                offer(1, 1, "Kitchen A", "Idli", Cuisine.JAIN, 12.9716, 77.5946, 1.0),
+                offerWithoutLocation(2, 2, "Kitchen B", "Thali"));
+        OfferFeedCodec.Feed feed = OfferFeedCodec.decode(OfferFeedCodec.encode(offers, null));
+        assertEquals(1, feed.getOffers().size());
+        assertEquals("Idli", feed.getOffers().get(0).getTitle());
+    }
+
+    @Test
+    public void testRejectsCorruptedFeeds() throws Exception {
+        byte[] bytes = OfferFeedCodec.encode(Arrays.asList(
+                offer(1, 1, "Kitchen A", "Idli", Cuisine.JAIN, 12.9716, 77.5946, 1.0)), null);
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1));
+        assertRejected(Arrays.copyOf(bytes, bytes.length + 1));
+        bytes[0] = OfferFeedCodec.VERSION + 1;
+        assertRejected(bytes);
+    }
+
+    private static void assertRejected(byte[] bytes) {
+        try {
+            OfferFeedCodec.decode(bytes);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Offer offerWithoutLocation(long providerId, long id, String providerName,
+            String title) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", providerId + 1));
+        entity.setProperty("title", title);
+        entity.setProperty("providerName", providerName);
+        return ofy().load().fromEntity(entity);
+    }
+
+    private static Offer offer(long providerId, long id, String providerName, String title,
+            Cuisine cuisine, double latitude, double longitude, Double distance) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", providerId + 1));
+        entity.setProperty("title", title);
+        entity.setProperty("providerName", providerName);
+        if (cuisine != null) {
+            entity.setProperty("cuisine", cuisine.name());
+        }
+        entity.setProperty("priceInUnit", 1050L);
+        entity.setProperty("availableQuantity", 4L);
+        entity.setProperty("location", new GeoPt((float) latitude, (float) longitude));
+        Offer offer = ofy().load().fromEntity(entity);
+        offer.setDistance(distance);
+        return offer;
+    }
+}
@@ -0,0 +1,132 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for OfferIndex.
+ */
+public class OfferIndexTest {
+
+    private static final long DAY = 20150301L;
+
+    private static final double LATITUDE = 12.9716;
+
+    private static final double LONGITUDE = 77.5946;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        OfferIndex.clear();
+        DatastoreServiceFactory.getDatastoreService().put(offerEntity(1, DAY, LATITUDE, LONGITUDE));
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(2, DAY, LATITUDE + 0.02, LONGITUDE - 0.02));
+        // Far away.
+        DatastoreServiceFactory.getDatastoreService().put(offerEntity(3, DAY, 28.6139, 77.2090));
+        // Another day.
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(4, DAY + 1, LATITUDE, LONGITUDE));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OfferIndex.clear();
+        System.clearProperty(OfferIndex.MAX_STALENESS_PROPERTY);
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testFind() throws Exception {
+        assertEquals(ids(1, 2), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10)));
+        assertEquals(ids(4), idsOf(OfferIndex.find(DAY + 1, LATITUDE, LONGITUDE, 10)));
+    }
+
+    @Test
+    public void testFindReturnsNewObjects() throws Exception {
+        Offer first = OfferIndex.find(DAY + 1, LATITUDE, LONGITUDE, 10).get(0);
+        Offer second = OfferIndex.find(DAY + 1, LATITUDE, LONGITUDE, 10).get(0);
+        assertNotSame(first, second);
+    }
+
+    @Test
+    public void testPut() throws Exception {
+        OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10);
+        // Not in the datastore, so it can only come from the incremental update.
+        Offer offer = ofy().load().fromEntity(offerEntity(5, DAY, LATITUDE, LONGITUDE));
+        OfferIndex.put(offer);
+        assertEquals(ids(1, 2, 5), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10)));
+        // Moving it to another day removes it from the first one.
+        Offer moved = ofy().load().fromEntity(offerEntity(5, DAY + 1, LATITUDE, LONGITUDE));
+        OfferIndex.find(DAY + 1, LATITUDE, LONGITUDE, 10);
+        OfferIndex.put(moved);
+        assertEquals(ids(1, 2), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10)));
+        assertEquals(ids(4, 5), idsOf(OfferIndex.find(DAY + 1, LATITUDE, LONGITUDE, 10)));
+    }
+
+    @Test
+    public void testFindByCuisine() throws Exception {
+        assertEquals(ids(1), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10,
+                EnumSet.of(Cuisine.SOUTH_INDIAN))));
+        assertEquals(ids(1, 2), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10,
+                EnumSet.of(Cuisine.SOUTH_INDIAN, Cuisine.PUNJABI))));
+        assertEquals(ids(1, 2), idsOf(OfferIndex.find(DAY, LATITUDE, LONGITUDE, 10,
+                EnumSet.noneOf(Cuisine.class))));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        assertTrue(OfferIndex.isEnabled());
+        System.setProperty(OfferIndex.MAX_STALENESS_PROPERTY, "0");
+        assertFalse(OfferIndex.isEnabled());
+    }
+
+    private static Entity offerEntity(long id, long day, double latitude, double longitude) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", 1L));
+        entity.setProperty("title", "Offer " + id);
+        entity.setProperty("cuisine",
+                (id % 2 == 1 ? Cuisine.SOUTH_INDIAN : Cuisine.PUNJABI).name());
+        entity.setProperty("offerDateNumber", day);
+        entity.setProperty("location", new GeoPt((float) latitude, (float) longitude));
+        entity.setProperty("geoCells", GeoHash.cells(latitude, longitude));
+        return entity;
+    }
+
+    private static Set<Long> ids(long... ids) {
+        Set<Long> result = new HashSet<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static Set<Long> idsOf(List<Offer> offers) {
+        Set<Long> result = new HashSet<>();
+        for (Offer offer : offers) {
+            result.add(offer.getId());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferTemplate;
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.form.OfferForm;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.form.OfferTemplateForm;
+import com.google.devrel.training.conference.form.ProviderForm;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.List;
+
+/**
+ * Tests for OfferMaterializer.
+ */
+public class OfferMaterializerTest {
+
+    private static final String USER_ID = "123456789";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    private Provider provider;
+
+    private Date today;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        provider = new Provider(1L, USER_ID, new ProviderForm("Amma's Kitchen", null,
+                "amma@example.com", "1 MG Road", null, "Bangalore", "KA", "560001", "India",
+                "9999999999", null, false));
+        ofy().save().entity(provider).now();
+        today = OfferTemplate.startOfDay(new Date());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OfferIndex.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testMaterializeOnce() throws Exception {
+        Key<OfferTemplate> templateKey = putTemplate(1L, null);
+        Date horizon = OfferMaterializer.horizon();
+        List<Offer> offers = OfferMaterializer.materialize(templateKey, horizon);
+        assertEquals(OfferMaterializer.HORIZON_DAYS + 1, offers.size());
+        assertEquals("Thali", offers.get(0).getTitle());
+        assertEquals(today, offers.get(0).getOfferDate());
+        assertEquals(horizon, offers.get(offers.size() - 1).getOfferDate());
+        // Running the task again creates nothing.
+        assertTrue(OfferMaterializer.materialize(templateKey, horizon).isEmpty());
+        ofy().clear();
+        assertEquals(OfferMaterializer.HORIZON_DAYS + 1,
+                ofy().load().type(Offer.class).ancestor(provider).count());
+        assertEquals(addDays(horizon, 1),
+                ofy().load().key(templateKey).now().getNextOfferDate());
+    }
+
+    @Test
+    public void testMaterializeUntilEndDate() throws Exception {
+        Key<OfferTemplate> templateKey = putTemplate(1L, addDays(today, 1));
+        assertEquals(2, OfferMaterializer.materialize(templateKey,
+                OfferMaterializer.horizon()).size());
+        ofy().clear();
+        // Finished templates are no longer queried.
+        assertNull(ofy().load().key(templateKey).now().getNextOfferDate());
+        assertNull(OfferMaterializer.materializeBatch(null));
+    }
+
+    @Test
+    public void testMaterializeBatches() throws Exception {
+        for (long id = 1; id <= OfferMaterializer.BATCH_SIZE + 1; id++) {
+            putTemplate(id, today);
+        }
+        String cursor = OfferMaterializer.materializeBatch(null);
+        assertNotNull(cursor);
+        assertNull(OfferMaterializer.materializeBatch(cursor));
+        assertEquals(OfferMaterializer.BATCH_SIZE + 1,
+                ofy().load().type(Offer.class).ancestor(provider).count());
+    }
+
+    private Key<OfferTemplate> putTemplate(long id, Date endDate) {
+        OfferTemplate template = new OfferTemplate(id, USER_ID, new OfferTemplateForm(
+                new OfferForm("Thali", "South indian thali", today, 10, Cuisine.SOUTH_INDIAN,
+                        100, "Rs", provider.getWebsafeKey()), endDate));
+        ofy().save().entity(template).now();
+        return Key.create(template.getWebsafeKey());
+    }
+
+    private static Date addDays(Date date, int days) {
+        Calendar calendar = new GregorianCalendar();
+        calendar.setTime(date);
+        calendar.add(Calendar.DAY_OF_MONTH, days);
+        return calendar.getTime();
+    }
+}
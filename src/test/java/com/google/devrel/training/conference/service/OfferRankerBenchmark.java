@@ -0,0 +1,145 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.OfferQueryForm;
+import com.google.devrel.training.conference.form.SortField;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares OfferRanker with the previous ranking of queryOffers on 100k candidates.
+ *
+ * This is not part of the regular test run, run it with:
+ * mvn test -Dtest=OfferRankerBenchmark
+ */
+public class OfferRankerBenchmark {
+
+    private static final int CANDIDATES = 100000;
+
+    private static final int ROUNDS = 20;
+
+    private static final double LATITUDE = 12.9716;
+
+    private static final double LONGITUDE = 77.5946;
+
+    private static final int DISTANCE_IN_KM = 10;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private List<Offer> candidates;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        Random random = new Random(42);
+        candidates = new ArrayList<>(CANDIDATES);
+        for (int i = 1; i <= CANDIDATES; i++) {
+            Entity entity = new Entity("Offer", i, KeyFactory.createKey(
+                    KeyFactory.createKey("Profile", "123456789"), "Provider", 1L));
+            // Spread over a 12km x 12km square, so most candidates are within 10km.
+            GeoPt location = new GeoPt(
+                    (float) (LATITUDE + (random.nextDouble() - 0.5) * 0.11),
+                    (float) (LONGITUDE + (random.nextDouble() - 0.5) * 0.11));
+            entity.setProperty("location", location);
+            entity.setProperty("latitudeRadians", Math.toRadians(location.getLatitude()));
+            entity.setProperty("longitudeRadians", Math.toRadians(location.getLongitude()));
+            entity.setProperty("cosLatitude", Math.cos(Math.toRadians(location.getLatitude())));
+            entity.setProperty("priceInUnit", 1000 + random.nextInt(10000));
+            Offer offer = ofy().load().fromEntity(entity);
+            candidates.add(offer);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void benchmarkDistance() throws Exception {
+        long previous = Long.MAX_VALUE;
+        long ranker = Long.MAX_VALUE;
+        long topK = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS; round++) {
+            List<Offer> copy = new ArrayList<>(candidates);
+            long start = System.nanoTime();
+            List<Offer> expected = previousRanking(copy);
+            previous = Math.min(previous, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Offer> actual = OfferRanker.rank(candidates, LATITUDE, LONGITUDE,
+                    DISTANCE_IN_KM, SortField.DISTANCE, candidates.size());
+            ranker = Math.min(ranker, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            List<Offer> top = OfferRanker.rank(candidates, LATITUDE, LONGITUDE,
+                    DISTANCE_IN_KM, SortField.DISTANCE, OfferQueryForm.DEFAULT_LIMIT);
+            topK = Math.min(topK, System.nanoTime() - start);
+
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < top.size(); i++) {
+                assertEquals(expected.get(i).getDistance(), top.get(i).getDistance(), 0.001);
+            }
+        }
+        System.out.println(String.format(
+                "%d candidates, best of %d: previous %.2fms, OfferRanker %.2fms (%.1fx), "
+                + "OfferRanker top %d %.2fms (%.1fx)",
+                CANDIDATES, ROUNDS, previous / 1e6, ranker / 1e6, (double) previous / ranker,
+                OfferQueryForm.DEFAULT_LIMIT, topK / 1e6, (double) previous / topK));
+        assertTrue(ranker < previous);
+        assertTrue(topK < ranker);
+    }
+
+    /**
+     * The ranking queryOffers used to do: a haversine per candidate from degrees, boxed
+     * distances and a comparator sort.
+     */
+    private static List<Offer> previousRanking(List<Offer> offers) {
+        GeoPt callerLocation = new GeoPt((float) LATITUDE, (float) LONGITUDE);
+        for (Offer offer : offers) {
+            offer.setDistance(getDistanceInKm(offer.getLocation(), callerLocation));
+        }
+        List<Offer> result = new ArrayList<>(offers.size());
+        for (Offer offer : offers) {
+            if (offer.getDistance() <= DISTANCE_IN_KM) {
+                result.add(offer);
+            }
+        }
+        Collections.sort(result, new Comparator<Offer>() {
+            @Override
+            public int compare(Offer o1, Offer o2) {
+                return Double.compare(o1.getDistance(), o2.getDistance());
+            }
+        });
+        return result;
+    }
+
+    private static double getDistanceInKm(GeoPt fromLocation, GeoPt toLocation) {
+        double dLat = Math.toRadians(toLocation.getLatitude() - fromLocation.getLatitude());
+        double dLon = Math.toRadians(toLocation.getLongitude() - fromLocation.getLongitude());
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(toLocation.getLatitude()))
+                * Math.cos(Math.toRadians(fromLocation.getLatitude()))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+        return 6371 * c;
+    }
+}
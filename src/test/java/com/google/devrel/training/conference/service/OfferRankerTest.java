@@ -0,0 +1,208 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.form.SortField;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for OfferRanker.
+ */
+public class OfferRankerTest {
+
+    private static final double LATITUDE = 12.9716;
+
+    private static final double LONGITUDE = 77.5946;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testDistanceMatchesHaversine() throws Exception {
+        Offer offer = offer(1, 13.0827, 80.2707, 100);
+        assertEquals(haversine(LATITUDE, LONGITUDE, 13.0827, 80.2707),
+                OfferRanker.getDistanceInKm(LATITUDE, LONGITUDE, offer), 0.01);
+    }
+
+    @Test
+    public void testRankByDistance() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.03, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE, LONGITUDE + 0.01, 300));
+        candidates.add(offer(3, LATITUDE - 0.02, LONGITUDE, 200));
+        // Outside of the radius.
+        candidates.add(offer(4, LATITUDE + 0.2, LONGITUDE, 50));
+        List<Offer> ranked = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 10);
+        assertEquals(3, ranked.size());
+        assertEquals(2, ranked.get(0).getId());
+        assertEquals(3, ranked.get(1).getId());
+        assertEquals(1, ranked.get(2).getId());
+        for (Offer offer : ranked) {
+            assertEquals(haversine(LATITUDE, LONGITUDE, offer.getLocation().getLatitude(),
+                    offer.getLocation().getLongitude()), offer.getDistance(), 0.01);
+        }
+    }
+
+    @Test
+    public void testRankByPrice() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.03, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE, LONGITUDE + 0.01, 300));
+        candidates.add(offer(3, LATITUDE - 0.02, LONGITUDE, 200));
+        List<Offer> ranked = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.PRICE, 10);
+        assertEquals(1, ranked.get(0).getId());
+        assertEquals(3, ranked.get(1).getId());
+        assertEquals(2, ranked.get(2).getId());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        for (int i = 1; i <= 20; i++) {
+            // Farther and cheaper as i grows.
+            candidates.add(offer(i, LATITUDE + 0.001 * i, LONGITUDE, 1000 - i));
+        }
+        List<Offer> nearest = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 3);
+        assertEquals(3, nearest.size());
+        assertEquals(1, nearest.get(0).getId());
+        assertEquals(2, nearest.get(1).getId());
+        assertEquals(3, nearest.get(2).getId());
+        List<Offer> cheapest = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.PRICE, 3);
+        assertEquals(3, cheapest.size());
+        assertEquals(20, cheapest.get(0).getId());
+        assertEquals(19, cheapest.get(1).getId());
+        assertEquals(18, cheapest.get(2).getId());
+    }
+
+    @Test
+    public void testPagination() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        for (int i = 1; i <= 7; i++) {
+            // The same price for all of them, so only the ids break the ties.
+            candidates.add(offer(8 - i, LATITUDE + 0.001 * i, LONGITUDE, 100));
+        }
+        List<Long> ids = new ArrayList<>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            OfferRanker.Page page = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                    SortField.PRICE, 3, cursor);
+            for (Offer offer : page.getOffers()) {
+                ids.add(offer.getId());
+            }
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+        assertEquals(3, pages);
+        assertEquals(ImmutableList.of(1L, 2L, 3L, 4L, 5L, 6L, 7L), ids);
+    }
+
+    @Test
+    public void testLastPageHasNoCursor() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.01, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE + 0.02, LONGITUDE, 100));
+        OfferRanker.Page page = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 2, null);
+        assertEquals(2, page.getOffers().size());
+        assertNull(page.getNextCursor());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCursorOfAnotherSortField() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.01, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE + 0.02, LONGITUDE, 100));
+        String cursor = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 1, null).getNextCursor();
+        OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10, SortField.PRICE, 1, cursor);
+    }
+
+    @Test
+    public void testCursorOfAnotherQuery() throws Exception {
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.01, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE + 0.02, LONGITUDE, 100));
+        String cursor = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 1, null, "day1").getNextCursor();
+        assertEquals(1, OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 1, cursor, "day1").getOffers().size());
+        assertRejected(candidates, LATITUDE, LONGITUDE, 5, cursor, "day1");
+        assertRejected(candidates, LATITUDE, LONGITUDE + 0.01, 10, cursor, "day1");
+        assertRejected(candidates, LATITUDE, LONGITUDE, 10, cursor, "day2");
+    }
+
+    @Test
+    public void testRadiusEdge() throws Exception {
+        // 1 degree of latitude is about 111.19km.
+        List<Offer> candidates = new ArrayList<>();
+        candidates.add(offer(1, LATITUDE + 0.0895, LONGITUDE, 100));
+        candidates.add(offer(2, LATITUDE + 0.0905, LONGITUDE, 100));
+        List<Offer> ranked = OfferRanker.rank(candidates, LATITUDE, LONGITUDE, 10,
+                SortField.DISTANCE, 10);
+        assertEquals(1, ranked.size());
+        assertEquals(1, ranked.get(0).getId());
+    }
+
+    private static void assertRejected(List<Offer> candidates, double latitude,
+            double longitude, double radiusInKm, String cursor, String filters) {
+        try {
+            OfferRanker.rank(candidates, latitude, longitude, radiusInKm, SortField.DISTANCE, 1,
+                    cursor, filters);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static Offer offer(long id, double latitude, double longitude, int priceInUnit) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", 1L));
+        GeoPt location = new GeoPt((float) latitude, (float) longitude);
+        entity.setProperty("location", location);
+        entity.setProperty("latitudeRadians", Math.toRadians(location.getLatitude()));
+        entity.setProperty("longitudeRadians", Math.toRadians(location.getLongitude()));
+        entity.setProperty("cosLatitude", Math.cos(Math.toRadians(location.getLatitude())));
+        entity.setProperty("priceInUnit", priceInUnit);
+        return ofy().load().fromEntity(entity);
+    }
+
+    private static double haversine(double fromLatitude, double fromLongitude,
+                                    double toLatitude, double toLongitude) {
+        double dLat = Math.toRadians(toLatitude - fromLatitude);
+        double dLon = Math.toRadians(toLongitude - fromLongitude);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(toLatitude)) * Math.cos(Math.toRadians(fromLatitude))
+                * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+        return 6371 * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+}
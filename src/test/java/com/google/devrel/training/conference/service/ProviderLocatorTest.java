@@ -0,0 +1,145 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.form.OfferForm;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.form.ProviderForm;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Date;
+
+/**
+ * Tests for ProviderLocator.
+ */
+public class ProviderLocatorTest {
+
+    private static final String USER_ID = "123456789";
+
+    private static final long DAY_IN_MILLIS = 24L * 60 * 60 * 1000;
+
+    private static final float LATITUDE = 12.9716f;
+
+    private static final float LONGITUDE = 77.5946f;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    private final StubGeocoder geocoder = new StubGeocoder();
+
+    private Geocoder previousGeocoder;
+
+    private Provider provider;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        previousGeocoder = GeocoderService.geocoder();
+        GeocoderService.setGeocoder(geocoder);
+        provider = new Provider(1L, USER_ID, providerForm("1 MG Road"));
+        ofy().save().entity(provider).now();
+        geocoder.add(provider.getAddress(), LATITUDE, LONGITUDE);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        GeocoderService.setGeocoder(previousGeocoder);
+        OfferIndex.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testNewProviderIsPending() throws Exception {
+        assertTrue(provider.isLocationPending());
+        assertEquals(0, provider.getLatitude(), 0);
+        assertTrue(geocoder.getRequests().isEmpty());
+    }
+
+    @Test
+    public void testSameAddressIsNotGeocodedAgain() throws Exception {
+        provider.setLocation(new GeoPt(LATITUDE, LONGITUDE));
+        // Only the case and spacing change, along with the phone number.
+        provider.updateWithProviderForm(new ProviderForm("Amma's Kitchen", null,
+                "amma@example.com", "1  mg road", null, "Bangalore", "KA", "560001", "India",
+                "8888888888", null, false));
+        assertFalse(provider.isLocationPending());
+    }
+
+    @Test
+    public void testLocate() throws Exception {
+        Offer past = newOffer(10L, new Date(System.currentTimeMillis() - 2 * DAY_IN_MILLIS));
+        Offer upcoming = newOffer(11L, new Date(System.currentTimeMillis() + DAY_IN_MILLIS));
+        ofy().save().entities(past, upcoming).now();
+
+        ProviderLocator.locate(Key.create(provider), provider.getAddress());
+        ofy().clear();
+
+        Provider located = ofy().load().entity(provider).now();
+        assertFalse(located.isLocationPending());
+        assertEquals(LATITUDE, located.getLatitude(), 0);
+        assertEquals(LONGITUDE, located.getLongitude(), 0);
+        Offer relocated = ofy().load().entity(upcoming).now();
+        assertEquals(LATITUDE, relocated.getLocation().getLatitude(), 0);
+        assertEquals(GeoHash.cells(LATITUDE, LONGITUDE), relocated.getGeoCells());
+        // Past offers keep the location they were offered at.
+        assertEquals(0, ofy().load().entity(past).now().getLocation().getLatitude(), 0);
+    }
+
+    @Test
+    public void testLocateSkipsChangedAddress() throws Exception {
+        String previousAddress = provider.getAddress();
+        provider.updateWithProviderForm(providerForm("2 MG Road"));
+        ofy().save().entity(provider).now();
+
+        ProviderLocator.locate(Key.create(provider), previousAddress);
+        ofy().clear();
+
+        Provider notLocated = ofy().load().entity(provider).now();
+        assertTrue(notLocated.isLocationPending());
+        assertEquals(0, notLocated.getLatitude(), 0);
+    }
+
+    @Test
+    public void testLocateUnknownAddress() throws Exception {
+        provider.updateWithProviderForm(providerForm("Nowhere"));
+        ofy().save().entity(provider).now();
+
+        ProviderLocator.locate(Key.create(provider), provider.getAddress());
+        ofy().clear();
+
+        Provider notFound = ofy().load().entity(provider).now();
+        assertFalse(notFound.isLocationPending());
+        assertEquals(0, notFound.getLatitude(), 0);
+    }
+
+    @Test(expected = IOException.class)
+    public void testLocateFailure() throws Exception {
+        geocoder.setFailing(true);
+        ProviderLocator.locate(Key.create(provider), provider.getAddress());
+    }
+
+    private Offer newOffer(long id, Date offerDate) {
+        return new Offer(id, USER_ID, new OfferForm("Thali", "South indian thali", offerDate,
+                10, Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey()), provider);
+    }
+
+    private static ProviderForm providerForm(String streetAddress1) {
+        return new ProviderForm("Amma's Kitchen", null, "amma@example.com", streetAddress1, null,
+                "Bangalore", "KA", "560001", "India", "9999999999", null, false);
+    }
+}
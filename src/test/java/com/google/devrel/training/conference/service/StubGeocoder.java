@@ -0,0 +1,54 @@
+package com.google.devrel.training.conference.service;
+
+import com.google.appengine.api.datastore.GeoPt;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Geocoder for tests, which knows a fixed set of addresses.
+ */
+public class StubGeocoder implements Geocoder {
+
+    private final Map<String, GeoPt> locations = new HashMap<>();
+
+    private final List<String> requests = new ArrayList<>();
+
+    private boolean failing;
+
+    /**
+     * Adds an address this geocoder knows.
+     *
+     * @return this for method chaining.
+     */
+    public StubGeocoder add(String address, float latitude, float longitude) {
+        locations.put(address, new GeoPt(latitude, longitude));
+        return this;
+    }
+
+    /**
+     * Makes every request fail, as if the geocoder was unreachable.
+     */
+    public void setFailing(boolean failing) {
+        this.failing = failing;
+    }
+
+    /**
+     * Returns the addresses geocoded so far.
+     */
+    public List<String> getRequests() {
+        return requests;
+    }
+
+    @Override
+    public GeoPt geocode(String address) throws IOException {
+        requests.add(address);
+        if (failing) {
+            throw new IOException("Geocoder unavailable");
+        }
+        return locations.get(address);
+    }
+}
@@ -0,0 +1,121 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.Work;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Tests for TransactionRunner.
+ */
+public class TransactionRunnerTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy());
+
+    private Key<Profile> profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        profileKey = Key.create(Profile.class, "hot-user");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testRetriesConflicts() throws Exception {
+        TransactionRunner runner = new TransactionRunner("testRetries", 5, 1, 2);
+        long conflicts = Metrics.get("tx.testRetries.conflict");
+        ConflictingWork work = new ConflictingWork(2);
+        assertEquals("saved", runner.run(work, profileKey));
+        assertEquals(3, work.attempts);
+        assertEquals(conflicts + 2, Metrics.get("tx.testRetries.conflict"));
+        assertEquals(1, Metrics.get("tx.testRetries.commit"));
+        assertEquals(3, Metrics.get("tx.testRetries.attempt"));
+        assertNotNull(ofy().load().key(profileKey).now());
+        List<Map.Entry<String, Long>> hot = TransactionRunner.getHotEntityGroups(1);
+        assertEquals("Profile(\"hot-user\")", hot.get(0).getKey());
+    }
+
+    @Test
+    public void testGivesUpAfterBudget() throws Exception {
+        TransactionRunner runner = new TransactionRunner("testGivesUp", 3, 1, 2);
+        ConflictingWork work = new ConflictingWork(3);
+        try {
+            runner.run(work, profileKey);
+            fail();
+        } catch (ConcurrentModificationException e) {
+            assertEquals(3, work.attempts);
+        }
+        assertEquals(1, Metrics.get("tx.testGivesUp.failure"));
+        assertEquals(0, Metrics.get("tx.testGivesUp.commit"));
+        assertNull(ofy().load().key(profileKey).now());
+    }
+
+    @Test
+    public void testJoinsEnclosingTransaction() throws Exception {
+        final TransactionRunner runner = new TransactionRunner("testJoins");
+        ofy().transact(new Work<String>() {
+            @Override
+            public String run() {
+                return runner.run(new ConflictingWork(0), profileKey);
+            }
+        });
+        assertEquals(0, Metrics.get("tx.testJoins.attempt"));
+        assertNotNull(ofy().load().key(profileKey).now());
+    }
+
+    @Test
+    public void testBackoff() throws Exception {
+        TransactionRunner runner = new TransactionRunner("testBackoff", 10, 10, 100);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(runner.backoffMillis(1) < 10);
+            assertTrue(runner.backoffMillis(3) < 40);
+            assertTrue(runner.backoffMillis(10) < 100);
+        }
+    }
+
+    /**
+     * Saves a Profile, after conflicting a number of times.
+     */
+    private class ConflictingWork implements Work<String> {
+
+        private final int conflicts;
+
+        private int attempts;
+
+        private ConflictingWork(int conflicts) {
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        public String run() {
+            attempts++;
+            ofy().save().entity(new Profile(profileKey.getName(), "Hot User",
+                    "hot@example.com", TeeShirtSize.NOT_SPECIFIED)).now();
+            if (attempts <= conflicts) {
+                throw new ConcurrentModificationException("too much contention");
+            }
+            return "saved";
+        }
+    }
+}
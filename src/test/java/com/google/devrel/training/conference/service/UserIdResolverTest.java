@@ -0,0 +1,90 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.AppEngineUser;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for UserIdResolver.
+ */
+public class UserIdResolverTest {
+
+    private static final String EMAIL = "android@example.com";
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+                    new LocalMemcacheServiceTestConfig());
+
+    /**
+     * The User as sent by Android clients, without userId.
+     */
+    private final User androidUser = new User(EMAIL, "gmail.com");
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        UserIdResolver.clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        UserIdResolver.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testUserWithUserId() throws Exception {
+        long misses = Metrics.get(UserIdResolver.MISS);
+        assertEquals("987654321",
+                UserIdResolver.resolve(new User("other@example.com", "gmail.com", "987654321")));
+        assertEquals(misses, Metrics.get(UserIdResolver.MISS));
+    }
+
+    @Test
+    public void testLocalCache() throws Exception {
+        long misses = Metrics.get(UserIdResolver.MISS);
+        long localHits = Metrics.get(UserIdResolver.LOCAL_HIT);
+        // The datastore fills in the userId when storing the AppEngineUser.
+        String userId = UserIdResolver.resolve(androidUser);
+        assertNotNull(userId);
+        assertEquals(userId, UserIdResolver.resolve(androidUser));
+        assertEquals(userId, UserIdResolver.resolve(androidUser));
+        assertEquals(misses + 1, Metrics.get(UserIdResolver.MISS));
+        assertEquals(localHits + 2, Metrics.get(UserIdResolver.LOCAL_HIT));
+    }
+
+    @Test
+    public void testMemcache() throws Exception {
+        String userId = UserIdResolver.resolve(androidUser);
+        // Another instance, with an empty local cache.
+        UserIdResolver.clear();
+        ofy().delete().key(new AppEngineUser(androidUser).getKey()).now();
+        long hits = Metrics.get(UserIdResolver.MEMCACHE_HIT);
+        assertEquals(userId, UserIdResolver.resolve(androidUser));
+        assertEquals(hits + 1, Metrics.get(UserIdResolver.MEMCACHE_HIT));
+    }
+
+    @Test
+    public void testStoredAppEngineUser() throws Exception {
+        String userId = UserIdResolver.resolve(androidUser);
+        UserIdResolver.clear();
+        MemcacheServiceFactory.getMemcacheService().clearAll();
+        long hits = Metrics.get(UserIdResolver.DATASTORE_HIT);
+        long misses = Metrics.get(UserIdResolver.MISS);
+        // Read back without storing the AppEngineUser again.
+        assertEquals(userId, UserIdResolver.resolve(androidUser));
+        assertEquals(hits + 1, Metrics.get(UserIdResolver.DATASTORE_HIT));
+        assertEquals(misses, Metrics.get(UserIdResolver.MISS));
+    }
+}
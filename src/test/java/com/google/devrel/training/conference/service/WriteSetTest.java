@@ -0,0 +1,76 @@
+package com.google.devrel.training.conference.service;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.devrel.training.conference.domain.Profile;
+import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests for WriteSet.
+ */
+public class WriteSetTest {
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+    private Key<Profile> profileKey;
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        profileKey = Key.create(Profile.class, "123456789");
+        ofy().save().entity(new Profile("123456789", "Display Name",
+                "example@gmail.com", TeeShirtSize.M)).now();
+        ofy().clear();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testSkipsUnchangedEntities() throws Exception {
+        long skipped = Metrics.get(WriteSet.SKIPPED);
+        WriteSet writes = new WriteSet();
+        Profile profile = writes.load(profileKey);
+        assertEquals(0, writes.save(profile));
+        // The same values do not count as a change.
+        profile.update("Display Name", TeeShirtSize.M);
+        assertEquals(0, writes.save(profile));
+        assertEquals(skipped + 2, Metrics.get(WriteSet.SKIPPED));
+    }
+
+    @Test
+    public void testSavesChangedEntities() throws Exception {
+        WriteSet writes = new WriteSet();
+        Profile profile = writes.load(profileKey);
+        profile.update("New Name", null);
+        assertEquals(1, writes.save(profile));
+        // Saved entities are snapshotted again.
+        assertEquals(0, writes.save(profile));
+        ofy().clear();
+        assertEquals("New Name", ofy().load().key(profileKey).now().getDisplayName());
+    }
+
+    @Test
+    public void testSavesUntrackedEntities() throws Exception {
+        WriteSet writes = new WriteSet();
+        assertNull(writes.load(Key.create(Profile.class, "987654321")));
+        Profile loaded = writes.load(profileKey);
+        Profile created = new Profile("987654321", "Other", "other@gmail.com",
+                TeeShirtSize.NOT_SPECIFIED);
+        assertEquals(1, writes.save(loaded, created));
+        ofy().clear();
+        assertNotNull(ofy().load().key(Key.create(Profile.class, "987654321")).now());
+    }
+}
@@ -3,18 +3,23 @@ package com.google.devrel.training.conference.spi;
 import static com.google.devrel.training.conference.service.OfyService.ofy;
 import static org.junit.Assert.*;
 
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.CollectionResponse;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableList;
 import com.google.devrel.training.conference.domain.Conference;
+import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ConferenceQueryForm;
+import com.google.devrel.training.conference.service.EntityCache;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 
@@ -111,15 +116,48 @@ public class ConferenceApiGlobalQueryTest {
 
     @After
     public void tearDown() throws Exception {
+        EntityCache.clear();
         ofy().clear();
         helper.tearDown();
     }
 
+    @Test
+    public void testQueryReadsOrganizersInOneBatch() throws Exception {
+        ofy().save().entities(
+                new Profile(USER_ID, "Organizer", "organizer@example.com", null),
+                new Profile("987654321", "Other Organizer", "other@example.com", null),
+                new Conference(1004L, "987654321", new ConferenceForm(
+                        NAME1, DESCRIPTION1, TOPICS1, CITY1, startDate1, endDate1, CAP1)),
+                new Conference(1005L, "555555555", new ConferenceForm(
+                        NAME2, DESCRIPTION2, TOPICS2, CITY2, startDate2, endDate2, CAP2)))
+                .now();
+        ofy().clear();
+        DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+        List<String> displayNames = new ArrayList<>();
+        try {
+            // The getters are called by the serialization of the response.
+            for (Conference conference : conferenceApi.queryConferences(
+                    new ConferenceQueryForm()).getItems()) {
+                displayNames.add(conference.getOrganizerDisplayName());
+            }
+        } finally {
+            counter.uninstall();
+        }
+        // One query, and one batch get of the Profiles.
+        assertEquals(2, counter.getCount());
+        assertEquals(5, displayNames.size());
+        assertTrue(displayNames.contains("Organizer"));
+        assertTrue(displayNames.contains("Other Organizer"));
+        // An organizer without a Profile is shown with the user id.
+        assertTrue(displayNames.contains("555555555"));
+    }
+
     @Test
     public void testEmptyQuery() throws Exception {
         // Empty query.
         ConferenceQueryForm conferenceQueryForm = new ConferenceQueryForm();
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(3, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -138,7 +176,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Tokyo"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -152,7 +191,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "Japan"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
     }
@@ -176,7 +216,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.EQ,
                         "6"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(1, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
     }
@@ -190,7 +231,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GT,
                         "999"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -207,7 +249,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LT,
                         "1001"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -224,7 +267,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.GTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -241,7 +285,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.LTEQ,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference2.", conferences.contains(conference2));
@@ -258,7 +303,8 @@ public class ConferenceApiGlobalQueryTest {
                         ConferenceQueryForm.Operator.NE,
                         "1000"
                 ));
-        List<Conference> conferences = conferenceApi.queryConferences(conferenceQueryForm);
+        List<Conference> conferences = new ArrayList<>(
+                conferenceApi.queryConferences(conferenceQueryForm).getItems());
         assertEquals(2, conferences.size());
         assertTrue("The result should contain conference1.", conferences.contains(conference1));
         assertTrue("The result should contain conference3.", conferences.contains(conference3));
@@ -266,6 +312,30 @@ public class ConferenceApiGlobalQueryTest {
         assertEquals(conference3, conferences.get(1));
     }
 
+    @Test
+    public void testPagination() throws Exception {
+        // Pages of 2 conferences, ordered by name.
+        CollectionResponse<Conference> firstPage = conferenceApi.queryConferences(
+                new ConferenceQueryForm().limit(2));
+        List<Conference> conferences = new ArrayList<>(firstPage.getItems());
+        assertEquals(2, conferences.size());
+        assertEquals(conference1, conferences.get(0));
+        assertEquals(conference3, conferences.get(1));
+        assertNotNull(firstPage.getNextPageToken());
+
+        CollectionResponse<Conference> secondPage = conferenceApi.queryConferences(
+                new ConferenceQueryForm().limit(2).cursor(firstPage.getNextPageToken()));
+        conferences = new ArrayList<>(secondPage.getItems());
+        assertEquals(1, conferences.size());
+        assertEquals(conference2, conferences.get(0));
+        assertNull(secondPage.getNextPageToken());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testInvalidCursor() throws Exception {
+        conferenceApi.queryConferences(new ConferenceQueryForm().limit(2).cursor("not-a-cursor"));
+    }
+
     @Test(expected = IllegalArgumentException.class)
     public void testMultipleInequalityFilter() throws Exception {
         // A query specifies the maxAttendees <= 1000 and month != 6.
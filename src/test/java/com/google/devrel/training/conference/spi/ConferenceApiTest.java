@@ -14,6 +14,7 @@ import com.google.devrel.training.conference.domain.Profile;
 import com.google.devrel.training.conference.form.ConferenceForm;
 import com.google.devrel.training.conference.form.ProfileForm;
 import com.google.devrel.training.conference.form.ProfileForm.TeeShirtSize;
+import com.google.devrel.training.conference.service.EntityCache;
 import com.googlecode.objectify.Key;
 
 import org.junit.After;
@@ -67,6 +68,7 @@ public class ConferenceApiTest {
 
     @After
     public void tearDown() throws Exception {
+        EntityCache.clear();
         ofy().clear();
         helper.tearDown();
     }
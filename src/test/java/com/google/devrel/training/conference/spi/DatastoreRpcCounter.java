@@ -0,0 +1,79 @@
+package com.google.devrel.training.conference.spi;
+
+import com.google.apphosting.api.ApiProxy;
+
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Counts the datastore RPCs made while it is installed as the ApiProxy delegate.
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+class DatastoreRpcCounter implements ApiProxy.Delegate {
+
+    private static final String DATASTORE_PACKAGE = "datastore_v3";
+
+    private final ApiProxy.Delegate delegate;
+
+    private final AtomicInteger count = new AtomicInteger();
+
+    private DatastoreRpcCounter(ApiProxy.Delegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * Installs a counter in front of the current delegate.
+     */
+    static DatastoreRpcCounter install() {
+        DatastoreRpcCounter counter = new DatastoreRpcCounter(ApiProxy.getDelegate());
+        ApiProxy.setDelegate(counter);
+        return counter;
+    }
+
+    /**
+     * Puts the original delegate back.
+     */
+    void uninstall() {
+        ApiProxy.setDelegate(delegate);
+    }
+
+    int getCount() {
+        return count.get();
+    }
+
+    @Override
+    public byte[] makeSyncCall(ApiProxy.Environment environment, String packageName,
+            String methodName, byte[] request) throws ApiProxy.ApiProxyException {
+        count(packageName);
+        return delegate.makeSyncCall(environment, packageName, methodName, request);
+    }
+
+    @Override
+    public Future<byte[]> makeAsyncCall(ApiProxy.Environment environment, String packageName,
+            String methodName, byte[] request, ApiProxy.ApiConfig apiConfig) {
+        count(packageName);
+        return delegate.makeAsyncCall(environment, packageName, methodName, request, apiConfig);
+    }
+
+    @Override
+    public void log(ApiProxy.Environment environment, ApiProxy.LogRecord record) {
+        delegate.log(environment, record);
+    }
+
+    @Override
+    public void flushLogs(ApiProxy.Environment environment) {
+        delegate.flushLogs(environment);
+    }
+
+    @Override
+    public List<Thread> getRequestThreads(ApiProxy.Environment environment) {
+        return delegate.getRequestThreads(environment);
+    }
+
+    private void count(String packageName) {
+        if (DATASTORE_PACKAGE.equals(packageName)) {
+            count.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,593 @@
+package com.google.devrel.training.conference.spi;
+
+import static com.google.devrel.training.conference.service.OfyService.ofy;
+import static org.junit.Assert.*;
+
+import com.google.api.server.spi.response.BadRequestException;
+import com.google.api.server.spi.response.ConflictException;
+import com.google.api.server.spi.response.ForbiddenException;
+import com.google.api.server.spi.response.NotFoundException;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.GeoPt;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.users.User;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.devrel.training.conference.domain.CheckoutResult;
+import com.google.devrel.training.conference.domain.Offer;
+import com.google.devrel.training.conference.domain.OfferBatchResult;
+import com.google.devrel.training.conference.domain.OfferSummary;
+import com.google.devrel.training.conference.domain.OfferTemplate;
+import com.google.devrel.training.conference.domain.Provider;
+import com.google.devrel.training.conference.form.CheckoutForm;
+import com.google.devrel.training.conference.form.OfferBatchForm;
+import com.google.devrel.training.conference.form.OfferForm;
+import com.google.devrel.training.conference.form.OfferForm.Cuisine;
+import com.google.devrel.training.conference.form.OfferQueryForm;
+import com.google.devrel.training.conference.form.OfferTemplateForm;
+import com.google.devrel.training.conference.form.ProfileForm;
+import com.google.devrel.training.conference.form.ProviderForm;
+import com.google.devrel.training.conference.form.ProviderQueryForm;
+import com.google.devrel.training.conference.form.SortField;
+import com.google.devrel.training.conference.service.EntityCache;
+import com.google.devrel.training.conference.service.GeoHash;
+import com.google.devrel.training.conference.service.InventoryCounter;
+import com.google.devrel.training.conference.service.Metrics;
+import com.google.devrel.training.conference.service.OfferIndex;
+import com.google.devrel.training.conference.service.OfferMaterializer;
+import com.google.devrel.training.conference.service.OfferQueryCache;
+import com.google.devrel.training.conference.service.ProviderLocator;
+import com.google.devrel.training.conference.service.WriteSet;
+import com.googlecode.objectify.Key;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for HomeFoodApi API methods.
+ */
+public class HomeFoodApiTest {
+
+    private static final long DAY = 20150301L;
+
+    private static final float LATITUDE = 12.9716f;
+
+    private static final float LONGITUDE = 77.5946f;
+
+    private Date offerDate;
+
+    private HomeFoodApi homeFoodApi;
+
+    private final LocalServiceTestHelper helper =
+            new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig()
+                    .setApplyAllHighRepJobPolicy(),
+                    new LocalMemcacheServiceTestConfig(),
+                    new LocalTaskQueueTestConfig().setDisableAutoTaskExecution(true));
+
+    @Before
+    public void setUp() throws Exception {
+        helper.setUp();
+        OfferIndex.clear();
+        homeFoodApi = new HomeFoodApi();
+        offerDate = new SimpleDateFormat("yyyyMMdd").parse(String.valueOf(DAY));
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(1, LATITUDE, LONGITUDE, Cuisine.SOUTH_INDIAN));
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(2, LATITUDE + 0.01, LONGITUDE, Cuisine.PUNJABI));
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(3, LATITUDE + 0.02, LONGITUDE, Cuisine.BENGALI));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        OfferIndex.clear();
+        System.clearProperty(OfferIndex.MAX_STALENESS_PROPERTY);
+        OfferQueryCache.clear();
+        EntityCache.clear();
+        ofy().clear();
+        helper.tearDown();
+    }
+
+    @Test
+    public void testQueryOffersByCuisine() throws Exception {
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE);
+        assertEquals(ids(2), idsOf(homeFoodApi.queryOffers(offerQueryForm).getItems()));
+    }
+
+    @Test
+    public void testQueryOffersByCuisinesFromDatastore() throws Exception {
+        // Disables the index, so the sub-queries run against the datastore.
+        System.setProperty(OfferIndex.MAX_STALENESS_PROPERTY, "0");
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.SOUTH_INDIAN, SortField.DISTANCE).cuisines(Cuisine.BENGALI);
+        assertEquals(ids(1, 3), idsOf(homeFoodApi.queryOffers(offerQueryForm).getItems()));
+        offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                null, SortField.DISTANCE);
+        assertEquals(ids(1, 2, 3), idsOf(homeFoodApi.queryOffers(offerQueryForm).getItems()));
+    }
+
+    @Test
+    public void testQueryOffersRejectsCursorOfAnotherQuery() throws Exception {
+        String cursor = homeFoodApi.queryOffers(new OfferQueryForm(LATITUDE, LONGITUDE, 10,
+                offerDate, null, SortField.DISTANCE, 1)).getNextPageToken();
+        assertNotNull(cursor);
+        assertEquals(1, homeFoodApi.queryOffers(new OfferQueryForm(LATITUDE, LONGITUDE, 10,
+                offerDate, null, SortField.DISTANCE, 1, cursor)).getItems().size());
+        try {
+            homeFoodApi.queryOffers(new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                    Cuisine.PUNJABI, SortField.DISTANCE, 1, cursor));
+            fail();
+        } catch (BadRequestException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOffersWithoutCuisineMatchEveryCuisine() throws Exception {
+        DatastoreServiceFactory.getDatastoreService().put(
+                offerEntity(4, LATITUDE + 0.03, LONGITUDE, null));
+        assertOffersWithoutCuisineMatch();
+        // Disables the index, so the offers come from the datastore.
+        System.setProperty(OfferIndex.MAX_STALENESS_PROPERTY, "0");
+        OfferQueryCache.clear();
+        assertOffersWithoutCuisineMatch();
+    }
+
+    @Test
+    public void testQueryOffersFromCache() throws Exception {
+        float nearbyLatitude = LATITUDE + 0.001f;
+        assertEquals(GeoHash.encode(LATITUDE, LONGITUDE, OfferQueryCache.CELL_PRECISION),
+                GeoHash.encode(nearbyLatitude, LONGITUDE, OfferQueryCache.CELL_PRECISION));
+        long hits = Metrics.get(OfferQueryCache.HIT);
+        long misses = Metrics.get(OfferQueryCache.MISS);
+        List<Offer> offers = new ArrayList<>(homeFoodApi.queryOffers(new OfferQueryForm(
+                LATITUDE, LONGITUDE, 10, offerDate, Cuisine.PUNJABI, SortField.DISTANCE))
+                .getItems());
+        assertEquals(1.11, offers.get(0).getDistance(), 0.01);
+
+        // A search from the same cell is ranked from its own location.
+        offers = new ArrayList<>(homeFoodApi.queryOffers(new OfferQueryForm(
+                nearbyLatitude, LONGITUDE, 10, offerDate, Cuisine.PUNJABI, SortField.DISTANCE))
+                .getItems());
+        assertEquals(ids(2), idsOf(offers));
+        assertEquals(1.0, offers.get(0).getDistance(), 0.01);
+        assertEquals(misses + 1, Metrics.get(OfferQueryCache.MISS));
+        assertEquals(hits + 1, Metrics.get(OfferQueryCache.HIT));
+
+        // A purchase drops the searches containing the offer.
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        homeFoodApi.purchaseOffer(user, offers.get(0).getWebsafeKey(), 1);
+        homeFoodApi.queryOffers(new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE));
+        assertEquals(misses + 2, Metrics.get(OfferQueryCache.MISS));
+    }
+
+    @Test
+    public void testQueryOfferSummariesFromDatastore() throws Exception {
+        // Disables the index, so the summaries come from projection queries.
+        System.setProperty(OfferIndex.MAX_STALENESS_PROPERTY, "0");
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE).cuisines(Cuisine.BENGALI);
+        long misses = Metrics.get(InventoryCounter.CACHE_MISS);
+        List<OfferSummary> summaries = new ArrayList<>(
+                homeFoodApi.queryOfferSummaries(offerQueryForm).getItems());
+        // The quantities of the offers which are not sharded are projected.
+        assertEquals(misses, Metrics.get(InventoryCounter.CACHE_MISS));
+        assertEquals(2, summaries.size());
+        OfferSummary summary = summaries.get(0);
+        assertEquals("Offer 2", summary.getTitle());
+        assertEquals(Cuisine.PUNJABI, summary.getCuisine());
+        assertEquals(200, summary.getPriceInUnit());
+        assertEquals(Integer.valueOf(5), summary.getAvailableQuantity());
+        assertEquals("Provider", summary.getProviderName());
+        assertEquals(LATITUDE + 0.01, summary.getLatitude(), 0.0001);
+        assertEquals(1.11, summary.getDistance(), 0.01);
+        assertEquals(KeyFactory.keyToString(offerEntity(2, LATITUDE + 0.01, LONGITUDE,
+                Cuisine.PUNJABI).getKey()), summary.getWebsafeKey());
+        assertEquals(Cuisine.BENGALI, summaries.get(1).getCuisine());
+    }
+
+    @Test
+    public void testQueryOfferSummariesMatchQueryOffers() throws Exception {
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                null, SortField.DISTANCE);
+        List<Offer> offers = new ArrayList<>(
+                homeFoodApi.queryOffers(offerQueryForm).getItems());
+        List<OfferSummary> summaries = new ArrayList<>(
+                homeFoodApi.queryOfferSummaries(offerQueryForm).getItems());
+        assertEquals(offers.size(), summaries.size());
+        for (int i = 0; i < offers.size(); i++) {
+            assertEquals(offers.get(i).getWebsafeKey(), summaries.get(i).getWebsafeKey());
+        }
+    }
+
+    @Test
+    public void testCreateProviderGeocodesInTask() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        assertTrue(provider.isLocationPending());
+        QueueStateInfo queue = LocalTaskQueueTestConfig.getLocalTaskQueue()
+                .getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName());
+        assertEquals(1, queue.getTaskInfo().size());
+        assertEquals(ProviderLocator.TASK_URL, queue.getTaskInfo().get(0).getUrl());
+    }
+
+    @Test
+    public void testQueryProvidersReadsCreatorsInOneBatch() throws Exception {
+        for (String userId : new String[] {"111111111", "222222222", "333333333"}) {
+            User user = new User(userId + "@example.com", "gmail.com", userId);
+            homeFoodApi.saveProfile(user, new ProfileForm("Cook " + userId, null));
+            homeFoodApi.createProvider(user, new ProviderForm("Kitchen " + userId, null,
+                    userId + "@example.com", "1 MG Road", null, "Bangalore", "KA", "560001",
+                    "India", "9999999999", null, false));
+        }
+        EntityCache.clear();
+        ofy().clear();
+        DatastoreRpcCounter counter = DatastoreRpcCounter.install();
+        List<Provider> providers;
+        try {
+            providers = new ArrayList<>(
+                    homeFoodApi.queryProviders(new ProviderQueryForm()).getItems());
+        } finally {
+            counter.uninstall();
+        }
+        // Providers are cached, so Objectify queries their keys and gets them in one
+        // batch. Then one batch get of the Profiles.
+        assertEquals(3, counter.getCount());
+        assertEquals(3, providers.size());
+        for (Provider provider : providers) {
+            assertEquals("Cook " + provider.getCreatorId(), provider.getCreatorDisplayName());
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testQueryProvidersWithInvalidCursor() throws Exception {
+        homeFoodApi.queryProviders(new ProviderQueryForm().cursor("not-a-cursor"));
+    }
+
+    @Test
+    public void testCreateAndUpdateOffer() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        Offer offer = homeFoodApi.createOffer(user, new OfferForm("Thali", "South indian thali",
+                offerDate, 10, Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey()));
+        assertEquals("Amma's Kitchen", offer.getProviderName());
+
+        Offer updated = homeFoodApi.updateOffer(user, new OfferForm("Mini thali",
+                "South indian thali", offerDate, 20, Cuisine.SOUTH_INDIAN, 80, "Rs",
+                provider.getWebsafeKey()), offer.getWebsafeKey());
+        assertEquals("Mini thali", updated.getTitle());
+        assertEquals(Integer.valueOf(20), updated.getAvailableQuantity());
+        assertEquals("Amma's Kitchen", updated.getProviderName());
+    }
+
+    @Test
+    public void testGetOffer() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Offer created = createOffer(user, 10);
+        Offer offer = homeFoodApi.getOffer(created.getWebsafeKey());
+        assertEquals("Thali", offer.getTitle());
+        assertEquals(created.getProviderKey(), Key.create(offer.getProvider()));
+        // Read again from the entity cache.
+        offer = homeFoodApi.getOffer(created.getWebsafeKey());
+        assertEquals("Amma's Kitchen", offer.getProvider().getName());
+    }
+
+    @Test(expected = NotFoundException.class)
+    public void testGetMissingOffer() throws Exception {
+        homeFoodApi.getOffer(KeyFactory.keyToString(KeyFactory.createKey(
+                KeyFactory.createKey(KeyFactory.createKey("Profile", "123456789"),
+                        "Provider", 1L), "Offer", 99L)));
+    }
+
+    @Test
+    public void testCreateOfferSkipsUnchangedWrites() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        long written = Metrics.get(WriteSet.WRITTEN);
+        long skipped = Metrics.get(WriteSet.SKIPPED);
+        homeFoodApi.createOffer(user, new OfferForm("Thali", "South indian thali",
+                offerDate, 10, Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey()));
+        // Only the Offer is written, the Provider and the Profile were only read.
+        assertEquals(written + 1, Metrics.get(WriteSet.WRITTEN));
+        assertEquals(skipped + 2, Metrics.get(WriteSet.SKIPPED));
+    }
+
+    @Test
+    public void testCreateOffers() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        String providerKey = provider.getWebsafeKey();
+        OfferBatchResult result = homeFoodApi.createOffers(user, new OfferBatchForm(
+                new OfferForm("Thali", "South indian thali", offerDate, 10,
+                        Cuisine.SOUTH_INDIAN, 100, "Rs", providerKey),
+                new OfferForm("Dosa", "Masala dosa", offerDate, 0,
+                        Cuisine.SOUTH_INDIAN, 50, "Rs", providerKey),
+                new OfferForm("Idli", "Idli sambar", offerDate, 5,
+                        Cuisine.SOUTH_INDIAN, 40, "Rs", providerKey)));
+        assertEquals(2, result.getCreatedCount());
+        List<OfferBatchResult.Item> items = result.getItems();
+        assertEquals(OfferBatchResult.Status.INVALID, items.get(1).getStatus());
+        assertEquals("The maximum quantity must be greater than zero",
+                items.get(1).getMessage());
+        ofy().clear();
+        for (int i : new int[] {0, 2}) {
+            assertEquals(OfferBatchResult.Status.CREATED, items.get(i).getStatus());
+            Offer offer = homeFoodApi.getOffer(items.get(i).getOffer().getWebsafeKey());
+            assertEquals("Amma's Kitchen", offer.getProviderName());
+        }
+        assertEquals("Idli", items.get(2).getOffer().getTitle());
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testCreateOffersOfAnotherUser() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        homeFoodApi.createOffers(new User("other@example.com", "gmail.com", "987654321"),
+                new OfferBatchForm(new OfferForm("Thali", "South indian thali", offerDate, 10,
+                        Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey())));
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCreateOffersOfSeveralProviders() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        String providerKey = createOffer(user, 10).getProviderKey().getString();
+        String otherProviderKey = createOffer(user, 10).getProviderKey().getString();
+        homeFoodApi.createOffers(user, new OfferBatchForm(
+                new OfferForm("Thali", "South indian thali", offerDate, 10,
+                        Cuisine.SOUTH_INDIAN, 100, "Rs", providerKey),
+                new OfferForm("Dosa", "Masala dosa", offerDate, 10,
+                        Cuisine.SOUTH_INDIAN, 50, "Rs", otherProviderKey)));
+    }
+
+    @Test
+    public void testCreateOfferTemplate() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        Date today = OfferTemplate.startOfDay(new Date());
+        OfferTemplate template = homeFoodApi.createOfferTemplate(user, new OfferTemplateForm(
+                new OfferForm("Thali", "South indian thali", today, 10, Cuisine.SOUTH_INDIAN,
+                        100, "Rs", provider.getWebsafeKey()), null,
+                Calendar.MONDAY, Calendar.WEDNESDAY, Calendar.FRIDAY));
+        // The offers of the upcoming days are created right away.
+        assertTrue(template.getNextOfferDate().after(OfferMaterializer.horizon()));
+        assertEquals(1, homeFoodApi.getOfferTemplates(provider.getWebsafeKey()).size());
+        ofy().clear();
+        // The fixture offers of setUp may share the provider key.
+        List<Offer> offers = ofy().load().type(Offer.class)
+                .ancestor(Key.create(provider.getWebsafeKey()))
+                .filter("offerDate >=", today).list();
+        assertTrue(offers.size() >= 3);
+        Calendar calendar = new GregorianCalendar();
+        for (Offer offer : offers) {
+            calendar.setTime(offer.getOfferDate());
+            assertTrue(template.getDaysOfWeek().contains(calendar.get(Calendar.DAY_OF_WEEK)));
+        }
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCreateOfferTemplateWithInvalidDay() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        homeFoodApi.createOfferTemplate(user, new OfferTemplateForm(
+                new OfferForm("Thali", "South indian thali", offerDate, 10, Cuisine.SOUTH_INDIAN,
+                        100, "Rs", provider.getWebsafeKey()), null, 8));
+    }
+
+    @Test(expected = ForbiddenException.class)
+    public void testUpdateOfferOfAnotherUser() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        OfferForm offerForm = new OfferForm("Thali", "South indian thali", offerDate, 10,
+                Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey());
+        Offer offer = homeFoodApi.createOffer(user, offerForm);
+        homeFoodApi.updateOffer(new User("other@example.com", "gmail.com", "987654321"),
+                offerForm, offer.getWebsafeKey());
+    }
+
+    @Test
+    public void testPurchaseAndReturnOffer() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        String websafeOfferKey = createOffer(user, 10).getWebsafeKey();
+        assertTrue(homeFoodApi.purchaseOffer(user, websafeOfferKey, 4).getResult());
+        assertEquals(6, homeFoodApi.getOfferAvailability(websafeOfferKey).getResult().intValue());
+        try {
+            homeFoodApi.purchaseOffer(user, websafeOfferKey, 7);
+            fail();
+        } catch (ConflictException e) {
+            assertEquals("There are not enough quantity available.", e.getMessage());
+        }
+        assertTrue(homeFoodApi.returnOffer(user, websafeOfferKey, 4).getResult());
+        assertEquals(10, homeFoodApi.getOfferAvailability(websafeOfferKey).getResult().intValue());
+    }
+
+    @Test
+    public void testUpdateShardedOffer() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Offer offer = createOffer(user, 10);
+        InventoryCounter.shardInventory(Key.<Offer> create(offer.getWebsafeKey()));
+        homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 4);
+        homeFoodApi.getOfferAvailability(offer.getWebsafeKey());
+        homeFoodApi.updateOffer(user, new OfferForm("Thali", "South indian thali", offerDate,
+                15, Cuisine.SOUTH_INDIAN, 100, "Rs", offer.getProviderKey().getString()),
+                offer.getWebsafeKey());
+        assertEquals(11,
+                homeFoodApi.getOfferAvailability(offer.getWebsafeKey()).getResult().intValue());
+        assertTrue(homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 11).getResult());
+    }
+
+    @Test
+    public void testLowerMaximumOfShardedOffer() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        Offer offer = createOffer(user, 10);
+        InventoryCounter.shardInventory(Key.<Offer> create(offer.getWebsafeKey()));
+        homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 4);
+        Offer updated = homeFoodApi.updateOffer(user, new OfferForm("Thali",
+                "South indian thali", offerDate, 5, Cuisine.SOUTH_INDIAN, 100, "Rs",
+                offer.getProviderKey().getString()), offer.getWebsafeKey());
+        assertEquals(Integer.valueOf(1), updated.getAvailableQuantity());
+        assertEquals(1,
+                homeFoodApi.getOfferAvailability(offer.getWebsafeKey()).getResult().intValue());
+        assertEquals(Integer.valueOf(1),
+                homeFoodApi.getOffer(offer.getWebsafeKey()).getAvailableQuantity());
+        try {
+            homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 2);
+            fail();
+        } catch (ConflictException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testShardedOfferQuantities() throws Exception {
+        // Disables the index, so the summaries come from projection queries.
+        System.setProperty(OfferIndex.MAX_STALENESS_PROPERTY, "0");
+        Key<Offer> offerKey = Key.create(KeyFactory.keyToString(offerEntity(2,
+                LATITUDE + 0.01, LONGITUDE, Cuisine.PUNJABI).getKey()));
+        InventoryCounter.shardInventory(offerKey);
+        assertTrue(InventoryCounter.purchase(offerKey, 1));
+        assertEquals(Integer.valueOf(4),
+                homeFoodApi.getOffer(offerKey.getString()).getAvailableQuantity());
+
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE);
+        Offer offer = homeFoodApi.queryOffers(offerQueryForm).getItems().iterator().next();
+        assertEquals(Integer.valueOf(4), offer.getAvailableQuantity());
+        OfferSummary summary = homeFoodApi.queryOfferSummaries(offerQueryForm).getItems()
+                .iterator().next();
+        assertEquals(Integer.valueOf(4), summary.getAvailableQuantity());
+    }
+
+    @Test
+    public void testQueryOffersAfterPurchase() throws Exception {
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE);
+        Offer offer = homeFoodApi.queryOffers(offerQueryForm).getItems().iterator().next();
+        assertEquals(Integer.valueOf(5), offer.getAvailableQuantity());
+
+        // The index holds the quantity of the offer until it is sharded.
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 1);
+        offer = homeFoodApi.queryOffers(offerQueryForm).getItems().iterator().next();
+        assertEquals(Integer.valueOf(4), offer.getAvailableQuantity());
+
+        InventoryCounter.shardInventory(Key.<Offer> create(offer.getWebsafeKey()));
+        homeFoodApi.purchaseOffer(user, offer.getWebsafeKey(), 1);
+        offer = homeFoodApi.queryOffers(offerQueryForm).getItems().iterator().next();
+        assertEquals(Integer.valueOf(3), offer.getAvailableQuantity());
+    }
+
+    @Test
+    public void testCheckout() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        String firstKey = createOffer(user, 10).getWebsafeKey();
+        String secondKey = createOffer(user, 3).getWebsafeKey();
+        CheckoutResult result = homeFoodApi.checkout(user, new CheckoutForm(
+                new CheckoutForm.Item(firstKey, 2), new CheckoutForm.Item(secondKey, 4)));
+        assertFalse(result.isReserved());
+        assertEquals(CheckoutResult.Status.NOT_ENOUGH_QUANTITY,
+                result.getItems().get(1).getStatus());
+        assertEquals(3, result.getItems().get(1).getAvailableQuantity().intValue());
+
+        result = homeFoodApi.checkout(user, new CheckoutForm(
+                new CheckoutForm.Item(firstKey, 2), new CheckoutForm.Item(secondKey, 3)));
+        assertTrue(result.isReserved());
+        assertEquals(8, homeFoodApi.getOfferAvailability(firstKey).getResult().intValue());
+        assertEquals(0, homeFoodApi.getOfferAvailability(secondKey).getResult().intValue());
+    }
+
+    @Test(expected = BadRequestException.class)
+    public void testCheckoutSameOfferTwice() throws Exception {
+        User user = new User("testuser@example.com", "gmail.com", "123456789");
+        String websafeOfferKey = createOffer(user, 10).getWebsafeKey();
+        homeFoodApi.checkout(user, new CheckoutForm(new CheckoutForm.Item(websafeOfferKey, 1),
+                new CheckoutForm.Item(websafeOfferKey, 2)));
+    }
+
+    private Offer createOffer(User user, int quantity) throws Exception {
+        Provider provider = homeFoodApi.createProvider(user, new ProviderForm(
+                "Amma's Kitchen", null, "amma@example.com", "1 MG Road", null, "Bangalore",
+                "KA", "560001", "India", "9999999999", null, false));
+        return homeFoodApi.createOffer(user, new OfferForm("Thali", "South indian thali",
+                offerDate, quantity, Cuisine.SOUTH_INDIAN, 100, "Rs", provider.getWebsafeKey()));
+    }
+
+    private void assertOffersWithoutCuisineMatch() throws Exception {
+        OfferQueryForm offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                Cuisine.PUNJABI, SortField.DISTANCE);
+        assertEquals(ids(2, 4), idsOf(homeFoodApi.queryOffers(offerQueryForm).getItems()));
+        assertEquals(2, homeFoodApi.queryOfferSummaries(offerQueryForm).getItems().size());
+        offerQueryForm = new OfferQueryForm(LATITUDE, LONGITUDE, 10, offerDate,
+                null, SortField.DISTANCE);
+        assertEquals(ids(1, 2, 3, 4), idsOf(homeFoodApi.queryOffers(offerQueryForm).getItems()));
+        assertEquals(4, homeFoodApi.queryOfferSummaries(offerQueryForm).getItems().size());
+    }
+
+    private static Entity offerEntity(long id, double latitude, double longitude,
+                                      Cuisine cuisine) {
+        Entity entity = new Entity("Offer", id, KeyFactory.createKey(
+                KeyFactory.createKey("Profile", "123456789"), "Provider", 1L));
+        GeoPt location = new GeoPt((float) latitude, (float) longitude);
+        entity.setProperty("title", "Offer " + id);
+        entity.setProperty("cuisine", cuisine == null ? null : cuisine.name());
+        entity.setProperty("offerDateNumber", DAY);
+        entity.setProperty("priceInUnit", 100L * id);
+        entity.setProperty("availableQuantity", 5L);
+        entity.setProperty("inventorySharded", false);
+        entity.setProperty("providerName", "Provider");
+        entity.setProperty("location", location);
+        entity.setProperty("latitudeRadians", Math.toRadians(location.getLatitude()));
+        entity.setProperty("longitudeRadians", Math.toRadians(location.getLongitude()));
+        entity.setProperty("cosLatitude", Math.cos(Math.toRadians(location.getLatitude())));
+        entity.setProperty("geoCells", GeoHash.cells(latitude, longitude));
+        return entity;
+    }
+
+    private static Set<Long> ids(long... ids) {
+        Set<Long> result = new HashSet<>();
+        for (long id : ids) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static Set<Long> idsOf(Iterable<Offer> offers) {
+        Set<Long> result = new HashSet<>();
+        for (Offer offer : offers) {
+            result.add(offer.getId());
+        }
+        return result;
+    }
+}